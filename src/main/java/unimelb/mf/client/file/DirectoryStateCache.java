@@ -0,0 +1,118 @@
+package unimelb.mf.client.file;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the mtime, size and entries of the directories listed in the
+ * previous scan, so that the next scan can skip re-listing (and re-visiting
+ * the files in) the directories that have not changed. Adding, removing or
+ * renaming an entry updates the mtime of the directory. However, modifying a
+ * file in place does not, therefore a full scan is still required
+ * periodically. The directories of the files failed to sync are invalidated
+ * (see {@link #invalidate(Path)}), so that the files are visited again in the
+ * next scan.
+ *
+ * @author wliu5
+ *
+ */
+public class DirectoryStateCache {
+
+    /**
+     * Directories modified within this time window before they were listed
+     * are not considered unchanged in next scan. Because further changes made
+     * in the same window may not update the mtime (file systems with coarse
+     * timestamp granularity).
+     */
+    public static final long RACY_WINDOW = 2000L;
+
+    public static class State {
+
+        private final long _mtime;
+        private final long _size;
+        private final long _listTime;
+        private final int _nbEntries;
+        private final Path[] _subDirs;
+
+        State(long mtime, long size, long listTime, int nbEntries, Path[] subDirs) {
+            _mtime = mtime;
+            _size = size;
+            _listTime = listTime;
+            _nbEntries = nbEntries;
+            _subDirs = subDirs;
+        }
+
+        public int numberOfEntries() {
+            return _nbEntries;
+        }
+
+        public Path[] subDirectories() {
+            return _subDirs;
+        }
+
+        boolean unchanged(BasicFileAttributes attrs) {
+            long mtime = attrs.lastModifiedTime().toMillis();
+            return mtime == _mtime && attrs.size() == _size && _listTime - _mtime > RACY_WINDOW;
+        }
+    }
+
+    private Map<Path, State> _states = new ConcurrentHashMap<Path, State>();
+
+    /*
+     * the time when the directories were invalidated, which have been listed
+     * since (or are being listed).
+     */
+    private Map<Path, Long> _invalidated = new ConcurrentHashMap<Path, Long>();
+
+    /**
+     * Returns the state recorded when the directory was last listed, if the
+     * directory has not changed since. Otherwise, returns null.
+     */
+    public State getIfUnchanged(Path dir, BasicFileAttributes attrs) {
+        State state = _states.get(dir);
+        if (state != null && state.unchanged(attrs)) {
+            return state;
+        }
+        return null;
+    }
+
+    /**
+     * Records the state of the listed directory, unless it has been
+     * invalidated since it started being listed.
+     */
+    public void put(Path dir, BasicFileAttributes attrs, long listTime, int nbEntries, List<Path> subDirs) {
+        Long invalidateTime = _invalidated.remove(dir);
+        if (invalidateTime != null && invalidateTime >= listTime) {
+            return;
+        }
+        _states.put(dir, new State(attrs.lastModifiedTime().toMillis(), attrs.size(), listTime, nbEntries,
+                subDirs.toArray(new Path[subDirs.size()])));
+    }
+
+    /**
+     * Invalidates the state of the directory (e.g. a file in it failed to
+     * sync), including the state being recorded by the current listing of the
+     * directory if any, so that the directory is listed again in next scan.
+     */
+    public void invalidate(Path dir) {
+        _invalidated.put(dir, System.currentTimeMillis());
+        _states.remove(dir);
+    }
+
+    public void remove(Path dir) {
+        _states.remove(dir);
+    }
+
+    public int size() {
+        return _states.size();
+    }
+
+    public void clear() {
+        _states.clear();
+        _invalidated.clear();
+    }
+
+}
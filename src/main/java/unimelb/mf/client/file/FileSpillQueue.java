@@ -0,0 +1,109 @@
+package unimelb.mf.client.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * An on-disk FIFO queue of (tagged) file paths. It is used to hold the files found by
+ * the scanners when the check/upload pipeline is saturated, so that the heap
+ * usage does not grow with the size of the directory tree. The queue file is
+ * created when the first path is added, and deleted when the queue is closed.
+ *
+ * @author wliu5
+ *
+ */
+public class FileSpillQueue implements Closeable {
+
+    public static final String FILE_EXTENSION = ".spill";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    public static interface Handler {
+        void handle(int tag, Path file) throws Throwable;
+    }
+
+    private Path _file;
+    private DataOutputStream _out;
+    private long _size;
+
+    public FileSpillQueue(Path file) {
+        _file = file;
+        _size = 0;
+    }
+
+    public Path file() {
+        return _file;
+    }
+
+    public synchronized long size() {
+        return _size;
+    }
+
+    /**
+     * Adds the path to the queue.
+     *
+     * @param tag
+     *            the tag (e.g. the index of the job) to pass back to the
+     *            handler with the path.
+     * @param file
+     *            the file path.
+     * @throws IOException
+     */
+    public synchronized void add(int tag, Path file) throws IOException {
+        if (_out == null) {
+            _out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(_file), BUFFER_SIZE));
+        }
+        _out.writeInt(tag);
+        _out.writeUTF(file.toString());
+        _size++;
+    }
+
+    /**
+     * Removes all the paths from the queue (in the order they were added), and
+     * passes them to the handler.
+     *
+     * @param handler
+     *            the handler.
+     * @throws Throwable
+     */
+    public synchronized void drain(Handler handler) throws Throwable {
+        if (_out == null) {
+            return;
+        }
+        _out.close();
+        _out = null;
+        long size = _size;
+        _size = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(_file), BUFFER_SIZE));
+        try {
+            for (long i = 0; i < size; i++) {
+                int tag = in.readInt();
+                handler.handle(tag, Paths.get(in.readUTF()));
+            }
+        } finally {
+            in.close();
+            Files.deleteIfExists(_file);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (_out != null) {
+                _out.close();
+                _out = null;
+            }
+        } finally {
+            _size = 0;
+            Files.deleteIfExists(_file);
+        }
+    }
+
+}
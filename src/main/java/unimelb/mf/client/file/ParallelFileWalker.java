@@ -0,0 +1,311 @@
+package unimelb.mf.client.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A directory tree walker which lists the sub-directories concurrently in a
+ * work-stealing (fork/join) thread pool. It is similar to
+ * {@link Files#walkFileTree(Path, FileVisitor)} (symbolic links are not
+ * followed), except that:
+ *
+ * 1) the visitor methods are called concurrently from the threads of the pool,
+ * therefore the visitor must be thread-safe;
+ *
+ * 2) the sibling directories are visited in no particular order.
+ * {@link FileVisitResult#SKIP_SIBLINGS} is treated as
+ * {@link FileVisitResult#SKIP_SUBTREE} when returned by preVisitDirectory,
+ * and it skips the remaining files (but not the sub-directories) when returned
+ * by visitFile;
+ *
+ * 3) postVisitDirectory is called after all the descendants of the directory
+ * have been visited.
+ *
+ * If a {@link DirectoryStateCache} is specified, the directories that have not
+ * changed since they were last listed are not listed again: the files in them
+ * are not visited, but their (known) sub-directories are still walked.
+ *
+ * It is mainly to overcome the stat latency on network file systems (NFS,
+ * Lustre, GPFS), where a single thread can only scan a few thousand files per
+ * second.
+ *
+ * @author wliu5
+ *
+ */
+public class ParallelFileWalker {
+
+    private ForkJoinPool _pool;
+
+    public ParallelFileWalker(int parallelism) {
+        _pool = new ForkJoinPool(Math.max(1, parallelism), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("Scanner-" + t.getPoolIndex());
+                return t;
+            }
+        }, null, false);
+    }
+
+    public int parallelism() {
+        return _pool.getParallelism();
+    }
+
+    /**
+     * Walks the file tree rooted at the specified directory.
+     *
+     * @param start
+     *            the starting directory.
+     * @param visitor
+     *            the (thread-safe) file visitor.
+     * @throws IOException
+     *             if an I/O error is thrown by a visitor method.
+     * @throws InterruptedException
+     *             if the calling thread is interrupted. The walking is
+     *             terminated.
+     */
+    public void walk(Path start, FileVisitor<? super Path> visitor) throws IOException, InterruptedException {
+        walk(start, visitor, null);
+    }
+
+    /**
+     * Walks the file tree rooted at the specified directory, skipping the
+     * unchanged directories recorded in the directory state cache.
+     *
+     * @param start
+     *            the starting directory.
+     * @param visitor
+     *            the (thread-safe) file visitor.
+     * @param dirStates
+     *            the directory state cache. It is updated with the directories
+     *            listed. If it is null, all directories are listed.
+     * @throws IOException
+     *             if an I/O error is thrown by a visitor method.
+     * @throws InterruptedException
+     *             if the calling thread is interrupted. The walking is
+     *             terminated.
+     */
+    public void walk(Path start, FileVisitor<? super Path> visitor, DirectoryStateCache dirStates)
+            throws IOException, InterruptedException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(start, BasicFileAttributes.class);
+        } catch (IOException e) {
+            visitor.visitFileFailed(start, e);
+            return;
+        }
+        Walk walk = new Walk(visitor, dirStates);
+        ForkJoinTask<Void> task;
+        if (attrs.isDirectory()) {
+            task = _pool.submit(walk.new DirectoryTask(start, attrs));
+        } else {
+            visitor.visitFile(start, attrs);
+            return;
+        }
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            walk.terminate();
+            task.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public void shutdown() {
+        _pool.shutdownNow();
+    }
+
+    private static class Walk {
+
+        private final FileVisitor<? super Path> _visitor;
+
+        private final DirectoryStateCache _dirStates;
+
+        private volatile boolean _terminated = false;
+
+        Walk(FileVisitor<? super Path> visitor, DirectoryStateCache dirStates) {
+            _visitor = visitor;
+            _dirStates = dirStates;
+        }
+
+        void terminate() {
+            _terminated = true;
+        }
+
+        boolean terminated() {
+            return _terminated;
+        }
+
+        @SuppressWarnings("serial")
+        class DirectoryTask extends RecursiveAction {
+
+            private final Path _dir;
+            private final BasicFileAttributes _attrs;
+
+            DirectoryTask(Path dir, BasicFileAttributes attrs) {
+                _dir = dir;
+                _attrs = attrs;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    visitDirectory();
+                } catch (IOException e) {
+                    terminate();
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private void visitDirectory() throws IOException {
+                if (terminated()) {
+                    return;
+                }
+                FileVisitResult result = _visitor.preVisitDirectory(_dir, _attrs);
+                if (result == FileVisitResult.TERMINATE) {
+                    terminate();
+                    return;
+                }
+                if (result != FileVisitResult.CONTINUE) {
+                    return;
+                }
+                if (_dirStates != null) {
+                    DirectoryStateCache.State state = _dirStates.getIfUnchanged(_dir, _attrs);
+                    if (state != null) {
+                        visitUnchangedDirectory(state);
+                        return;
+                    }
+                }
+                List<DirectoryTask> subTasks = new ArrayList<DirectoryTask>();
+                List<Path> subDirs = _dirStates == null ? null : new ArrayList<Path>();
+                int nbEntries = 0;
+                boolean complete = true;
+                long listTime = System.currentTimeMillis();
+                IOException error = null;
+                boolean skipFiles = false;
+                try {
+                    DirectoryStream<Path> stream = Files.newDirectoryStream(_dir);
+                    try {
+                        for (Path entry : stream) {
+                            if (terminated()) {
+                                break;
+                            }
+                            nbEntries++;
+                            BasicFileAttributes attrs;
+                            try {
+                                attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                                        LinkOption.NOFOLLOW_LINKS);
+                            } catch (IOException e) {
+                                complete = false;
+                                if (_visitor.visitFileFailed(entry, e) == FileVisitResult.TERMINATE) {
+                                    terminate();
+                                }
+                                continue;
+                            }
+                            if (attrs.isDirectory()) {
+                                DirectoryTask subTask = new DirectoryTask(entry, attrs);
+                                subTask.fork();
+                                subTasks.add(subTask);
+                                if (subDirs != null) {
+                                    subDirs.add(entry);
+                                }
+                            } else if (!skipFiles) {
+                                result = _visitor.visitFile(entry, attrs);
+                                if (result == FileVisitResult.TERMINATE) {
+                                    terminate();
+                                } else if (result == FileVisitResult.SKIP_SIBLINGS) {
+                                    skipFiles = true;
+                                    complete = false;
+                                }
+                            }
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (DirectoryIteratorException e) {
+                    error = e.getCause();
+                }
+                if (_dirStates != null) {
+                    if (complete && error == null && !terminated()) {
+                        _dirStates.put(_dir, _attrs, listTime, nbEntries, subDirs);
+                    } else {
+                        _dirStates.remove(_dir);
+                    }
+                }
+                for (DirectoryTask subTask : subTasks) {
+                    subTask.join();
+                }
+                if (!terminated()) {
+                    if (_visitor.postVisitDirectory(_dir, error) == FileVisitResult.TERMINATE) {
+                        terminate();
+                    }
+                }
+            }
+
+            private void visitUnchangedDirectory(DirectoryStateCache.State state) throws IOException {
+                List<DirectoryTask> subTasks = new ArrayList<DirectoryTask>();
+                for (Path subDir : state.subDirectories()) {
+                    if (terminated()) {
+                        break;
+                    }
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(subDir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        // should not happen as the parent directory is
+                        // unchanged. List it again in next walk.
+                        _dirStates.remove(_dir);
+                        if (_visitor.visitFileFailed(subDir, e) == FileVisitResult.TERMINATE) {
+                            terminate();
+                        }
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        DirectoryTask subTask = new DirectoryTask(subDir, attrs);
+                        subTask.fork();
+                        subTasks.add(subTask);
+                    } else {
+                        _dirStates.remove(_dir);
+                    }
+                }
+                for (DirectoryTask subTask : subTasks) {
+                    subTask.join();
+                }
+                if (!terminated()) {
+                    if (_visitor.postVisitDirectory(_dir, null) == FileVisitResult.TERMINATE) {
+                        terminate();
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -20,25 +20,36 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import arc.xml.XmlStringWriter;
+import unimelb.mf.client.file.FileSpillQueue;
 import unimelb.mf.client.file.Filter;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.sync.index.ChecksumCache;
+import unimelb.mf.client.sync.index.DedupRegistry;
+import unimelb.mf.client.sync.index.SyncStateIndex;
+import unimelb.mf.client.sync.index.UploadStateStore;
+import unimelb.mf.client.sync.task.CompactTaskQueue;
 import unimelb.mf.client.sync.task.FileSyncTaskProducer;
 import unimelb.mf.client.sync.task.FileUploadListener;
+import unimelb.mf.client.sync.task.FileWatchTaskProducer;
+import unimelb.mf.client.sync.task.MFSegmentTransport;
+import unimelb.mf.client.sync.task.SegmentedUpload;
 import unimelb.mf.client.sync.task.TaskConsumer;
+import unimelb.mf.client.sync.task.WorkerController;
 import unimelb.mf.client.task.Loggable;
 import unimelb.mf.client.task.Task;
+import unimelb.mf.client.util.BandwidthLimiter;
+import unimelb.mf.client.util.BufferPool;
 import unimelb.mf.client.util.LoggingUtils;
 
 public class MFSync implements Runnable, Loggable, FileUploadListener {
@@ -58,29 +69,107 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
     public static final int DEFAULT_DAEMON_LISTENER_PORT = 9761;
 
     public static final int DEFAULT_DAEMON_SCAN_INTERVAL = 60000; // milliseconds
+
+    public static final long DEFAULT_DAEMON_FULL_SCAN_INTERVAL = 0L; // milliseconds
+
+    public static final long DEFAULT_QUIESCENCE_PERIOD = 0L; // milliseconds
+
+    public static final long DEFAULT_PREFETCH_LIMIT = 1000000L;
+
+    /**
+     * The assets are not prefetched if there are more of them than this many
+     * times the files checked by the last full scan of the job.
+     */
+    public static final int PREFETCH_MAX_ASSETS_PER_FILE = 4;
+
+    public static final long DEFAULT_SMALL_FILE_THRESHOLD = 65536L; // bytes
+
+    public static final int DEFAULT_SMALL_FILE_BATCH_SIZE = 100;
+
+    public static final int MAX_SMALL_FILE_BATCH_SIZE = 1000;
+
+    public static final int DEFAULT_UPLOAD_BUFFER_SIZE = 1048576; // bytes
+
+    public static final long DEFAULT_SEGMENTED_UPLOAD_THRESHOLD = 0L; // bytes
+
+    public static final long DEFAULT_UPLOAD_SEGMENT_SIZE = 268435456L; // bytes
+
+    public static final int DEFAULT_ARCHIVE_MIN_FILES = 100;
+
+    public static final long DEFAULT_ARCHIVE_MAX_FILE_SIZE = 16384L; // bytes
+
+    public static final int DEFAULT_ARCHIVE_MAX_FILES = 10000;
     
     public static final int DEFAULT_CHECK_BATCH_SIZE = 100;
+
+    public static final int MAX_CHECK_BATCH_SIZE = 10000;
+
+    public static final long DEFAULT_CHECK_LINGER = 1000L; // milliseconds
     
     public static final int DEFAULT_MAX_NUMBER_OF_CHECKERS = 4;
 
+    public static final int MAX_NUMBER_OF_CHECKERS = 64;
+
+    public static final int DEFAULT_NUMBER_OF_SCANNERS = 4;
+
+    public static final int MAX_NUMBER_OF_SCANNERS = 128;
+
+    public static final int MIN_QUEUE_SIZE = 1000;
+
+    public static final int MAX_QUEUE_SIZE = 100000;
+
+    /**
+     * Estimated heap usage of a queued task (including its paths).
+     */
+    private static final int TASK_HEAP_USAGE = 2048; // bytes
+
+    /**
+     * @return the default capacity of the task queue: the number of tasks
+     *         which take up to 1/8 of the maximum heap size.
+     */
+    public static int defaultMaxQueueSize() {
+        long size = Runtime.getRuntime().maxMemory() / 8 / TASK_HEAP_USAGE;
+        return (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, size));
+    }
+
     private MFSession _session;
 
     private MFSyncSettings _settings;
 
     private Logger _logger;
 
-    private BlockingQueue<Task> _queue;
+    private CompactTaskQueue _queue;
 
     private ExecutorService _producerThreadPool;
 
+    private volatile FileSyncTaskProducer _producer;
+
     private ExecutorService _consumerThreadPool;
 
     private List<TaskConsumer> _consumers;
 
-    private AtomicInteger _nbUploaded = new AtomicInteger();
-    private AtomicInteger _nbFailed = new AtomicInteger();
-    private AtomicInteger _nbSkipped = new AtomicInteger();
-    private AtomicLong _bytesUploaded = new AtomicLong();
+    private SyncStateIndex _index;
+
+    private ChecksumCache _csumCache;
+
+    private FileSpillQueue _spillQueue;
+
+    private BandwidthLimiter _bandwidthLimiter;
+
+    private DedupRegistry _dedupRegistry;
+
+    private WorkerController _workerController;
+
+    private Timer _workerControlTimer;
+
+    /*
+     * Updated by all the workers, read only by the status/summary: striped
+     * counters avoid the contention on a single atomic variable.
+     */
+    private LongAdder _nbUploaded = new LongAdder();
+    private LongAdder _nbFailed = new LongAdder();
+    private LongAdder _nbSkipped = new LongAdder();
+    private LongAdder _bytesUploaded = new LongAdder();
     private List<Path> _failedFiles = Collections.synchronizedList(new ArrayList<Path>());
     private Map<Long, Path> _activities = Collections.synchronizedMap(new LinkedHashMap<Long, Path>() {
         private static final long serialVersionUID = -8971798382879040126L;
@@ -107,17 +196,23 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
             throw new RuntimeException("Failed to create logger: " + e.getMessage(), e);
         }
 
-        _queue = new LinkedBlockingQueue<Task>();
+        _queue = new CompactTaskQueue(_settings.maxQueueSize());
+        if (_settings.jobs() != null) {
+            for (MFSyncSettings.Job job : _settings.jobs()) {
+                _queue.setWeight(job.directory(), job.namespace(), job.weight());
+            }
+        }
 
-        _producerThreadPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        _producerThreadPool = Executors.newFixedThreadPool(_settings.daemonEnabled() && _settings.daemonWatch() ? 2 : 1,
+                new ThreadFactory() {
 
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "Task Producer");
-            }
-        });
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Task Producer");
+                    }
+                });
 
-        _consumerThreadPool = Executors.newFixedThreadPool(_settings.numberOfWorkers(), new ThreadFactory() {
+        _consumerThreadPool = Executors.newFixedThreadPool(_settings.numberOfWorkerThreads(), new ThreadFactory() {
 
             @Override
             public Thread newThread(Runnable r) {
@@ -144,7 +239,14 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
                     String path = file.toAbsolutePath().toString();
                     String logFilePrefix = logFilePrefix();
                     boolean exclude = path.startsWith(logFilePrefix + ".")
-                            && (path.endsWith(".log") || path.endsWith(".log.lck"));
+                            && (path.endsWith(".log") || path.endsWith(".log.lck")
+                                    || path.endsWith(SyncStateIndex.FILE_EXTENSION)
+                                    || path.endsWith(SyncStateIndex.FILE_EXTENSION + ".tmp")
+                                    || path.endsWith(ChecksumCache.FILE_EXTENSION)
+                                    || path.endsWith(ChecksumCache.FILE_EXTENSION + ".tmp")
+                                    || path.endsWith(FileSpillQueue.FILE_EXTENSION)
+                                    || path.endsWith(UploadStateStore.FILE_EXTENSION)
+                                    || path.endsWith(UploadStateStore.FILE_EXTENSION + ".tmp"));
                     if (exclude) {
                         // skip log file.
                         return false;
@@ -163,8 +265,48 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
              * Run FileSyncTaskProducer: go through the files in the local
              * directory, and upload them to the remote asset namespace.
              */
-            _producerThreadPool.submit(
-                    new FileSyncTaskProducer(_session, _logger, _settings, this, _queue).setFilter(logFileFilter));
+            if (_settings.localIndex()) {
+                _index = SyncStateIndex.open(Paths.get(logFilePrefix() + SyncStateIndex.FILE_EXTENSION), _logger);
+            }
+            if (_settings.csumCompare()) {
+                _csumCache = ChecksumCache.open(Paths.get(logFilePrefix() + ChecksumCache.FILE_EXTENSION),
+                        _settings.csumCacheXattr(), _logger);
+            }
+            if (_settings.spillToDisk()) {
+                _spillQueue = new FileSpillQueue(Paths.get(logFilePrefix() + FileSpillQueue.FILE_EXTENSION));
+            }
+            _bandwidthLimiter = new BandwidthLimiter(_settings.bandwidthLimit(), _settings.perWorkerBandwidthLimit(),
+                    _settings.bandwidthWindows());
+            if (_settings.dedup()) {
+                _dedupRegistry = new DedupRegistry(_settings.uploadBufferSize(), _logger);
+            }
+            SegmentedUpload segmentedUpload = null;
+            if (_settings.segmentedUploadThreshold() > 0 && !MFSegmentTransport.isSupported(_session)) {
+                _logger.warning("The I/O job services required by the segmented uploads are not available on the"
+                        + " server. The large files are uploaded in a single request.");
+            } else if (_settings.segmentedUploadThreshold() > 0) {
+                segmentedUpload = new SegmentedUpload(new MFSegmentTransport(),
+                        UploadStateStore.open(Paths.get(logFilePrefix() + UploadStateStore.FILE_EXTENSION), _logger),
+                        _settings.segmentedUploadThreshold(), _settings.uploadSegmentSize());
+            }
+            FileSyncTaskProducer producer = new FileSyncTaskProducer(_session, _logger, _settings, this, _queue)
+                    .setFilter(logFileFilter).setSyncStateIndex(_index).setChecksumCache(_csumCache)
+                    .setSpillQueue(_spillQueue)
+                    .setBufferPool(new BufferPool(_settings.uploadBufferSize(), _settings.numberOfWorkerThreads()))
+                    .setSegmentedUpload(segmentedUpload).setBandwidthLimiter(_bandwidthLimiter)
+                    .setDedupRegistry(_dedupRegistry);
+            _producer = producer;
+            if (_settings.daemonEnabled() && _settings.daemonWatch()) {
+                /*
+                 * Run FileWatchTaskProducer: watch the changes in the local
+                 * directories (registered while scanning), and upload them.
+                 */
+                FileWatchTaskProducer watcher = new FileWatchTaskProducer(_session, _logger, _settings, producer,
+                        _queue);
+                producer.setWatcher(watcher);
+                _producerThreadPool.submit(watcher);
+            }
+            _producerThreadPool.submit(producer);
 // @formatter:off
 //            /*
 //             * Run AssetSyncTaskProducer: go through the assets in the remote
@@ -172,33 +314,32 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
 //             */
 //            if (_syncLocalDeletion) {
 //                _producerThreadPool
-//                        .submit(new AssetSyncTaskProducer(_session, _logger, _directory, _namespace, _queue));
+//                        .submit(new AssetSyncTaskProducer(_session, _logger, _directory, _namespace, _queue)
+//                                .setBandwidthLimiter(_bandwidthLimiter));
 //            }
 // @formatter:on
 
             /*
              * Start consumer threads.
              */
-            _consumers = new ArrayList<TaskConsumer>(_settings.numberOfWorkers());
-            for (int i = 0; i < _settings.numberOfWorkers(); i++) {
-                TaskConsumer consumer = new TaskConsumer(_queue, _logger);
+            if (_settings.adaptiveNumberOfWorkers()) {
+                _workerController = new WorkerController(_settings.numberOfWorkers(),
+                        _settings.minNumberOfWorkers(), _settings.numberOfWorkerThreads(), _logger);
+                startWorkerController();
+            }
+            _consumers = new ArrayList<TaskConsumer>(_settings.numberOfWorkerThreads());
+            for (int i = 0; i < _settings.numberOfWorkerThreads(); i++) {
+                TaskConsumer consumer = new TaskConsumer(_queue, _logger)
+                        .setSmallFileBatch(_settings.smallFileThreshold(), _settings.smallFileBatchSize())
+                        .setJobs(_settings.jobs()).setWorkerController(_workerController, i);
                 _consumers.add(consumer);
                 _consumerThreadPool.submit(consumer);
             }
 
-            /*
-             * Watch the changes in the local directory, upload files to remote
-             * asset namespace...
-             */
-
             // starts listener
             startDaemonListener();
 
-            if (_settings.daemonEnabled()) {
-                // _producerThreadPool.submit(
-                // new FileWatchTaskProducer(_session, _logger, _settings, this,
-                // _queue).setFilter(logFileFilter));
-            } else {
+            if (!_settings.daemonEnabled()) {
 
                 _producerThreadPool.shutdown();
                 _producerThreadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
@@ -208,6 +349,10 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
 //                }
                 _consumerThreadPool.shutdown();
                 _consumerThreadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                stopWorkerController();
+                closeSyncStateIndex();
+                closeChecksumCache();
+                closeSpillQueue();
                 printSummary(System.out);
                 mailSummary();
                 _session.stopPingServerPeriodically();
@@ -251,17 +396,28 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
 
         ps.println();
         ps.println("Summary:");
-        int uploaded = _nbUploaded.get();
-        int failed = _nbFailed.get();
-        int skipped = _nbSkipped.get();
-        int total = uploaded + failed + skipped;
-        long totalBytes = _bytesUploaded.get();
+        long uploaded = _nbUploaded.sum();
+        long failed = _nbFailed.sum();
+        long skipped = _nbSkipped.sum();
+        long total = uploaded + failed + skipped;
+        long totalBytes = _bytesUploaded.sum();
 
         ps.println(String.format("    number-of-uploaded-files: %16d", uploaded));
         ps.println(String.format("      number-of-failed-files: %16d", failed));
         ps.println(String.format("     number-of-skipped-files: %16d", skipped));
         ps.println(String.format("       total-processed-files: %16d", total));
         ps.println(String.format("        total-uploaded-bytes: %16d bytes", totalBytes));
+        if (_dedupRegistry != null) {
+            ps.println(String.format("number-of-deduplicated-files: %16d",
+                    _dedupRegistry.numberOfDeduplicatedFiles()));
+            ps.println(String.format("    deduplicated-saved-bytes: %16d bytes", _dedupRegistry.bytesSaved()));
+        }
+        if (_bandwidthLimiter != null) {
+            ps.println(String.format("             bandwidth-limit: %16s", _bandwidthLimiter.describe()));
+        }
+        if (_workerController != null) {
+            ps.println(String.format("           number-of-workers: %s", _workerController.describe()));
+        }
 
         if (!_settings.daemonEnabled()) {
             double speed = totalBytes == 0 ? 0.0
@@ -307,6 +463,10 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
         if (_producerThreadPool != null && !_producerThreadPool.isTerminated()) {
             _producerThreadPool.shutdownNow();
         }
+        stopWorkerController();
+        closeSyncStateIndex();
+        closeChecksumCache();
+        closeSpillQueue();
         _session.stopPingServerPeriodically();
         _session.discard();
         if (_settings.daemonEnabled() && _daemonListenerThread != null && !_daemonListenerThread.isInterrupted()) {
@@ -314,6 +474,69 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
         }
     }
 
+    /**
+     * Measures the throughput and the server latency (with server.ping)
+     * periodically, and adapts the number of active workers.
+     */
+    private void startWorkerController() {
+        stopWorkerController();
+        _workerControlTimer = new Timer("Worker Controller", true);
+        _workerControlTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                long latency = -1;
+                try {
+                    long t = System.currentTimeMillis();
+                    _session.execute("server.ping");
+                    latency = System.currentTimeMillis() - t;
+                } catch (Throwable e) {
+                    logWarning("Failed to measure server latency: " + e.getMessage());
+                }
+                long files = _nbUploaded.sum() + _nbFailed.sum() + _nbSkipped.sum();
+                _workerController.update(_bytesUploaded.sum(), files, _queue.size(), latency,
+                        System.currentTimeMillis());
+            }
+        }, 0, WorkerController.INTERVAL);
+    }
+
+    private void stopWorkerController() {
+        if (_workerControlTimer != null) {
+            _workerControlTimer.cancel();
+            _workerControlTimer = null;
+        }
+    }
+
+    private void closeSpillQueue() {
+        if (_spillQueue != null) {
+            try {
+                _spillQueue.close();
+            } catch (Throwable e) {
+                logError("Failed to close spill file: '" + _spillQueue.file() + "'", e);
+            }
+        }
+    }
+
+    private void closeChecksumCache() {
+        if (_csumCache != null) {
+            try {
+                _csumCache.close();
+            } catch (Throwable e) {
+                logError("Failed to close checksum cache file: '" + _csumCache.file() + "'", e);
+            }
+        }
+    }
+
+    private void closeSyncStateIndex() {
+        if (_index != null) {
+            try {
+                _index.close();
+            } catch (Throwable e) {
+                logError("Failed to close index file: '" + _index.file() + "'", e);
+            }
+        }
+    }
+
     public void startDaemonListener() {
         if (_daemonListenerThread == null) {
             _daemonListenerThread = new Thread(new Runnable() {
@@ -336,6 +559,9 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
                                         } else if ("status".equalsIgnoreCase(cmd)) {
                                             printSummary(new PrintStream(client.getOutputStream(), true));
                                             break;
+                                        } else if (cmd != null && cmd.toLowerCase().startsWith("bandwidth")) {
+                                            setBandwidth(cmd, new PrintStream(client.getOutputStream(), true));
+                                            break;
                                         } else {
                                             break;
                                         }
@@ -358,6 +584,44 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
         }
     }
 
+    /**
+     * Handles the daemon command: 'bandwidth' (prints the current limits),
+     * 'bandwidth <bytes/s> [<per-worker-bytes/s>]' (overrides the scheduled
+     * limit) or 'bandwidth auto' (restores the scheduled limit).
+     */
+    private void setBandwidth(String cmd, PrintStream ps) {
+        if (_bandwidthLimiter == null) {
+            ps.println("Bandwidth limiter is not started.");
+            return;
+        }
+        String[] tokens = cmd.trim().split("\\s+");
+        try {
+            if (tokens.length >= 2) {
+                if ("auto".equalsIgnoreCase(tokens[1])) {
+                    _bandwidthLimiter.setOverride(null);
+                } else {
+                    long limit = Long.parseLong(tokens[1]);
+                    if (limit < 0) {
+                        throw new NumberFormatException("Negative limit: " + limit);
+                    }
+                    _bandwidthLimiter.setOverride(limit);
+                }
+                if (tokens.length >= 3) {
+                    long perWorkerLimit = Long.parseLong(tokens[2]);
+                    if (perWorkerLimit < 0) {
+                        throw new NumberFormatException("Negative limit: " + perWorkerLimit);
+                    }
+                    _bandwidthLimiter.setPerWorkerLimit(perWorkerLimit);
+                }
+                logInfo("Bandwidth limit: " + _bandwidthLimiter.describe());
+            }
+            ps.println("bandwidth: " + _bandwidthLimiter.describe());
+        } catch (NumberFormatException e) {
+            ps.println("Invalid bandwidth command: '" + cmd
+                    + "'. Expects: bandwidth [<bytes/s>|auto [<per-worker-bytes/s>]]");
+        }
+    }
+
     public void stopDaemonListener() {
         if (_daemonListenerThread != null) {
             try {
@@ -400,12 +664,17 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
 
     @Override
     public void fileUploadCompleted(Path file, String assetId) {
-        _nbUploaded.incrementAndGet();
+        _nbUploaded.increment();
     }
 
     @Override
     public void fileUploadFailed(Path file) {
-        _nbFailed.incrementAndGet();
+        _nbFailed.increment();
+        FileSyncTaskProducer producer = _producer;
+        if (producer != null) {
+            // visit the file again in the next incremental scan.
+            producer.invalidateDirectoryOf(file);
+        }
         synchronized (_failedFiles) {
             if (_failedFiles.size() < MAX_FAILED_UPLOADS) {
                 _failedFiles.add(file);
@@ -415,12 +684,12 @@ public class MFSync implements Runnable, Loggable, FileUploadListener {
 
     @Override
     public void fileUploadSkipped(Path file) {
-        _nbSkipped.incrementAndGet();
+        _nbSkipped.increment();
     }
 
     @Override
     public void fileUploadProgressed(long bytesUploaded) {
-        _bytesUploaded.addAndGet(bytesUploaded);
+        _bytesUploaded.add(bytesUploaded);
     }
 
     @Override
@@ -7,6 +7,7 @@ import java.nio.file.Paths;
 
 import unimelb.mf.client.session.MFConnectionSettings;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.util.MultiDigest;
 
 public class MFSyncCLI {
 
@@ -90,6 +91,27 @@ public class MFSyncCLI {
                         throw new IllegalArgumentException("Invalid --number-of-workers: " + args[i + 1], nfe);
                     }
                     i += 2;
+                } else if (args[i].equals("--min-number-of-workers")) {
+                    try {
+                        syncSettings.setMinNumberOfWorkers(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --min-number-of-workers: " + args[i + 1], nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--max-number-of-workers")) {
+                    try {
+                        syncSettings.setMaxNumberOfWorkers(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --max-number-of-workers: " + args[i + 1], nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--number-of-scanners")) {
+                    try {
+                        syncSettings.setNumberOfScanners(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --number-of-scanners: " + args[i + 1], nfe);
+                    }
+                    i += 2;
                 } else if (args[i].equals("--max-checkers")) {
                     try {
                         syncSettings.setMaxNumberOfCheckers(Integer.parseInt(args[i + 1]));
@@ -104,12 +126,157 @@ public class MFSyncCLI {
                         throw new IllegalArgumentException("Invalid --check-batch-size: " + args[i + 1], nfe);
                     }
                     i += 2;
+                } else if (args[i].equals("--fixed-check-batch-size")) {
+                    syncSettings.setAdaptiveCheckBatchSize(false);
+                    i++;
+                } else if (args[i].equals("--check-linger")) {
+                    try {
+                        long checkLinger = Long.parseLong(args[i + 1]);
+                        if (checkLinger < 0) {
+                            throw new IllegalArgumentException("Invalid --check-linger: " + args[i + 1]);
+                        }
+                        syncSettings.setCheckLinger(checkLinger);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException(
+                                "Invalid --check-linger value. Expects a positive integer value. Found: "
+                                        + args[i + 1],
+                                nfe);
+                    }
+                    i += 2;
                 } else if (args[i].equals("--exclude-empty-folder")) {
                     syncSettings.setExcludeEmptyFolder(true);
                     i++;
                 } else if (args[i].equals("--csum-check")) {
                     syncSettings.setCsumCheck(true);
                     i++;
+                } else if (args[i].equals("--local-index")) {
+                    syncSettings.setLocalIndex(true);
+                    i++;
+                } else if (args[i].equals("--csum-compare")) {
+                    syncSettings.setCsumCompare(true);
+                    i++;
+                } else if (args[i].equals("--csum-cache-xattr")) {
+                    syncSettings.setCsumCacheXattr(true);
+                    i++;
+                } else if (args[i].equals("--max-queue-size")) {
+                    try {
+                        int maxQueueSize = Integer.parseInt(args[i + 1]);
+                        if (maxQueueSize < 0) {
+                            throw new IllegalArgumentException("Invalid --max-queue-size: " + args[i + 1]);
+                        }
+                        syncSettings.setMaxQueueSize(maxQueueSize);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException(
+                                "Invalid --max-queue-size value. Expects a positive integer value. Found: "
+                                        + args[i + 1],
+                                nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--quiescence-period")) {
+                    try {
+                        long quiescencePeriod = Long.parseLong(args[i + 1]);
+                        if (quiescencePeriod < 0) {
+                            throw new IllegalArgumentException("Invalid --quiescence-period: " + args[i + 1]);
+                        }
+                        syncSettings.setQuiescencePeriod(quiescencePeriod);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException(
+                                "Invalid --quiescence-period value. Expects a positive integer value. Found: "
+                                        + args[i + 1],
+                                nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--prefetch-limit")) {
+                    try {
+                        long prefetchLimit = Long.parseLong(args[i + 1]);
+                        if (prefetchLimit < 0) {
+                            throw new IllegalArgumentException("Invalid --prefetch-limit: " + args[i + 1]);
+                        }
+                        syncSettings.setPrefetchLimit(prefetchLimit);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException(
+                                "Invalid --prefetch-limit value. Expects a positive integer value. Found: "
+                                        + args[i + 1],
+                                nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--small-file-threshold")) {
+                    try {
+                        long smallFileThreshold = Long.parseLong(args[i + 1]);
+                        if (smallFileThreshold < 0) {
+                            throw new IllegalArgumentException("Invalid --small-file-threshold: " + args[i + 1]);
+                        }
+                        syncSettings.setSmallFileThreshold(smallFileThreshold);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException(
+                                "Invalid --small-file-threshold value. Expects a positive integer value. Found: "
+                                        + args[i + 1],
+                                nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--small-file-batch-size")) {
+                    try {
+                        syncSettings.setSmallFileBatchSize(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --small-file-batch-size: " + args[i + 1], nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--upload-buffer-size")) {
+                    try {
+                        syncSettings.setUploadBufferSize(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --upload-buffer-size: " + args[i + 1], nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--segmented-upload-threshold")) {
+                    try {
+                        long threshold = Long.parseLong(args[i + 1]);
+                        if (threshold < 0) {
+                            throw new IllegalArgumentException(
+                                    "Invalid --segmented-upload-threshold value. Expects a non-negative integer value. Found: "
+                                            + threshold);
+                        }
+                        syncSettings.setSegmentedUploadThreshold(threshold);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --segmented-upload-threshold: " + args[i + 1], nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--upload-segment-size")) {
+                    try {
+                        syncSettings.setUploadSegmentSize(Long.parseLong(args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --upload-segment-size: " + args[i + 1], nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--bandwidth-limit")) {
+                    try {
+                        syncSettings.setBandwidthLimit(parseBandwidth("--bandwidth-limit", args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --bandwidth-limit: " + args[i + 1], nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--per-worker-bandwidth-limit")) {
+                    try {
+                        syncSettings.setPerWorkerBandwidthLimit(
+                                parseBandwidth("--per-worker-bandwidth-limit", args[i + 1]));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid --per-worker-bandwidth-limit: " + args[i + 1],
+                                nfe);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--dedup")) {
+                    syncSettings.setDedup(true);
+                    i++;
+                } else if (args[i].equals("--digests")) {
+                    try {
+                        syncSettings.setDigestTypes(MultiDigest.parseTypes(args[i + 1]));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid --digests: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--spill-to-disk")) {
+                    syncSettings.setSpillToDisk(true);
+                    i++;
                 } else if (args[i].equals("--notification-emails")) {
                     String[] emails = args[i + 1].indexOf(',') != -1 ? args[i + 1].split(",")
                             : new String[] { args[i + 1] };
@@ -157,6 +324,23 @@ public class MFSyncCLI {
                                 nfe);
                     }
                     i += 2;
+                } else if (args[i].equals("--daemon-watch")) {
+                    syncSettings.setDaemonWatch(true);
+                    i++;
+                } else if (args[i].equals("--daemon-full-scan-interval")) {
+                    try {
+                        long fullScanInterval = Long.parseLong(args[i + 1]);
+                        if (fullScanInterval < 0) {
+                            throw new IllegalArgumentException("Invalid --daemon-full-scan-interval: " + args[i + 1]);
+                        }
+                        syncSettings.setDaemonFullScanInterval(fullScanInterval);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException(
+                                "Invalid --daemon-full-scan-interval value. Expects a positive integer value. Found: "
+                                        + args[i + 1],
+                                nfe);
+                    }
+                    i += 2;
                 } else if (args[i].equals("--log-dir")) {
                     Path logDir = Paths.get(args[i + 1]);
                     if (Files.exists(logDir) && Files.isDirectory(logDir)) {
@@ -225,6 +409,15 @@ public class MFSyncCLI {
         }
     }
 
+    private static long parseBandwidth(String option, String value) {
+        long bytesPerSecond = Long.parseLong(value);
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid " + option + " value. Expects a non-negative integer value. Found: " + bytesPerSecond);
+        }
+        return bytesPerSecond;
+    }
+
     private static void printUsage() {
         // @formatter:off
         System.out.println();
@@ -243,15 +436,38 @@ public class MFSyncCLI {
         System.out.println("    --mf.token <token>                   The Mediaflux secure identity token.");
         System.out.println("    --conf <config-file>                 The configuration file. Defaults to '~/.mediaflux/mf-sync.properties'");
         System.out.println("    --number-of-workers <n>              Number of worker threads to upload the files. If not specified, defaults to 1.");
-        System.out.println("    --max-checkers <n>                   Maximum number of checker threads to compare local files with Mediaflux assets. If not specified, defaults to 1."); 
-        System.out.println("    --check-batch-size <n>               Batch size for comparing files with Mediaflux assets. Defaults to 100, which checks 100 files within single service request."); 
+        System.out.println("    --max-number-of-workers <n>          If specified, the number of active workers is adapted at runtime to the measured throughput and server latency, starting from --number-of-workers, up to the specified number. Defaults to 0 (fixed number of workers).");
+        System.out.println("    --min-number-of-workers <n>          The minimum number of active workers when it is adapted. Defaults to 1.");
+        System.out.println("    --number-of-scanners <n>             Number of threads to scan the source directories concurrently. Increase it on network file systems with high stat latency. Defaults to 4.");
+        System.out.println("    --max-checkers <n>                   Maximum number of checker threads to compare local files with Mediaflux assets concurrently (up to 64). If not specified, defaults to 4."); 
+        System.out.println("    --check-batch-size <n>               Initial batch size for comparing files with Mediaflux assets. Defaults to 100, which checks 100 files within single service request. The batch size is adapted to the response time of the checks unless --fixed-check-batch-size is specified.");
+        System.out.println("    --fixed-check-batch-size             Do not adapt the check batch size.");
+        System.out.println("    --check-linger <millisecs>           The time in milliseconds to wait for a batch of files to fill up before checking the files collected so far. Defaults to 1000. Set to 0 to only check the partial batches at the end of the scan."); 
         System.out.println("    --exclude-empty-folder               Exclude empty folders. In other words, upload files only.");
         System.out.println("    --csum-check                         Validate CRC32 checksum after uploading. It will slow down the proccess.");    
+        System.out.println("    --local-index                        Keep a local index of synced files in the log directory. Files not changed since they were last synced are skipped without checking with Mediaflux.");
+        System.out.println("    --csum-compare                       Compare the CRC32 checksums of the files with the asset content checksums, instead of the modification times. The checksums are cached in the log directory, so that each file is only read again when its size or modification time changes.");
+        System.out.println("    --csum-cache-xattr                   Also store the cached checksums in a user extended attribute (user.mf-sync.crc32) of the files, where supported.");
+        System.out.println("    --max-queue-size <n>                 The maximum number of tasks waiting to be checked or uploaded. The scanners are blocked when the queue is full. Defaults to 0, which means it is derived from the maximum heap size.");
+        System.out.println("    --spill-to-disk                      Spill the files found by the scanners to a temporary file in the log directory when the queue is full, instead of blocking the scanners. The spilled files are checked when the scan completes.");
+        System.out.println("    --quiescence-period <millisecs>      Only upload the files whose size and mtime have not changed for the specified time in milliseconds, so that the files still being written are not uploaded repeatedly. Defaults to 0, which means the files are uploaded as soon as they are found.");
+        System.out.println("    --prefetch-limit <n>                 Prefetch the assets in the destination namespace at the start of a full scan if there are no more than the specified number of them (and no more than 4 times the files checked by the last full scan of the job), and compare the files with them instead of checking with Mediaflux in batches. Defaults to 1000000. Set to 0 to disable.");
+        System.out.println("    --small-file-threshold <bytes>       Upload the files not larger than the specified size (in bytes) in batches, in a single request per batch. Defaults to 65536. Set to 0 to upload the files one by one.");
+        System.out.println("    --small-file-batch-size <n>          Maximum number of small files to upload in a single request. Defaults to 100.");
+        System.out.println("    --upload-buffer-size <bytes>         The size (in bytes) of the buffers used to read the files to upload. Defaults to 1048576 (1MB). Must be between 8192 and 67108864.");
+        System.out.println("    --segmented-upload-threshold <bytes> Upload the files not smaller than the specified size (in bytes) in segments, which are resumed from the last acknowledged segment if the upload is interrupted (even in the next run). Requires the I/O job services (server.io.*) on the Mediaflux server, otherwise the files are uploaded in a single request. The size of the committed content is always verified (and its CRC32 checksum with --csum-check). Defaults to 0 (disabled).");
+        System.out.println("    --upload-segment-size <bytes>        The size (in bytes) of the segments of the segmented uploads. Defaults to 268435456 (256MB). Must be at least 1048576.");
+        System.out.println("    --bandwidth-limit <bytes/s>          The bandwidth limit (in bytes per second) of the uploads, shared by the workers. Defaults to 0 (unlimited). Time windows with different limits can be specified in the configuration file. In daemon mode, it can be changed at runtime with the 'bandwidth <bytes/s>' command (or restored with 'bandwidth auto').");
+        System.out.println("    --per-worker-bandwidth-limit <bytes/s> The bandwidth limit (in bytes per second) of each worker. Defaults to 0 (unlimited).");
+        System.out.println("    --dedup                              Deduplicate the files (not smaller than 1MB): the files identical to a file already uploaded in this run are copied on the server instead of uploaded. Only the files of the same size as an uploaded file are hashed.");
+        System.out.println("    --digests <types>                    The (comma-separated) checksums to compute while uploading the files, and to log when the uploads complete, for integrity audits. Supported types: crc32, crc32c, md5, sha1, sha256. The files are read only once.");
         System.out.println("    --notification-emails  <a@b.org>     The (comma-separated) email addresses for notification recipients.");
         System.out.println("    --log-dir <logging-directory>        The directory for log files. If not specified, defaults to current work directory.");
         System.out.println("    --daemon                             Runs as a daemon to periodically scan the changes and upload.");
         System.out.println("    --daemon-port <port>                 The listening port of the daemon. Defaults to 9761. It accepts connection from localhost only. It responds to 'status' and 'stop' requests. If 'status', it responds with the current application status; If 'stop', it will shutdown the daemon and exit the application. You can use netcat to send command to the daemon listener port, e.g 'echo status | nc localhost 9761' or to stop the daemon 'echo stop | nc localhost 9761'");
         System.out.println("    --daemon-scan-interval <millisecs>   The time interval in milliseconds between scans. Defaults to 60000 (1 minute). It only starts scanning when the daemon is idle. In other words, it skips scans if previous scan or upload has not completed. "); 
+        System.out.println("    --daemon-full-scan-interval <millisecs> The time interval in milliseconds between full scans. Defaults to 0, which means every scan is a full scan. If it is greater than 0, the scans in between only re-list the directories whose mtime has changed since the previous scan, and visit the files in them. The directories of the files that failed to check or upload are re-listed in the next scan. Files modified in place (without adding, removing or renaming directory entries), and assets removed on the server side, are only detected by the full scans.");
+        System.out.println("    --daemon-watch                       Watch the file system events to upload the changes as they happen (within seconds), in addition to the periodic scans, which still run to reconcile. A longer --daemon-scan-interval can be used with it. On Linux, the number of directories can be watched is limited by fs.inotify.max_user_watches.");
         
         System.out.println();
         System.out.println("POSITIONAL ARGUMENTS:");        
@@ -36,12 +36,22 @@ public class MFSyncDaemonClientCLI {
                             i++;
                             continue;
                         }
+                        if ("bandwidth".equalsIgnoreCase(args[i])) {
+                            // bandwidth [<bytes/s>|auto [<per-worker-bytes/s>]]
+                            StringBuilder sb = new StringBuilder(args[i]);
+                            i++;
+                            for (int j = 0; j < 2 && i < args.length && !args[i].startsWith("-"); j++, i++) {
+                                sb.append(' ').append(args[i]);
+                            }
+                            command = sb.toString();
+                            continue;
+                        }
                     }
                     throw new IllegalArgumentException("Invalid arguments.");
                 }
             }
             if (command == null) {
-                throw new IllegalArgumentException("Invalid arguments. Missing command: stop or status.");
+                throw new IllegalArgumentException("Invalid arguments. Missing command: stop, status or bandwidth.");
             }
         } catch (Throwable e) {
             e.printStackTrace();
@@ -71,7 +81,7 @@ public class MFSyncDaemonClientCLI {
 
     public static void printUsage() {
         System.out.println();
-        System.out.println(String.format("Usage: %s [-p port] <stop|status>", PROG));
+        System.out.println(String.format("Usage: %s [-p port] <stop|status|bandwidth [<bytes/s>|auto [<per-worker-bytes/s>]]>", PROG));
         System.out.println();
         System.out.println("Options:");
         System.out.println("    -h | --help               Prints help.");
@@ -81,6 +91,8 @@ public class MFSyncDaemonClientCLI {
         System.out.println("Examples:");
         System.out.println(String.format("    %s stop           Stops the mf-sync daemon.", PROG));
         System.out.println(String.format("    %s status         Prints the status of mf-sync daemon.", PROG));
+        System.out.println(String.format("    %s bandwidth 10000000  Limits the bandwidth of mf-sync daemon to 10MB/s.", PROG));
+        System.out.println(String.format("    %s bandwidth auto Restores the bandwidth limits of the configuration.", PROG));
     }
 
 }
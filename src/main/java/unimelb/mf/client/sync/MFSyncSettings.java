@@ -8,9 +8,11 @@ import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -18,8 +20,13 @@ import java.util.Set;
 import arc.xml.XmlDoc;
 import unimelb.mf.client.project.VicNodeProject;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.sync.task.SegmentedUpload;
 import unimelb.mf.client.util.AssetNamespaceUtils;
-import unimelb.mf.client.util.PathPattern;
+import unimelb.mf.client.util.BandwidthLimiter;
+import unimelb.mf.client.util.BufferPool;
+import unimelb.mf.client.util.ChecksumUtils.ChecksumType;
+import unimelb.mf.client.util.MultiDigest;
+import unimelb.mf.client.util.PathPatternSet;
 import unimelb.mf.client.util.PathUtils;
 
 /**
@@ -40,10 +47,16 @@ public class MFSyncSettings {
 
         private Set<String> _pathExcludes;
         private Set<String> _pathIncludes;
+        private PathPatternSet _excludeMatcher;
+        private PathPatternSet _includeMatcher;
         private Path _dir;
         private String _ns;
         private int _projectNumber;
         private boolean _projectIsParent = false;
+        private int _weight = 1;
+        private int _archiveMinFiles = 0;
+        private long _archiveMaxFileSize = MFSync.DEFAULT_ARCHIVE_MAX_FILE_SIZE;
+        private int _archiveMaxFiles = MFSync.DEFAULT_ARCHIVE_MAX_FILES;
 
         public Job(Type type, Path dir, String ns, boolean isParentNS, Collection<String> includes,
                 Collection<String> excludes) {
@@ -74,6 +87,7 @@ public class MFSyncSettings {
                 _pathExcludes = new LinkedHashSet<String>();
                 _pathExcludes.addAll(excludes);
             }
+            compilePatterns();
         }
 
         public Job(XmlDoc.Element je) throws Throwable {
@@ -88,6 +102,16 @@ public class MFSyncSettings {
             }
             _projectNumber = je.intValue("project", 0);
             _projectIsParent = je.booleanValue("project/@parent", false);
+            _weight = je.intValue("@weight", 1);
+            if (_weight < 1) {
+                System.err.println("Invalid job weight: " + _weight + ". Fall back to 1.");
+                _weight = 1;
+            }
+            if (je.elementExists("archive")) {
+                setArchive(je.intValue("archive/@minFiles", MFSync.DEFAULT_ARCHIVE_MIN_FILES),
+                        je.longValue("archive/@maxFileSize", MFSync.DEFAULT_ARCHIVE_MAX_FILE_SIZE),
+                        je.intValue("archive/@maxFiles", MFSync.DEFAULT_ARCHIVE_MAX_FILES));
+            }
             if (je.elementExists("include")) {
                 _pathIncludes = new LinkedHashSet<String>();
                 _pathIncludes.addAll(je.values("include"));
@@ -96,6 +120,12 @@ public class MFSyncSettings {
                 _pathExcludes = new LinkedHashSet<String>();
                 _pathExcludes.addAll(je.values("exclude"));
             }
+            compilePatterns();
+        }
+
+        private void compilePatterns() {
+            _includeMatcher = _pathIncludes == null ? null : new PathPatternSet(_pathIncludes);
+            _excludeMatcher = _pathExcludes == null ? null : new PathPatternSet(_pathExcludes);
         }
 
         public Type type() {
@@ -126,6 +156,59 @@ public class MFSyncSettings {
             return _projectIsParent;
         }
 
+        public Job setWeight(int weight) {
+            _weight = weight;
+            return this;
+        }
+
+        /**
+         * @return the share of the workers the job gets (relative to the
+         *         weights of the other jobs) when the jobs compete for the
+         *         workers. Defaults to 1.
+         */
+        public int weight() {
+            return _weight;
+        }
+
+        /**
+         * Uploads the tiny files of the job as zip archives (extracted by the
+         * server), when there are enough of them queued.
+         *
+         * @param minFiles
+         *            the minimum number of files in an archive. If it is 0,
+         *            archive upload is disabled.
+         * @param maxFileSize
+         *            the maximum size (in bytes) of the files in an archive.
+         * @param maxFiles
+         *            the maximum number of files in an archive.
+         */
+        public Job setArchive(int minFiles, long maxFileSize, int maxFiles) {
+            if (minFiles < 0 || maxFileSize < 0 || maxFiles < minFiles) {
+                throw new IllegalArgumentException("Invalid archive settings: min-files=" + minFiles
+                        + ", max-file-size=" + maxFileSize + ", max-files=" + maxFiles);
+            }
+            _archiveMinFiles = minFiles;
+            _archiveMaxFileSize = maxFileSize;
+            _archiveMaxFiles = maxFiles;
+            return this;
+        }
+
+        public boolean archiveEnabled() {
+            return _archiveMinFiles > 0;
+        }
+
+        public int archiveMinFiles() {
+            return _archiveMinFiles;
+        }
+
+        public long archiveMaxFileSize() {
+            return _archiveMaxFileSize;
+        }
+
+        public int archiveMaxFiles() {
+            return _archiveMaxFiles;
+        }
+
         public Set<String> excludes() {
             return _pathExcludes != null ? Collections.unmodifiableSet(_pathExcludes) : null;
         }
@@ -138,35 +221,53 @@ public class MFSyncSettings {
             if (!PathUtils.isOrIsDescendant(path, _dir)) {
                 return false;
             }
-            boolean haveIncludePatterns = _pathIncludes != null && !_pathIncludes.isEmpty();
-            boolean haveExcludePatterns = _pathExcludes != null && !_pathExcludes.isEmpty();
+            boolean haveIncludePatterns = _includeMatcher != null && !_includeMatcher.isEmpty();
+            boolean haveExcludePatterns = _excludeMatcher != null && !_excludeMatcher.isEmpty();
             if (!haveIncludePatterns && !haveExcludePatterns) {
                 return true;
             }
             String relativePath = PathUtils.relativePath(_dir, path);
             if (haveIncludePatterns) {
                 if (haveExcludePatterns) {
-                    return matchesAny(relativePath, _pathIncludes) && !matchesAny(relativePath, _pathExcludes);
+                    return _includeMatcher.matchesAny(relativePath) && !_excludeMatcher.matchesAny(relativePath);
                 } else {
-                    return matchesAny(relativePath, _pathIncludes);
+                    return _includeMatcher.matchesAny(relativePath);
                 }
             } else {
                 if (haveExcludePatterns) {
-                    return !matchesAny(relativePath, _pathExcludes);
+                    return !_excludeMatcher.matchesAny(relativePath);
                 } else {
                     return true;
                 }
             }
         }
 
-        static boolean matchesAny(String relativePath, Collection<String> patterns) {
-            for (String pattern : patterns) {
-                String regex = PathPattern.toRegEx(pattern);
-                if (relativePath.matches(regex)) {
-                    return true;
-                }
+        /**
+         * Check if any descendant of the directory may match the include and
+         * exclude patterns. If it returns false, the directory's sub-tree can
+         * be skipped when scanning.
+         * 
+         * @param dir
+         *            the directory.
+         * @return
+         */
+        public boolean mayMatchDescendants(Path dir) {
+            if (!PathUtils.isOrIsDescendant(dir, _dir)) {
+                return false;
             }
-            return false;
+            boolean haveIncludePatterns = _includeMatcher != null && !_includeMatcher.isEmpty();
+            boolean haveExcludePatterns = _excludeMatcher != null && !_excludeMatcher.isEmpty();
+            if (!haveIncludePatterns && !haveExcludePatterns) {
+                return true;
+            }
+            String relativePath = PathUtils.relativePath(_dir, dir);
+            if (haveExcludePatterns && _excludeMatcher.matchesAllDescendants(relativePath)) {
+                return false;
+            }
+            if (haveIncludePatterns && !_includeMatcher.mayMatchDescendants(relativePath)) {
+                return false;
+            }
+            return true;
         }
 
         public boolean matchPath(File path) {
@@ -192,13 +293,37 @@ public class MFSyncSettings {
     private List<Job> _jobs;
 
     private int _numberOfWorkers = 1;
+    private int _minNumberOfWorkers = 0;
+    private int _maxNumberOfWorkers = 0;
+    private int _numberOfScanners = MFSync.DEFAULT_NUMBER_OF_SCANNERS;
     private int _maxNumberOfCheckers = 4;
     private int _checkBatchSize = 100;
+    private boolean _adaptiveCheckBatchSize = true;
+    private long _checkLinger = MFSync.DEFAULT_CHECK_LINGER;
     private boolean _daemonEnabled = false;
     private int _daemonListenerPort = MFSync.DEFAULT_DAEMON_LISTENER_PORT;
     private int _daemonScanInterval = MFSync.DEFAULT_DAEMON_SCAN_INTERVAL;
+    private long _daemonFullScanInterval = MFSync.DEFAULT_DAEMON_FULL_SCAN_INTERVAL;
+    private boolean _daemonWatch = false;
     private boolean _csumCheck = false;
     private boolean _excludeEmptyFolder = false;
+    private boolean _localIndex = false;
+    private boolean _csumCompare = false;
+    private boolean _csumCacheXattr = false;
+    private int _maxQueueSize = 0;
+    private boolean _spillToDisk = false;
+    private long _quiescencePeriod = MFSync.DEFAULT_QUIESCENCE_PERIOD;
+    private long _prefetchLimit = MFSync.DEFAULT_PREFETCH_LIMIT;
+    private long _smallFileThreshold = MFSync.DEFAULT_SMALL_FILE_THRESHOLD;
+    private int _smallFileBatchSize = MFSync.DEFAULT_SMALL_FILE_BATCH_SIZE;
+    private int _uploadBufferSize = MFSync.DEFAULT_UPLOAD_BUFFER_SIZE;
+    private Set<ChecksumType> _digestTypes = null;
+    private long _segmentedUploadThreshold = MFSync.DEFAULT_SEGMENTED_UPLOAD_THRESHOLD;
+    private long _uploadSegmentSize = MFSync.DEFAULT_UPLOAD_SEGMENT_SIZE;
+    private long _bandwidthLimit = 0L;
+    private long _perWorkerBandwidthLimit = 0L;
+    private boolean _dedup = false;
+    private List<BandwidthLimiter.Window> _bandwidthWindows = new ArrayList<BandwidthLimiter.Window>();
     private Path _logDirectory = MFSync.DEFAULT_LOG_DIR;
     private Set<String> _emailAddresses = null;
 
@@ -233,26 +358,139 @@ public class MFSyncSettings {
                     "No sync element is found in the properties XML element. Invalid/Incomplete configuration file.");
         }
         _numberOfWorkers = se.intValue("settings/numberOfWorkers", 1);
+        _minNumberOfWorkers = se.intValue("settings/minNumberOfWorkers", 0);
+        _maxNumberOfWorkers = se.intValue("settings/maxNumberOfWorkers", 0);
+        if (_minNumberOfWorkers < 0 || _maxNumberOfWorkers < 0) {
+            System.err.println("Invalid minNumberOfWorkers/maxNumberOfWorkers: " + _minNumberOfWorkers + "/"
+                    + _maxNumberOfWorkers + ". Fall back to 0 (fixed number of workers).");
+            _minNumberOfWorkers = 0;
+            _maxNumberOfWorkers = 0;
+        }
+
+        _numberOfScanners = se.intValue("settings/numberOfScanners", MFSync.DEFAULT_NUMBER_OF_SCANNERS);
+        if (_numberOfScanners < 1 || _numberOfScanners > MFSync.MAX_NUMBER_OF_SCANNERS) {
+            System.err.println("Invalid numberOfScanners: " + _numberOfScanners + ". Fall back to "
+                    + MFSync.DEFAULT_NUMBER_OF_SCANNERS + ".");
+            _numberOfScanners = MFSync.DEFAULT_NUMBER_OF_SCANNERS;
+        }
 
         _maxNumberOfCheckers = se.intValue("settings/maxNumberOfCheckers", MFSync.DEFAULT_MAX_NUMBER_OF_CHECKERS);
-        if (_maxNumberOfCheckers < 1 || _maxNumberOfCheckers > 8) {
+        if (_maxNumberOfCheckers < 1 || _maxNumberOfCheckers > MFSync.MAX_NUMBER_OF_CHECKERS) {
             System.err.println("Invalid maxNumberOfCheckers: " + _maxNumberOfCheckers + ". Fall back to "
                     + MFSync.DEFAULT_MAX_NUMBER_OF_CHECKERS + ".");
             _maxNumberOfCheckers = MFSync.DEFAULT_MAX_NUMBER_OF_CHECKERS;
         }
 
         _checkBatchSize = se.intValue("settings/checkBatchSize", MFSync.DEFAULT_CHECK_BATCH_SIZE);
-        if (_checkBatchSize < 1 || _checkBatchSize > 10000) {
+        if (_checkBatchSize < 1 || _checkBatchSize > MFSync.MAX_CHECK_BATCH_SIZE) {
             System.err.println("Invalid checkBatchSize: " + _checkBatchSize + ". Fall back to "
                     + MFSync.DEFAULT_CHECK_BATCH_SIZE + ".");
             _checkBatchSize = MFSync.DEFAULT_CHECK_BATCH_SIZE;
         }
+        _adaptiveCheckBatchSize = se.booleanValue("settings/adaptiveCheckBatchSize", true);
+        _checkLinger = se.longValue("settings/checkLinger", MFSync.DEFAULT_CHECK_LINGER);
+        if (_checkLinger < 0) {
+            System.err.println(
+                    "Invalid checkLinger: " + _checkLinger + ". Fall back to " + MFSync.DEFAULT_CHECK_LINGER + ".");
+            _checkLinger = MFSync.DEFAULT_CHECK_LINGER;
+        }
 
         _daemonEnabled = se.booleanValue("settings/daemon/@enabled", false);
         _daemonListenerPort = se.intValue("settings/daemon/listenerPort", MFSync.DEFAULT_DAEMON_LISTENER_PORT);
         _daemonScanInterval = se.intValue("settings/daemon/scanInterval", MFSync.DEFAULT_DAEMON_SCAN_INTERVAL);
+        _daemonFullScanInterval = se.longValue("settings/daemon/fullScanInterval",
+                MFSync.DEFAULT_DAEMON_FULL_SCAN_INTERVAL);
+        _daemonWatch = se.booleanValue("settings/daemon/watch", false);
+        if (_daemonFullScanInterval < 0) {
+            System.err.println("Invalid daemon/fullScanInterval: " + _daemonFullScanInterval + ". Fall back to "
+                    + MFSync.DEFAULT_DAEMON_FULL_SCAN_INTERVAL + ".");
+            _daemonFullScanInterval = MFSync.DEFAULT_DAEMON_FULL_SCAN_INTERVAL;
+        }
         _csumCheck = se.booleanValue("settings/csumCheck", false);
         _excludeEmptyFolder = se.booleanValue("settings/excludeEmptyFolder", false);
+        _localIndex = se.booleanValue("settings/localIndex", false);
+        _csumCompare = se.booleanValue("settings/csumCompare", false);
+        _csumCacheXattr = se.booleanValue("settings/csumCacheXattr", false);
+        _maxQueueSize = se.intValue("settings/maxQueueSize", 0);
+        if (_maxQueueSize < 0) {
+            System.err.println("Invalid maxQueueSize: " + _maxQueueSize + ". Fall back to 0 (auto).");
+            _maxQueueSize = 0;
+        }
+        _spillToDisk = se.booleanValue("settings/spillToDisk", false);
+        _quiescencePeriod = se.longValue("settings/quiescencePeriod", MFSync.DEFAULT_QUIESCENCE_PERIOD);
+        if (_quiescencePeriod < 0) {
+            System.err.println("Invalid quiescencePeriod: " + _quiescencePeriod + ". Fall back to "
+                    + MFSync.DEFAULT_QUIESCENCE_PERIOD + ".");
+            _quiescencePeriod = MFSync.DEFAULT_QUIESCENCE_PERIOD;
+        }
+        _prefetchLimit = se.longValue("settings/prefetchLimit", MFSync.DEFAULT_PREFETCH_LIMIT);
+        if (_prefetchLimit < 0) {
+            System.err.println("Invalid prefetchLimit: " + _prefetchLimit + ". Fall back to "
+                    + MFSync.DEFAULT_PREFETCH_LIMIT + ".");
+            _prefetchLimit = MFSync.DEFAULT_PREFETCH_LIMIT;
+        }
+        _smallFileThreshold = se.longValue("settings/smallFileThreshold", MFSync.DEFAULT_SMALL_FILE_THRESHOLD);
+        if (_smallFileThreshold < 0) {
+            System.err.println("Invalid smallFileThreshold: " + _smallFileThreshold + ". Fall back to "
+                    + MFSync.DEFAULT_SMALL_FILE_THRESHOLD + ".");
+            _smallFileThreshold = MFSync.DEFAULT_SMALL_FILE_THRESHOLD;
+        }
+        _smallFileBatchSize = se.intValue("settings/smallFileBatchSize", MFSync.DEFAULT_SMALL_FILE_BATCH_SIZE);
+        if (_smallFileBatchSize < 1 || _smallFileBatchSize > MFSync.MAX_SMALL_FILE_BATCH_SIZE) {
+            System.err.println("Invalid smallFileBatchSize: " + _smallFileBatchSize + ". Fall back to "
+                    + MFSync.DEFAULT_SMALL_FILE_BATCH_SIZE + ".");
+            _smallFileBatchSize = MFSync.DEFAULT_SMALL_FILE_BATCH_SIZE;
+        }
+        _uploadBufferSize = se.intValue("settings/uploadBufferSize", MFSync.DEFAULT_UPLOAD_BUFFER_SIZE);
+        if (_uploadBufferSize < BufferPool.MIN_BUFFER_SIZE || _uploadBufferSize > BufferPool.MAX_BUFFER_SIZE) {
+            System.err.println("Invalid uploadBufferSize: " + _uploadBufferSize + ". Fall back to "
+                    + MFSync.DEFAULT_UPLOAD_BUFFER_SIZE + ".");
+            _uploadBufferSize = MFSync.DEFAULT_UPLOAD_BUFFER_SIZE;
+        }
+        _segmentedUploadThreshold = se.longValue("settings/segmentedUploadThreshold",
+                MFSync.DEFAULT_SEGMENTED_UPLOAD_THRESHOLD);
+        if (_segmentedUploadThreshold < 0) {
+            System.err.println("Invalid segmentedUploadThreshold: " + _segmentedUploadThreshold + ". Fall back to "
+                    + MFSync.DEFAULT_SEGMENTED_UPLOAD_THRESHOLD + ".");
+            _segmentedUploadThreshold = MFSync.DEFAULT_SEGMENTED_UPLOAD_THRESHOLD;
+        }
+        _uploadSegmentSize = se.longValue("settings/uploadSegmentSize", MFSync.DEFAULT_UPLOAD_SEGMENT_SIZE);
+        if (_uploadSegmentSize < SegmentedUpload.MIN_SEGMENT_SIZE) {
+            System.err.println("Invalid uploadSegmentSize: " + _uploadSegmentSize + ". Fall back to "
+                    + MFSync.DEFAULT_UPLOAD_SEGMENT_SIZE + ".");
+            _uploadSegmentSize = MFSync.DEFAULT_UPLOAD_SEGMENT_SIZE;
+        }
+        _bandwidthLimit = se.longValue("settings/bandwidthLimit", 0L);
+        if (_bandwidthLimit < 0) {
+            System.err.println("Invalid bandwidthLimit: " + _bandwidthLimit + ". Fall back to 0 (unlimited).");
+            _bandwidthLimit = 0L;
+        }
+        _dedup = se.booleanValue("settings/dedup", false);
+        _perWorkerBandwidthLimit = se.longValue("settings/perWorkerBandwidthLimit", 0L);
+        if (_perWorkerBandwidthLimit < 0) {
+            System.err.println(
+                    "Invalid perWorkerBandwidthLimit: " + _perWorkerBandwidthLimit + ". Fall back to 0 (unlimited).");
+            _perWorkerBandwidthLimit = 0L;
+        }
+        List<XmlDoc.Element> bwes = se.elements("settings/bandwidthWindow");
+        if (bwes != null) {
+            for (XmlDoc.Element bwe : bwes) {
+                try {
+                    addBandwidthWindow(new BandwidthLimiter.Window(LocalTime.parse(bwe.value("@start")),
+                            LocalTime.parse(bwe.value("@end")),
+                            BandwidthLimiter.Window.parseDays(bwe.value("@days")), Long.parseLong(bwe.value().trim())));
+                } catch (Throwable e) {
+                    System.err.println("Invalid bandwidthWindow: " + bwe + ". Ignored.");
+                }
+            }
+        }
+        if (se.elementExists("settings/digests")) {
+            try {
+                setDigestTypes(MultiDigest.parseTypes(se.value("settings/digests")));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid digests: " + se.value("settings/digests") + ". Ignored.");
+            }
+        }
         _logDirectory = Paths.get(se.stringValue("settings/logDirectory", System.getProperty("user.dir")));
         setNotificationEmailAddresses(se.values("settings/notification/email"));
         List<XmlDoc.Element> jes = se.elements("job");
@@ -327,6 +565,61 @@ public class MFSyncSettings {
         return _numberOfWorkers;
     }
 
+    public MFSyncSettings setMinNumberOfWorkers(int nbWorkers) {
+        if (nbWorkers >= 0) {
+            _minNumberOfWorkers = nbWorkers;
+        }
+        return this;
+    }
+
+    public int minNumberOfWorkers() {
+        return _minNumberOfWorkers;
+    }
+
+    /**
+     * Sets the maximum number of workers. If it is greater than 0, the number
+     * of active workers is adapted at runtime (starting from
+     * {@link #numberOfWorkers()}), between the minimum and the maximum number
+     * of workers.
+     */
+    public MFSyncSettings setMaxNumberOfWorkers(int nbWorkers) {
+        if (nbWorkers >= 0) {
+            _maxNumberOfWorkers = nbWorkers;
+        }
+        return this;
+    }
+
+    public int maxNumberOfWorkers() {
+        return _maxNumberOfWorkers;
+    }
+
+    public boolean adaptiveNumberOfWorkers() {
+        return _maxNumberOfWorkers > 0;
+    }
+
+    /**
+     * @return the number of worker (consumer) threads to start.
+     */
+    public int numberOfWorkerThreads() {
+        return adaptiveNumberOfWorkers() ? Math.max(_numberOfWorkers, _maxNumberOfWorkers) : _numberOfWorkers;
+    }
+
+    public MFSyncSettings setNumberOfScanners(int nbScanners) {
+        if (nbScanners >= 1 && nbScanners <= MFSync.MAX_NUMBER_OF_SCANNERS) {
+            _numberOfScanners = nbScanners;
+        } else {
+            _numberOfScanners = MFSync.DEFAULT_NUMBER_OF_SCANNERS;
+        }
+        return this;
+    }
+
+    /**
+     * @return number of threads to scan the source directories concurrently.
+     */
+    public int numberOfScanners() {
+        return _numberOfScanners;
+    }
+
     public MFSyncSettings setWatchDaemon(boolean watchDaemon) {
         _daemonEnabled = watchDaemon;
         return this;
@@ -354,8 +647,42 @@ public class MFSyncSettings {
         return _daemonScanInterval;
     }
 
+    public MFSyncSettings setDaemonFullScanInterval(long millisecs) {
+        _daemonFullScanInterval = millisecs;
+        return this;
+    }
+
+    /**
+     * The time interval in milliseconds between full scans in daemon mode. The
+     * scans in between only re-list the directories that have changed since
+     * the previous scan. If it is 0, every scan is a full scan.
+     *
+     * @return
+     */
+    public long daemonFullScanInterval() {
+        return _daemonFullScanInterval;
+    }
+
+    public MFSyncSettings setDaemonWatch(boolean daemonWatch) {
+        _daemonWatch = daemonWatch;
+        return this;
+    }
+
+    /**
+     * @return true if the daemon watches the file system events to upload the
+     *         changes as they happen. The periodic scans still run to
+     *         reconcile.
+     */
+    public boolean daemonWatch() {
+        return _daemonWatch;
+    }
+
+    public boolean daemonIncrementalScanEnabled() {
+        return _daemonEnabled && _daemonFullScanInterval > 0;
+    }
+
     public MFSyncSettings setMaxNumberOfCheckers(int maxNumberOfCheckers) {
-        if (maxNumberOfCheckers >= 1 && maxNumberOfCheckers <= 8) {
+        if (maxNumberOfCheckers >= 1 && maxNumberOfCheckers <= MFSync.MAX_NUMBER_OF_CHECKERS) {
             _maxNumberOfCheckers = maxNumberOfCheckers;
         } else {
             _maxNumberOfCheckers = MFSync.DEFAULT_MAX_NUMBER_OF_CHECKERS;
@@ -368,7 +695,7 @@ public class MFSyncSettings {
     }
 
     public MFSyncSettings setCheckBatchSize(int checkBatchSize) {
-        if (checkBatchSize >= 1 && checkBatchSize <= 10000) {
+        if (checkBatchSize >= 1 && checkBatchSize <= MFSync.MAX_CHECK_BATCH_SIZE) {
             _checkBatchSize = checkBatchSize;
         } else {
             _checkBatchSize = MFSync.DEFAULT_CHECK_BATCH_SIZE;
@@ -376,10 +703,41 @@ public class MFSyncSettings {
         return this;
     }
 
+    /**
+     * @return the (initial, if adaptive) number of files to check with
+     *         Mediaflux in a single service request.
+     */
     public int checkBatchSize() {
         return _checkBatchSize;
     }
 
+    public MFSyncSettings setAdaptiveCheckBatchSize(boolean adaptiveCheckBatchSize) {
+        _adaptiveCheckBatchSize = adaptiveCheckBatchSize;
+        return this;
+    }
+
+    /**
+     * @return true if the check batch size is adapted to the measured
+     *         round-trip time of the checks.
+     */
+    public boolean adaptiveCheckBatchSize() {
+        return _adaptiveCheckBatchSize;
+    }
+
+    public MFSyncSettings setCheckLinger(long millisecs) {
+        _checkLinger = millisecs;
+        return this;
+    }
+
+    /**
+     * @return the time in milliseconds a partial batch of files waits before
+     *         it is checked. If it is 0, the partial batches are only checked
+     *         at the end of the scan (or watcher events).
+     */
+    public long checkLinger() {
+        return _checkLinger;
+    }
+
     public MFSyncSettings setCsumCheck(boolean csumCheck) {
         _csumCheck = csumCheck;
         return this;
@@ -398,6 +756,248 @@ public class MFSyncSettings {
         return _excludeEmptyFolder;
     }
 
+    public MFSyncSettings setLocalIndex(boolean localIndex) {
+        _localIndex = localIndex;
+        return this;
+    }
+
+    /**
+     * @return true if the local sync state index is used to skip the files
+     *         that have not changed since they were last synced.
+     */
+    public boolean localIndex() {
+        return _localIndex;
+    }
+
+    public MFSyncSettings setCsumCompare(boolean csumCompare) {
+        _csumCompare = csumCompare;
+        return this;
+    }
+
+    /**
+     * @return true if the CRC32 checksums of the files (cached in the log
+     *         directory) are compared with the asset content checksums,
+     *         instead of the mtimes.
+     */
+    public boolean csumCompare() {
+        return _csumCompare;
+    }
+
+    public MFSyncSettings setCsumCacheXattr(boolean csumCacheXattr) {
+        _csumCacheXattr = csumCacheXattr;
+        return this;
+    }
+
+    /**
+     * @return true if the cached checksums are also stored in the user
+     *         extended attributes of the files.
+     */
+    public boolean csumCacheXattr() {
+        return _csumCacheXattr;
+    }
+
+    public MFSyncSettings setMaxQueueSize(int maxQueueSize) {
+        _maxQueueSize = maxQueueSize;
+        return this;
+    }
+
+    /**
+     * @return the capacity of the task queue. If it is not set (0), it is
+     *         derived from the maximum heap size.
+     */
+    public int maxQueueSize() {
+        if (_maxQueueSize > 0) {
+            return _maxQueueSize;
+        }
+        return MFSync.defaultMaxQueueSize();
+    }
+
+    public MFSyncSettings setSpillToDisk(boolean spillToDisk) {
+        _spillToDisk = spillToDisk;
+        return this;
+    }
+
+    /**
+     * @return true if the files found by the scanners are spilled to a file in
+     *         the log directory when the task queues are full, instead of
+     *         blocking the scanners.
+     */
+    public boolean spillToDisk() {
+        return _spillToDisk;
+    }
+
+    public MFSyncSettings setQuiescencePeriod(long millisecs) {
+        _quiescencePeriod = millisecs;
+        return this;
+    }
+
+    /**
+     * @return the time in milliseconds the size and mtime of a file must have
+     *         been stable for before it is checked and uploaded. If it is 0,
+     *         the files are uploaded as soon as they are found.
+     */
+    public long quiescencePeriod() {
+        return _quiescencePeriod;
+    }
+
+    public MFSyncSettings setPrefetchLimit(long prefetchLimit) {
+        _prefetchLimit = prefetchLimit;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of assets in the destination namespace of a
+     *         job to prefetch at the start of a full scan, so that the files
+     *         are compared with them without checking with Mediaflux. If there
+     *         are more assets (or it is 0), the files are checked in batches.
+     */
+    public long prefetchLimit() {
+        return _prefetchLimit;
+    }
+
+    public MFSyncSettings setSmallFileThreshold(long bytes) {
+        _smallFileThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * @return the maximum size (in bytes) of the files to upload in batches
+     *         (in a single request). If it is 0, the files are uploaded one by
+     *         one.
+     */
+    public long smallFileThreshold() {
+        return _smallFileThreshold;
+    }
+
+    public MFSyncSettings setSmallFileBatchSize(int smallFileBatchSize) {
+        if (smallFileBatchSize >= 1 && smallFileBatchSize <= MFSync.MAX_SMALL_FILE_BATCH_SIZE) {
+            _smallFileBatchSize = smallFileBatchSize;
+        } else {
+            _smallFileBatchSize = MFSync.DEFAULT_SMALL_FILE_BATCH_SIZE;
+        }
+        return this;
+    }
+
+    /**
+     * @return the maximum number of small files to upload in a single request.
+     */
+    public int smallFileBatchSize() {
+        return _smallFileBatchSize;
+    }
+
+    public MFSyncSettings setUploadBufferSize(int bytes) {
+        if (bytes >= BufferPool.MIN_BUFFER_SIZE && bytes <= BufferPool.MAX_BUFFER_SIZE) {
+            _uploadBufferSize = bytes;
+        } else {
+            _uploadBufferSize = MFSync.DEFAULT_UPLOAD_BUFFER_SIZE;
+        }
+        return this;
+    }
+
+    /**
+     * @return the size (in bytes) of the buffers used to read the files to
+     *         upload.
+     */
+    public int uploadBufferSize() {
+        return _uploadBufferSize;
+    }
+
+    public MFSyncSettings setSegmentedUploadThreshold(long bytes) {
+        _segmentedUploadThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * @return the minimum size (in bytes) of the files to upload in segments,
+     *         which can be resumed if interrupted. If it is 0, the files are
+     *         uploaded in a single request.
+     */
+    public long segmentedUploadThreshold() {
+        return _segmentedUploadThreshold;
+    }
+
+    public MFSyncSettings setUploadSegmentSize(long bytes) {
+        if (bytes >= SegmentedUpload.MIN_SEGMENT_SIZE) {
+            _uploadSegmentSize = bytes;
+        } else {
+            _uploadSegmentSize = MFSync.DEFAULT_UPLOAD_SEGMENT_SIZE;
+        }
+        return this;
+    }
+
+    /**
+     * @return the size (in bytes) of the segments of the segmented uploads.
+     */
+    public long uploadSegmentSize() {
+        return _uploadSegmentSize;
+    }
+
+    public MFSyncSettings setBandwidthLimit(long bytesPerSecond) {
+        _bandwidthLimit = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @return the global bandwidth limit (in bytes per second) of the
+     *         uploads, outside the bandwidth windows. 0 for unlimited.
+     */
+    public long bandwidthLimit() {
+        return _bandwidthLimit;
+    }
+
+    public MFSyncSettings setPerWorkerBandwidthLimit(long bytesPerSecond) {
+        _perWorkerBandwidthLimit = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @return the bandwidth limit (in bytes per second) of each worker. 0 for
+     *         unlimited.
+     */
+    public long perWorkerBandwidthLimit() {
+        return _perWorkerBandwidthLimit;
+    }
+
+    /**
+     * Sets whether to deduplicate the files: the files identical to a file
+     * uploaded (in this run) are copied on the server instead of uploaded.
+     */
+    public MFSyncSettings setDedup(boolean dedup) {
+        _dedup = dedup;
+        return this;
+    }
+
+    public boolean dedup() {
+        return _dedup;
+    }
+
+    public MFSyncSettings addBandwidthWindow(BandwidthLimiter.Window window) {
+        _bandwidthWindows.add(window);
+        return this;
+    }
+
+    /**
+     * @return the time windows with different global bandwidth limits.
+     */
+    public List<BandwidthLimiter.Window> bandwidthWindows() {
+        return Collections.unmodifiableList(_bandwidthWindows);
+    }
+
+    public MFSyncSettings setDigestTypes(Set<ChecksumType> digestTypes) {
+        _digestTypes = digestTypes == null || digestTypes.isEmpty() ? null
+                : Collections.unmodifiableSet(EnumSet.copyOf(digestTypes));
+        return this;
+    }
+
+    /**
+     * @return the types of the checksums to compute (and log) while uploading
+     *         the files, in addition to the CRC32 checksum for csumCheck, or
+     *         null if none.
+     */
+    public Set<ChecksumType> digestTypes() {
+        return _digestTypes;
+    }
+
     public Collection<String> notificationEmailAddresses() {
         if (_emailAddresses != null && !_emailAddresses.isEmpty()) {
             return Collections.unmodifiableCollection(_emailAddresses);
@@ -464,9 +1064,33 @@ public class MFSyncSettings {
     public MFSyncSettings copy(boolean includeJobs) throws Throwable {
         MFSyncSettings settings = new MFSyncSettings((XmlDoc.Element) null);
         settings.setNumberOfWorkers(_numberOfWorkers);
+        settings.setMinNumberOfWorkers(_minNumberOfWorkers);
+        settings.setMaxNumberOfWorkers(_maxNumberOfWorkers);
+        settings.setNumberOfScanners(_numberOfScanners);
         settings.setWatchDaemon(_daemonEnabled);
         settings.setCsumCheck(_csumCheck);
         settings.setExcludeEmptyFolder(_excludeEmptyFolder);
+        settings.setLocalIndex(_localIndex);
+        settings.setCsumCompare(_csumCompare);
+        settings.setCsumCacheXattr(_csumCacheXattr);
+        settings.setMaxQueueSize(_maxQueueSize);
+        settings.setSpillToDisk(_spillToDisk);
+        settings.setQuiescencePeriod(_quiescencePeriod);
+        settings.setPrefetchLimit(_prefetchLimit);
+        settings.setSmallFileThreshold(_smallFileThreshold);
+        settings.setSmallFileBatchSize(_smallFileBatchSize);
+        settings.setUploadBufferSize(_uploadBufferSize);
+        settings.setDigestTypes(_digestTypes);
+        settings.setSegmentedUploadThreshold(_segmentedUploadThreshold);
+        settings.setUploadSegmentSize(_uploadSegmentSize);
+        settings.setBandwidthLimit(_bandwidthLimit);
+        settings.setPerWorkerBandwidthLimit(_perWorkerBandwidthLimit);
+        settings.setDedup(_dedup);
+        for (BandwidthLimiter.Window window : _bandwidthWindows) {
+            settings.addBandwidthWindow(window);
+        }
+        settings.setAdaptiveCheckBatchSize(_adaptiveCheckBatchSize);
+        settings.setCheckLinger(_checkLinger);
         settings.setLogDirectory(_logDirectory);
         if (includeJobs && _jobs != null) {
             for (Job job : _jobs) {
@@ -495,16 +1119,56 @@ public class MFSyncSettings {
                     }
                 }
                 ps.println("    dst-namespace: " + job.namespace());
+                ps.println("    weight: " + job.weight());
+                if (job.archiveEnabled()) {
+                    ps.println("    archive: min-files=" + job.archiveMinFiles() + ", max-file-size="
+                            + job.archiveMaxFileSize() + ", max-files=" + job.archiveMaxFiles());
+                }
                 ps.println();
             }
         }
         ps.println("    number-of-workers:  " + _numberOfWorkers);
+        if (adaptiveNumberOfWorkers()) {
+            ps.println("    min-number-of-workers:  " + Math.max(1, _minNumberOfWorkers));
+            ps.println("    max-number-of-workers:  " + numberOfWorkerThreads());
+        }
+        ps.println("    number-of-scanners: " + _numberOfScanners);
         ps.println("    daemon: " + _daemonEnabled);
         if (_daemonEnabled) {
             ps.println("    daemon-port: " + _daemonListenerPort);
+            ps.println("    daemon-scan-interval: " + _daemonScanInterval);
+            ps.println("    daemon-full-scan-interval: " + _daemonFullScanInterval);
+            ps.println("    daemon-watch: " + _daemonWatch);
         }
         ps.println("    csum-check: " + _csumCheck);
         ps.println("    exclude-empty-folder: " + _excludeEmptyFolder);
+        ps.println("    local-index: " + _localIndex);
+        ps.println("    csum-compare: " + _csumCompare);
+        if (_csumCompare) {
+            ps.println("    csum-cache-xattr: " + _csumCacheXattr);
+        }
+        ps.println("    max-queue-size: " + maxQueueSize());
+        ps.println("    spill-to-disk: " + _spillToDisk);
+        ps.println("    quiescence-period: " + _quiescencePeriod);
+        ps.println("    prefetch-limit: " + _prefetchLimit);
+        ps.println("    small-file-threshold: " + _smallFileThreshold);
+        ps.println("    small-file-batch-size: " + _smallFileBatchSize);
+        ps.println("    upload-buffer-size: " + _uploadBufferSize);
+        ps.println("    segmented-upload-threshold: " + _segmentedUploadThreshold);
+        if (_segmentedUploadThreshold > 0) {
+            ps.println("    upload-segment-size: " + _uploadSegmentSize);
+        }
+        ps.println("    bandwidth-limit: " + _bandwidthLimit);
+        ps.println("    per-worker-bandwidth-limit: " + _perWorkerBandwidthLimit);
+        ps.println("    dedup: " + _dedup);
+        for (BandwidthLimiter.Window window : _bandwidthWindows) {
+            ps.println("    bandwidth-window: " + window);
+        }
+        if (_digestTypes != null) {
+            ps.println("    digests: " + _digestTypes.toString().toLowerCase());
+        }
+        ps.println("    adaptive-check-batch-size: " + _adaptiveCheckBatchSize);
+        ps.println("    check-linger: " + _checkLinger);
         ps.println("    log-directory: " + _logDirectory);
         if (this.hasNotificationEmailAddresses()) {
             ps.println("    notification: ");
@@ -0,0 +1,356 @@
+package unimelb.mf.client.sync.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import unimelb.mf.client.util.ChecksumUtils;
+import unimelb.mf.client.util.ChecksumUtils.ChecksumType;
+import unimelb.mf.client.util.LoggingUtils;
+import unimelb.mf.client.util.MultiDigest;
+
+/**
+ * Persistent cache of the CRC32 checksums of the local files, keyed by the
+ * file key (device and inode on Unix platforms, or the path if the platform
+ * does not provide file keys), and valid as long as the size and mtime of the
+ * file are unchanged. So that each file is only read once to compare its
+ * checksum with the asset content checksum, until it is modified.
+ *
+ * The cache is stored as an append-only journal of fixed length, CRC
+ * protected records (a truncated or corrupted tail is discarded). Optionally,
+ * the checksums are also stored in a user extended attribute of the files,
+ * where the file system supports it, so that they survive the removal of the
+ * cache file.
+ *
+ * @author wliu5
+ *
+ */
+public class ChecksumCache implements Closeable {
+
+    public static final String FILE_EXTENSION = ".csum";
+
+    public static final String XATTR_NAME = "mf-sync.crc32";
+
+    private static final int RECORD_LENGTH = 32; // key, size, mtime, csum
+
+    private static final int FLUSH_INTERVAL = 1000; // records
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final long PARALLEL_THRESHOLD = 4 * MultiDigest.DEFAULT_CHUNK_SIZE;
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final long csum;
+
+        Entry(long size, long mtime, long csum) {
+            this.size = size;
+            this.mtime = mtime;
+            this.csum = csum;
+        }
+    }
+
+    private Path _file;
+    private Logger _logger;
+    private volatile boolean _xattr;
+    private FileChannel _channel;
+    private FileLock _lock;
+    private DataOutputStream _out;
+    private Map<Long, Entry> _entries;
+    private long _nbRecords;
+    private int _nbUnflushed;
+
+    private ByteBuffer _recordBytes = ByteBuffer.allocate(RECORD_LENGTH);
+    private CRC32 _crc = new CRC32();
+
+    private ChecksumCache(Path file, boolean xattr, Logger logger) {
+        _file = file;
+        _xattr = xattr;
+        _logger = logger == null ? LoggingUtils.createConsoleLogger() : logger;
+        _entries = new HashMap<Long, Entry>();
+    }
+
+    /**
+     * Opens (or creates) the cache file.
+     *
+     * @param file
+     *            the cache file.
+     * @param xattr
+     *            whether to store the checksums in the extended attributes of
+     *            the files as well.
+     * @param logger
+     *            the logger.
+     * @return
+     * @throws IOException
+     *             if the cache file cannot be opened or it is locked by
+     *             another process.
+     */
+    public static ChecksumCache open(Path file, boolean xattr, Logger logger) throws IOException {
+        ChecksumCache cache = new ChecksumCache(file, xattr, logger);
+        cache.open();
+        return cache;
+    }
+
+    private void open() throws IOException {
+        _channel = FileChannel.open(_file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        _lock = _channel.tryLock();
+        if (_lock == null) {
+            _channel.close();
+            throw new IOException("Checksum cache file: '" + _file + "' is locked by another process.");
+        }
+        load();
+        if (_nbRecords > 2 * _entries.size() + 10000) {
+            compact();
+        }
+        _channel.position(_channel.size());
+        _out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(_channel), BUFFER_SIZE));
+        _logger.info("Loaded " + _entries.size() + " checksums from cache file: '" + _file + "'");
+    }
+
+    private void load() throws IOException {
+        _channel.position(0);
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(nonClosing(Channels.newInputStream(_channel)), BUFFER_SIZE));
+        byte[] buffer = new byte[RECORD_LENGTH];
+        try {
+            while (true) {
+                in.readFully(buffer);
+                long csum = in.readInt() & 0xffffffffL;
+                _crc.reset();
+                _crc.update(buffer, 0, RECORD_LENGTH);
+                if (_crc.getValue() != csum) {
+                    break;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                _entries.put(bb.getLong(), new Entry(bb.getLong(), bb.getLong(), bb.getLong()));
+                _nbRecords++;
+                validLength += RECORD_LENGTH + 4;
+            }
+        } catch (EOFException e) {
+            // reached the end of the journal, or a truncated record.
+        }
+        if (validLength < _channel.size()) {
+            _logger.warning("Discarding " + (_channel.size() - validLength)
+                    + " bytes of incomplete or corrupted records from checksum cache file: '" + _file + "'");
+            _channel.truncate(validLength);
+        }
+    }
+
+    private void compact() throws IOException {
+        Path tmpFile = Paths.get(_file.toString() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpFile), BUFFER_SIZE));
+        try {
+            for (Map.Entry<Long, Entry> e : _entries.entrySet()) {
+                writeRecord(out, e.getKey(), e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        _lock.release();
+        _channel.close();
+        Files.move(tmpFile, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _channel = FileChannel.open(_file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _lock = _channel.tryLock();
+        if (_lock == null) {
+            _channel.close();
+            throw new IOException("Checksum cache file: '" + _file + "' is locked by another process.");
+        }
+        _logger.info("Compacted checksum cache file: '" + _file + "' from " + _nbRecords + " to "
+                + _entries.size() + " records.");
+        _nbRecords = _entries.size();
+    }
+
+    private void writeRecord(DataOutputStream out, long key, Entry entry) throws IOException {
+        _recordBytes.clear();
+        _recordBytes.putLong(key).putLong(entry.size).putLong(entry.mtime).putLong(entry.csum);
+        _crc.reset();
+        _crc.update(_recordBytes.array(), 0, RECORD_LENGTH);
+        out.write(_recordBytes.array(), 0, RECORD_LENGTH);
+        out.writeInt((int) _crc.getValue());
+    }
+
+    public Path file() {
+        return _file;
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    private static long keyOf(Path file, BasicFileAttributes attrs) {
+        long key = SyncStateIndex.fileKeyOf(attrs);
+        if (key == 0L) {
+            String s = file.toAbsolutePath().toString();
+            // FNV-1a
+            key = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                key ^= s.charAt(i);
+                key *= 0x100000001b3L;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Gets the CRC32 checksum of the file, from the cache if the file has not
+     * been modified since the checksum was cached, or by reading the file.
+     *
+     * @param file
+     *            the file.
+     * @param attrs
+     *            the current attributes of the file, or null to read them.
+     * @return the CRC32 checksum.
+     * @throws Throwable
+     */
+    public long getCRC32(Path file, BasicFileAttributes attrs) throws Throwable {
+        if (attrs == null) {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        }
+        long key = keyOf(file, attrs);
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = _entries.get(key);
+        }
+        if (entry == null && _xattr) {
+            entry = readXattr(file);
+            if (entry != null && entry.size == size && entry.mtime == mtime) {
+                put(key, entry);
+            }
+        }
+        if (entry != null && entry.size == size && entry.mtime == mtime) {
+            return entry.csum;
+        }
+        long csum;
+        if (size > PARALLEL_THRESHOLD) {
+            // large files are read by chunks in parallel.
+            csum = Long.parseLong(MultiDigest.digestParallel(file, Collections.singleton(ChecksumType.CRC32),
+                    MultiDigest.DEFAULT_CHUNK_SIZE, MultiDigest.DEFAULT_BUFFER_SIZE, ForkJoinPool.commonPool())
+                    .get(ChecksumType.CRC32), 16);
+        } else {
+            csum = ChecksumUtils.getCRC32Value(file);
+        }
+        // only cache it if the file has not changed while being read.
+        BasicFileAttributes attrs2 = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attrs2.size() == size && attrs2.lastModifiedTime().toMillis() == mtime) {
+            entry = new Entry(size, mtime, csum);
+            put(key, entry);
+            if (_xattr) {
+                writeXattr(file, entry);
+            }
+        }
+        return csum;
+    }
+
+    private synchronized void put(long key, Entry entry) throws IOException {
+        if (_out == null) {
+            throw new IOException("Checksum cache file: '" + _file + "' is closed.");
+        }
+        _entries.put(key, entry);
+        writeRecord(_out, key, entry);
+        _nbRecords++;
+        if (++_nbUnflushed >= FLUSH_INTERVAL) {
+            _out.flush();
+            _nbUnflushed = 0;
+        }
+    }
+
+    private Entry readXattr(Path file) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(file,
+                    UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (view == null || !view.list().contains(XATTR_NAME)) {
+                return null;
+            }
+            ByteBuffer bb = ByteBuffer.allocate(24);
+            if (view.read(XATTR_NAME, bb) != 24) {
+                return null;
+            }
+            bb.flip();
+            return new Entry(bb.getLong(), bb.getLong(), bb.getLong());
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private void writeXattr(Path file, Entry entry) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(file,
+                    UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (view == null) {
+                throw new UnsupportedOperationException("No user defined file attribute view.");
+            }
+            ByteBuffer bb = ByteBuffer.allocate(24);
+            bb.putLong(entry.size).putLong(entry.mtime).putLong(entry.csum);
+            bb.flip();
+            view.write(XATTR_NAME, bb);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (_xattr) {
+                _xattr = false;
+                _logger.log(Level.WARNING, "Failed to store checksum in extended attribute of file: '" + file
+                        + "'. Extended attributes will not be used.", e);
+            }
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (_out != null) {
+            _out.flush();
+            _nbUnflushed = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (_out != null) {
+            try {
+                _out.flush();
+                _channel.force(false);
+                _lock.release();
+            } finally {
+                _out.close();
+                _out = null;
+            }
+        }
+    }
+
+    private static InputStream nonClosing(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+                // keep the underlying channel open
+            }
+        };
+    }
+
+}
@@ -0,0 +1,257 @@
+package unimelb.mf.client.sync.index;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import unimelb.mf.client.util.ChecksumUtils.ChecksumType;
+import unimelb.mf.client.util.LoggingUtils;
+import unimelb.mf.client.util.MultiDigest;
+
+/**
+ * Registry of the contents uploaded in this run, by size and SHA-256 digest,
+ * so that the identical files are copied from the asset of the first copy on
+ * the server, instead of being uploaded again. The digest of an uploaded file
+ * is computed while uploading it (except for the segmented uploads), and a
+ * file is only hashed before uploading if a file of the same size with a
+ * digest has been uploaded. The registered files of the same size without
+ * digest are then hashed lazily to compare.
+ *
+ * @author wliu5
+ *
+ */
+public class DedupRegistry {
+
+    /**
+     * The minimum size (in bytes) of the files to deduplicate. Hashing and
+     * copying smaller files costs about as much as uploading them.
+     */
+    public static final long MIN_FILE_SIZE = 1048576L;
+
+    /**
+     * The maximum number of contents registered, to bound the memory usage.
+     */
+    public static final int MAX_ENTRIES = 1000000;
+
+    private static class Entry {
+        final String file;
+        final long mtime;
+        final String assetId;
+        String sha256;
+
+        Entry(String file, long mtime, String assetId, String sha256) {
+            this.file = file;
+            this.mtime = mtime;
+            this.assetId = assetId;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final Map<Long, List<Entry>> _entries = new HashMap<Long, List<Entry>>();
+    private final Map<String, Long> _assetSizes = new HashMap<String, Long>();
+    private int _size = 0;
+    private boolean _full = false;
+    private final int _bufferSize;
+    private final Logger _logger;
+
+    private final LongAdder _nbFiles = new LongAdder();
+    private final LongAdder _bytesSaved = new LongAdder();
+
+    /**
+     * @param bufferSize
+     *            the size of the buffer to hash the files.
+     * @param logger
+     *            the logger.
+     */
+    public DedupRegistry(int bufferSize, Logger logger) {
+        _bufferSize = bufferSize;
+        _logger = logger == null ? LoggingUtils.createConsoleLogger() : logger;
+    }
+
+    public boolean accepts(long fileSize) {
+        return fileSize >= MIN_FILE_SIZE;
+    }
+
+    /**
+     * @return true if a file of the specified size with a digest has been
+     *         registered, i.e. the file of the size is worth hashing before
+     *         uploading.
+     */
+    public synchronized boolean containsDigest(long fileSize) {
+        List<Entry> entries = _entries.get(fileSize);
+        if (entries != null) {
+            for (Entry e : entries) {
+                if (e.sha256 != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers the uploaded file.
+     *
+     * @param file
+     *            the local file.
+     * @param attrs
+     *            the attributes of the file when uploaded.
+     * @param sha256
+     *            the SHA-256 digest (in hex) of the file, or null if not
+     *            computed.
+     * @param assetId
+     *            the id of the asset.
+     */
+    public synchronized void register(Path file, BasicFileAttributes attrs, String sha256, String assetId) {
+        if (assetId == null) {
+            return;
+        }
+        // the content of the asset has been replaced.
+        remove(assetId);
+        if (!accepts(attrs.size())) {
+            return;
+        }
+        if (_size >= MAX_ENTRIES) {
+            if (!_full) {
+                _logger.warning("Deduplication registry is full (" + MAX_ENTRIES
+                        + " entries). No more files are registered.");
+                _full = true;
+            }
+            return;
+        }
+        List<Entry> entries = _entries.get(attrs.size());
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            _entries.put(attrs.size(), entries);
+        }
+        entries.add(new Entry(file.toAbsolutePath().toString(), attrs.lastModifiedTime().toMillis(), assetId,
+                sha256));
+        _assetSizes.put(assetId, attrs.size());
+        _size++;
+    }
+
+    private void remove(String assetId) {
+        Long size = _assetSizes.get(assetId);
+        if (size != null) {
+            List<Entry> entries = _entries.get(size);
+            if (entries != null) {
+                for (Entry e : entries) {
+                    if (e.assetId.equals(assetId)) {
+                        remove(size, e);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void remove(long size, Entry e) {
+        List<Entry> entries = _entries.get(size);
+        if (entries != null && entries.remove(e)) {
+            _assetSizes.remove(e.assetId);
+            _size--;
+            if (entries.isEmpty()) {
+                _entries.remove(size);
+            }
+        }
+    }
+
+    /**
+     * Finds the asset with the identical content. The registered files of the
+     * same size without digest are hashed (once) to compare.
+     *
+     * @param file
+     *            the file.
+     * @param fileSize
+     *            the size of the file.
+     * @param sha256
+     *            the SHA-256 digest (in hex) of the file.
+     * @return the id of the asset with the identical content, or null if not
+     *         found.
+     */
+    public String find(Path file, long fileSize, String sha256) {
+        String path = file.toAbsolutePath().toString();
+        List<Entry> unhashed = new ArrayList<Entry>();
+        synchronized (this) {
+            List<Entry> entries = _entries.get(fileSize);
+            if (entries == null) {
+                return null;
+            }
+            for (Entry e : entries) {
+                if (e.file.equals(path)) {
+                    continue;
+                } else if (e.sha256 == null) {
+                    unhashed.add(e);
+                } else if (e.sha256.equals(sha256)) {
+                    return e.assetId;
+                }
+            }
+        }
+        String found = null;
+        for (Entry e : unhashed) {
+            String digest = hash(e, fileSize);
+            synchronized (this) {
+                if (digest == null) {
+                    remove(fileSize, e);
+                } else {
+                    e.sha256 = digest;
+                }
+            }
+            if (found == null && sha256.equals(digest)) {
+                found = e.assetId;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Hashes the registered file, if it has not changed since it was uploaded.
+     *
+     * @return the SHA-256 digest, or null if the file has changed.
+     */
+    private String hash(Entry e, long fileSize) {
+        try {
+            Path file = Paths.get(e.file);
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.size() != fileSize || attrs.lastModifiedTime().toMillis() != e.mtime) {
+                return null;
+            }
+            return MultiDigest.digest(file, Collections.singleton(ChecksumType.SHA256), _bufferSize)
+                    .get(ChecksumType.SHA256);
+        } catch (Throwable t) {
+            _logger.warning("Failed to hash file: '" + e.file + "': " + t.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Records a file copied on the server instead of uploaded.
+     */
+    public void deduplicated(long fileSize) {
+        _nbFiles.increment();
+        _bytesSaved.add(fileSize);
+    }
+
+    /**
+     * @return the number of files copied on the server instead of uploaded.
+     */
+    public long numberOfDeduplicatedFiles() {
+        return _nbFiles.sum();
+    }
+
+    /**
+     * @return the number of bytes not uploaded.
+     */
+    public long bytesSaved() {
+        return _bytesSaved.sum();
+    }
+
+}
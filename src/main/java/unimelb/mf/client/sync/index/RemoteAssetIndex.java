@@ -0,0 +1,303 @@
+package unimelb.mf.client.sync.index;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import arc.xml.XmlDoc;
+import arc.xml.XmlStringWriter;
+import unimelb.mf.client.file.PosixAttributes;
+import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.util.AssetNamespaceUtils;
+
+/**
+ * In-memory snapshot of the assets in a destination namespace (and its
+ * descendants), prefetched with paged asset.query requests. It is used to
+ * compare the local files of a job with the remote assets without a service
+ * call per batch of files.
+ *
+ * The entries are stored in an open addressing hash table of primitive arrays,
+ * keyed by two independent 64-bit hashes of the asset path (instead of the
+ * path itself), so that it takes about 60 bytes per asset. Two paths are only
+ * confused if both of their hashes collide, i.e. a 128-bit collision, which
+ * is negligible even for billions of assets. (A collision would be
+ * deterministic, and repeat at every scan, so a single 64-bit hash is not
+ * enough.)
+ *
+ * @author wliu5
+ *
+ */
+public class RemoteAssetIndex {
+
+    public static final int DEFAULT_PAGE_SIZE = 10000;
+
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private static final long EMPTY = 0L;
+
+    private static final byte FLAG_DESTROYED = 1;
+
+    public static class Entry {
+
+        private final long _assetId;
+        private final long _size;
+        private final long _mtime;
+        private final long _csum;
+        private final boolean _destroyed;
+
+        Entry(long assetId, long size, long mtime, long csum, boolean destroyed) {
+            _assetId = assetId;
+            _size = size;
+            _mtime = mtime;
+            _csum = csum;
+            _destroyed = destroyed;
+        }
+
+        public String assetId() {
+            return Long.toString(_assetId);
+        }
+
+        /**
+         * @return the content size, or -1 if the asset has no content.
+         */
+        public long size() {
+            return _size;
+        }
+
+        /**
+         * @return the posix mtime, or -1 if the asset has no posix attributes.
+         */
+        public long mtime() {
+            return _mtime;
+        }
+
+        public long csum() {
+            return _csum;
+        }
+
+        public boolean destroyed() {
+            return _destroyed;
+        }
+    }
+
+    private final String _namespace;
+
+    private long[] _keys;
+    private long[] _checks;
+    private long[] _assetIds;
+    private long[] _sizes;
+    private long[] _mtimes;
+    private long[] _csums;
+    private byte[] _flags;
+    private int _size;
+
+    private RemoteAssetIndex(String namespace, long expectedSize) {
+        _namespace = namespace;
+        allocate(capacityFor(expectedSize));
+        _size = 0;
+    }
+
+    private static int capacityFor(long expectedSize) {
+        long n = Math.max(16L, (long) (expectedSize / LOAD_FACTOR) + 1);
+        int capacity = Integer.highestOneBit((int) Math.min(n, 1 << 30));
+        return capacity < n ? capacity << 1 : capacity;
+    }
+
+    private void allocate(int capacity) {
+        _keys = new long[capacity];
+        _checks = new long[capacity];
+        _assetIds = new long[capacity];
+        _sizes = new long[capacity];
+        _mtimes = new long[capacity];
+        _csums = new long[capacity];
+        _flags = new byte[capacity];
+    }
+
+    public String namespace() {
+        return _namespace;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the path. 0 is reserved for the empty slots.
+     */
+    static long hash(String path) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == EMPTY ? 1L : h;
+    }
+
+    /**
+     * A second 64-bit hash of the path, independent of {@link #hash(String)}
+     * (multiply-xorshift, with the splitmix64 finalizer), to check the path of
+     * the entry.
+     */
+    static long check(String path) {
+        long h = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < path.length(); i++) {
+            h = (h + path.charAt(i)) * 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 29;
+        }
+        h ^= h >>> 30;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 27;
+        h *= 0x94d049bb133111ebL;
+        h ^= h >>> 31;
+        return h;
+    }
+
+    private int slotOf(long key, long check) {
+        int mask = _keys.length - 1;
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        while (_keys[i] != EMPTY && (_keys[i] != key || _checks[i] != check)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    void put(String assetPath, long assetId, long size, long mtime, long csum, boolean destroyed) {
+        long key = hash(assetPath);
+        long check = check(assetPath);
+        int i = slotOf(key, check);
+        if (_keys[i] == EMPTY) {
+            if (_size + 1 > _keys.length * LOAD_FACTOR) {
+                rehash(_keys.length << 1);
+                i = slotOf(key, check);
+            }
+            _keys[i] = key;
+            _checks[i] = check;
+            _size++;
+        } else if (destroyed && (_flags[i] & FLAG_DESTROYED) == 0) {
+            // prefer the live asset to the soft-destroyed one.
+            return;
+        }
+        _assetIds[i] = assetId;
+        _sizes[i] = size;
+        _mtimes[i] = mtime;
+        _csums[i] = csum;
+        _flags[i] = destroyed ? FLAG_DESTROYED : 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = _keys;
+        long[] checks = _checks;
+        long[] assetIds = _assetIds;
+        long[] sizes = _sizes;
+        long[] mtimes = _mtimes;
+        long[] csums = _csums;
+        byte[] flags = _flags;
+        allocate(capacity);
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] != EMPTY) {
+                int i = slotOf(keys[j], checks[j]);
+                _keys[i] = keys[j];
+                _checks[i] = checks[j];
+                _assetIds[i] = assetIds[j];
+                _sizes[i] = sizes[j];
+                _mtimes[i] = mtimes[j];
+                _csums[i] = csums[j];
+                _flags[i] = flags[j];
+            }
+        }
+    }
+
+    /**
+     * Looks up the asset of the specified path.
+     *
+     * @param assetPath
+     *            the asset path.
+     * @return the entry or null if the asset does not exist.
+     */
+    public Entry get(String assetPath) {
+        int i = slotOf(hash(assetPath), check(assetPath));
+        if (_keys[i] == EMPTY) {
+            return null;
+        }
+        return new Entry(_assetIds[i], _sizes[i], _mtimes[i], _csums[i], (_flags[i] & FLAG_DESTROYED) != 0);
+    }
+
+    /**
+     * Counts the assets (including the soft-destroyed ones) in the namespace
+     * and its descendants.
+     *
+     * @return the number of assets, or 0 if the namespace does not exist.
+     */
+    public static long countAssets(MFSession session, String namespace) throws Throwable {
+        if (!AssetNamespaceUtils.assetNamespaceExists(session, namespace)) {
+            return 0;
+        }
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("where", "namespace>='" + namespace + "'");
+        w.add("include-destroyed", true);
+        w.add("action", "count");
+        return session.execute("asset.query", w.document()).longValue("value", 0);
+    }
+
+    /**
+     * Prefetches the assets (including the soft-destroyed ones) in the
+     * namespace and its descendants.
+     *
+     * @param session
+     *            the Mediaflux session.
+     * @param namespace
+     *            the asset namespace.
+     * @param expectedSize
+     *            the expected number of assets, see
+     *            {@link #countAssets(MFSession, String)}.
+     * @param logger
+     *            the logger.
+     * @return the index.
+     * @throws Throwable
+     */
+    public static RemoteAssetIndex load(MFSession session, String namespace, long expectedSize, Logger logger)
+            throws Throwable {
+        RemoteAssetIndex index = new RemoteAssetIndex(namespace, expectedSize);
+        if (expectedSize <= 0) {
+            return index;
+        }
+        if (logger != null) {
+            logger.info("Prefetching " + expectedSize + " assets in namespace: '" + namespace + "'...");
+        }
+        long idx = 1;
+        boolean completed = false;
+        do {
+            XmlStringWriter w = new XmlStringWriter();
+            w.add("where", "namespace>='" + namespace + "'");
+            w.add("include-destroyed", true);
+            w.add("action", "get-value");
+            w.add("count", true);
+            w.add("size", DEFAULT_PAGE_SIZE);
+            w.add("idx", idx);
+            w.add("xpath", new String[] { "ename", "path" },
+                    "string.format('%s/%s', xvalue('namespace'), xvalue('name'))");
+            w.add("xpath", new String[] { "ename", "destroyed" }, "@destroyed");
+            w.add("xpath", new String[] { "ename", "csize" }, "content/size");
+            w.add("xpath", new String[] { "ename", "csum" }, "content/csum");
+            w.add("xpath", new String[] { "ename", "mtime" }, "meta/" + PosixAttributes.DOC_TYPE + "/mtime");
+            XmlDoc.Element re = session.execute("asset.query", w.document());
+            List<XmlDoc.Element> aes = re.elements("asset");
+            if (aes != null) {
+                for (XmlDoc.Element ae : aes) {
+                    String assetPath = ae.value("path");
+                    if (assetPath == null) {
+                        continue;
+                    }
+                    index.put(assetPath, ae.longValue("@id"), ae.longValue("csize", -1), ae.longValue("mtime", -1),
+                            ae.longValue("csum", 0L, 16), ae.booleanValue("destroyed", false));
+                }
+            }
+            idx += DEFAULT_PAGE_SIZE;
+            completed = aes == null || re.longValue("cursor/remaining", 0) == 0;
+        } while (!completed && !Thread.currentThread().isInterrupted());
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        return index;
+    }
+
+}
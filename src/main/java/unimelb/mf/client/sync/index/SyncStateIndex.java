@@ -0,0 +1,568 @@
+package unimelb.mf.client.sync.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import unimelb.mf.client.util.LoggingUtils;
+
+/**
+ * Persistent index of the files that have been synced to Mediaflux. It maps
+ * the destination asset path (which is the job namespace plus the path
+ * relative to the job directory) to the size, mtime and file key of the local
+ * file at the time it was synced, together with the asset id and CRC32
+ * checksum (if known).
+ *
+ * The index is stored as an append-only journal of CRC protected records. It
+ * is loaded into memory when opened. A truncated or corrupted tail (e.g.
+ * caused by a crash) is discarded, so that the affected files are simply
+ * checked with Mediaflux again. The journal is compacted when it contains too
+ * many superseded records.
+ *
+ * To stay small with tens of millions of files, the entries are kept in
+ * primitive arrays (an open addressing hash table, like
+ * {@link RemoteAssetIndex}), keyed by two independent 64-bit hashes of the
+ * asset path instead of the path itself, which is about 75 bytes per entry.
+ * The records of the journal are keyed by the hashes too (the records keyed
+ * by path, written by the earlier versions, are still read).
+ *
+ * Note: a file that matches the index is not checked with Mediaflux. Therefore
+ * if the corresponding asset has been removed on the server side, it will not
+ * be uploaded again until the local file changes or the index file is
+ * removed.
+ *
+ * @author wliu5
+ *
+ */
+public class SyncStateIndex implements Closeable {
+
+    public static final String FILE_EXTENSION = ".idx";
+
+    // the records keyed by path.
+    private static final byte RECORD_PUT = 1;
+
+    private static final byte RECORD_REMOVE = 2;
+
+    // the records keyed by the hashes of the path.
+    private static final byte RECORD_PUT_HASHED = 3;
+
+    private static final byte RECORD_REMOVE_HASHED = 4;
+
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private static final int FLUSH_INTERVAL = 1000; // records
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final long EMPTY = 0L;
+
+    public static class Entry {
+
+        private final long _size;
+        private final long _mtime;
+        private final long _fileKey;
+        private final long _assetId;
+        private final long _csum;
+
+        Entry(long size, long mtime, long fileKey, long assetId, long csum) {
+            _size = size;
+            _mtime = mtime;
+            _fileKey = fileKey;
+            _assetId = assetId;
+            _csum = csum;
+        }
+
+        public long size() {
+            return _size;
+        }
+
+        public long mtime() {
+            return _mtime;
+        }
+
+        public long fileKey() {
+            return _fileKey;
+        }
+
+        /**
+         * @return the asset id, or null if not known.
+         */
+        public String assetId() {
+            return _assetId <= 0 ? null : Long.toString(_assetId);
+        }
+
+        public long csum() {
+            return _csum;
+        }
+
+        public boolean matches(BasicFileAttributes attrs) {
+            return _size == attrs.size() && _mtime == attrs.lastModifiedTime().toMillis()
+                    && _fileKey == fileKeyOf(attrs);
+        }
+    }
+
+    private Path _file;
+    private Logger _logger;
+    private FileChannel _channel;
+    private FileLock _lock;
+    private DataOutputStream _out;
+    private long _nbRecords;
+    private int _nbUnflushed;
+
+    private long[] _keys;
+    private long[] _checks;
+    private long[] _sizes;
+    private long[] _mtimes;
+    private long[] _fileKeys;
+    private long[] _assetIds;
+    private int[] _csums;
+    private int _size;
+
+    private ByteArrayOutputStream _recordBytes = new ByteArrayOutputStream(256);
+    private CRC32 _crc = new CRC32();
+
+    private SyncStateIndex(Path file, Logger logger) {
+        _file = file;
+        _logger = logger == null ? LoggingUtils.createConsoleLogger() : logger;
+        allocate(INITIAL_CAPACITY);
+        _size = 0;
+    }
+
+    private void allocate(int capacity) {
+        _keys = new long[capacity];
+        _checks = new long[capacity];
+        _sizes = new long[capacity];
+        _mtimes = new long[capacity];
+        _fileKeys = new long[capacity];
+        _assetIds = new long[capacity];
+        _csums = new int[capacity];
+    }
+
+    private int slotOf(long key, long check) {
+        int mask = _keys.length - 1;
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        while (_keys[i] != EMPTY && (_keys[i] != key || _checks[i] != check)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void putEntry(long key, long check, long size, long mtime, long fileKey, long assetId, long csum) {
+        int i = slotOf(key, check);
+        if (_keys[i] == EMPTY) {
+            if (_size + 1 > _keys.length * LOAD_FACTOR) {
+                rehash(_keys.length << 1);
+                i = slotOf(key, check);
+            }
+            _keys[i] = key;
+            _checks[i] = check;
+            _size++;
+        }
+        _sizes[i] = size;
+        _mtimes[i] = mtime;
+        _fileKeys[i] = fileKey;
+        _assetIds[i] = assetId;
+        _csums[i] = (int) csum;
+    }
+
+    private boolean removeEntry(long key, long check) {
+        int i = slotOf(key, check);
+        if (_keys[i] == EMPTY) {
+            return false;
+        }
+        // backward shift deletion, to keep the probe sequences unbroken.
+        int mask = _keys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (_keys[j] == EMPTY) {
+                break;
+            }
+            int home = (int) (_keys[j] ^ (_keys[j] >>> 32)) & mask;
+            // move the entry at j to i, if its home is not in (i, j].
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                moveEntry(j, i);
+                i = j;
+            }
+        }
+        _keys[i] = EMPTY;
+        _size--;
+        return true;
+    }
+
+    private void moveEntry(int from, int to) {
+        _keys[to] = _keys[from];
+        _checks[to] = _checks[from];
+        _sizes[to] = _sizes[from];
+        _mtimes[to] = _mtimes[from];
+        _fileKeys[to] = _fileKeys[from];
+        _assetIds[to] = _assetIds[from];
+        _csums[to] = _csums[from];
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = _keys;
+        long[] checks = _checks;
+        long[] sizes = _sizes;
+        long[] mtimes = _mtimes;
+        long[] fileKeys = _fileKeys;
+        long[] assetIds = _assetIds;
+        int[] csums = _csums;
+        allocate(capacity);
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] != EMPTY) {
+                int i = slotOf(keys[j], checks[j]);
+                _keys[i] = keys[j];
+                _checks[i] = checks[j];
+                _sizes[i] = sizes[j];
+                _mtimes[i] = mtimes[j];
+                _fileKeys[i] = fileKeys[j];
+                _assetIds[i] = assetIds[j];
+                _csums[i] = csums[j];
+            }
+        }
+    }
+
+    private static long parseAssetId(String assetId) {
+        if (assetId == null || assetId.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(assetId);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Opens (or creates) the index file.
+     *
+     * @param file
+     *            the index file.
+     * @param logger
+     *            the logger.
+     * @return
+     * @throws IOException
+     *             if the index file cannot be opened or it is locked by
+     *             another process.
+     */
+    public static SyncStateIndex open(Path file, Logger logger) throws IOException {
+        SyncStateIndex index = new SyncStateIndex(file, logger);
+        index.open();
+        return index;
+    }
+
+    private void open() throws IOException {
+        _channel = FileChannel.open(_file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        _lock = _channel.tryLock();
+        if (_lock == null) {
+            _channel.close();
+            throw new IOException("Index file: '" + _file + "' is locked by another process.");
+        }
+        boolean pathRecords = load();
+        if (pathRecords || _nbRecords > 2 * _size + 10000) {
+            compact();
+        }
+        _channel.position(_channel.size());
+        _out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(_channel), BUFFER_SIZE));
+        _logger.info("Loaded " + _size + " entries from index file: '" + _file + "'");
+    }
+
+    /**
+     * @return true if there are records keyed by path (to rewrite them keyed
+     *         by the hashes).
+     */
+    private boolean load() throws IOException {
+        _channel.position(0);
+        long validLength = 0;
+        boolean pathRecords = false;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(nonClosing(Channels.newInputStream(_channel)), BUFFER_SIZE));
+        byte[] buffer = new byte[256];
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                in.readFully(buffer, 0, length);
+                long csum = in.readInt() & 0xffffffffL;
+                _crc.reset();
+                _crc.update(buffer, 0, length);
+                if (_crc.getValue() != csum) {
+                    break;
+                }
+                pathRecords |= apply(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+                _nbRecords++;
+                validLength += 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            // reached the end of the journal, or a truncated record.
+        }
+        if (validLength < _channel.size()) {
+            _logger.warning("Discarding " + (_channel.size() - validLength)
+                    + " bytes of incomplete or corrupted records from index file: '" + _file + "'");
+            _channel.truncate(validLength);
+        }
+        return pathRecords;
+    }
+
+    /**
+     * @return true if the record is keyed by path.
+     */
+    private boolean apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long key;
+        long check;
+        boolean pathRecord = type == RECORD_PUT || type == RECORD_REMOVE;
+        if (pathRecord) {
+            String assetPath = in.readUTF();
+            key = RemoteAssetIndex.hash(assetPath);
+            check = RemoteAssetIndex.check(assetPath);
+        } else {
+            key = in.readLong();
+            check = in.readLong();
+        }
+        if (type == RECORD_PUT) {
+            long size = in.readLong();
+            long mtime = in.readLong();
+            long fileKey = in.readLong();
+            long assetId = parseAssetId(in.readUTF());
+            long csum = in.readLong();
+            putEntry(key, check, size, mtime, fileKey, assetId, csum);
+        } else if (type == RECORD_PUT_HASHED) {
+            putEntry(key, check, in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt() & 0xffffffffL);
+        } else if (type == RECORD_REMOVE || type == RECORD_REMOVE_HASHED) {
+            removeEntry(key, check);
+        }
+        return pathRecord;
+    }
+
+    private void compact() throws IOException {
+        Path tmpFile = Paths.get(_file.toString() + ".tmp");
+        FileChannel tmpChannel = FileChannel.open(tmpFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(nonClosing(Channels.newOutputStream(tmpChannel)), BUFFER_SIZE));
+            for (int i = 0; i < _keys.length; i++) {
+                if (_keys[i] != EMPTY) {
+                    writeRecord(out, RECORD_PUT_HASHED, i);
+                }
+            }
+            out.flush();
+            // the compacted journal must be on disk before it replaces the
+            // old one.
+            tmpChannel.force(true);
+        } finally {
+            tmpChannel.close();
+        }
+        _lock.release();
+        _channel.close();
+        Files.move(tmpFile, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(_file.toAbsolutePath().getParent());
+        _channel = FileChannel.open(_file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _lock = _channel.tryLock();
+        if (_lock == null) {
+            _channel.close();
+            throw new IOException("Index file: '" + _file + "' is locked by another process.");
+        }
+        _logger.info("Compacted index file: '" + _file + "' from " + _nbRecords + " to " + _size + " records.");
+        _nbRecords = _size;
+    }
+
+    /**
+     * Syncs the directory (so that the rename is durable), where the platform
+     * supports it.
+     */
+    private static void forceDirectory(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel dc = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dc.force(true);
+        } catch (IOException e) {
+            // not supported (e.g. on Windows).
+        }
+    }
+
+    private void writeRecord(OutputStream out, byte type, int slot) throws IOException {
+        writeRecord(out, type, _keys[slot], _checks[slot], slot);
+    }
+
+    /**
+     * Writes a record keyed by the hashes. The entry in the specified slot is
+     * written for the put records (the slot is ignored for the remove
+     * records).
+     */
+    private void writeRecord(OutputStream out, byte type, long key, long check, int slot) throws IOException {
+        _recordBytes.reset();
+        DataOutputStream dos = new DataOutputStream(_recordBytes);
+        dos.writeByte(type);
+        dos.writeLong(key);
+        dos.writeLong(check);
+        if (type == RECORD_PUT_HASHED) {
+            dos.writeLong(_sizes[slot]);
+            dos.writeLong(_mtimes[slot]);
+            dos.writeLong(_fileKeys[slot]);
+            dos.writeLong(_assetIds[slot]);
+            dos.writeInt(_csums[slot]);
+        }
+        dos.flush();
+        _crc.reset();
+        _crc.update(_recordBytes.toByteArray(), 0, _recordBytes.size());
+        DataOutputStream dout = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+        dout.writeInt(_recordBytes.size());
+        _recordBytes.writeTo(dout);
+        dout.writeInt((int) _crc.getValue());
+    }
+
+    private void append(byte type, long key, long check, int slot) throws IOException {
+        if (_out == null) {
+            throw new IOException("Index file: '" + _file + "' is closed.");
+        }
+        writeRecord(_out, type, key, check, slot);
+        _nbRecords++;
+        if (++_nbUnflushed >= FLUSH_INTERVAL) {
+            _out.flush();
+            _nbUnflushed = 0;
+        }
+    }
+
+    public Path file() {
+        return _file;
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    public synchronized Entry get(String assetPath) {
+        int i = slotOf(RemoteAssetIndex.hash(assetPath), RemoteAssetIndex.check(assetPath));
+        if (_keys[i] == EMPTY) {
+            return null;
+        }
+        return new Entry(_sizes[i], _mtimes[i], _fileKeys[i], _assetIds[i], _csums[i] & 0xffffffffL);
+    }
+
+    /**
+     * Check if the local file attributes match the state recorded when the
+     * file was last synced to the specified asset path.
+     */
+    public synchronized boolean matches(String assetPath, BasicFileAttributes attrs) {
+        int i = slotOf(RemoteAssetIndex.hash(assetPath), RemoteAssetIndex.check(assetPath));
+        return _keys[i] != EMPTY && _sizes[i] == attrs.size()
+                && _mtimes[i] == attrs.lastModifiedTime().toMillis() && _fileKeys[i] == fileKeyOf(attrs);
+    }
+
+    public synchronized void put(String assetPath, BasicFileAttributes attrs, String assetId, long csum)
+            throws IOException {
+        long key = RemoteAssetIndex.hash(assetPath);
+        long check = RemoteAssetIndex.check(assetPath);
+        putEntry(key, check, attrs.size(), attrs.lastModifiedTime().toMillis(), fileKeyOf(attrs),
+                parseAssetId(assetId), csum);
+        append(RECORD_PUT_HASHED, key, check, slotOf(key, check));
+    }
+
+    public synchronized void remove(String assetPath) throws IOException {
+        long key = RemoteAssetIndex.hash(assetPath);
+        long check = RemoteAssetIndex.check(assetPath);
+        if (removeEntry(key, check)) {
+            append(RECORD_REMOVE_HASHED, key, check, -1);
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (_out != null) {
+            _out.flush();
+            _nbUnflushed = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (_out != null) {
+            try {
+                _out.flush();
+                _channel.force(false);
+                _lock.release();
+            } finally {
+                _out.close();
+                _out = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a 64-bit hash of the file key (e.g. device and inode on Unix
+     * platforms), or 0 if the platform does not provide file keys.
+     */
+    public static long fileKeyOf(BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        if (fileKey == null) {
+            return 0L;
+        }
+        String s = fileKey.toString();
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static InputStream nonClosing(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+                // keep the underlying channel open
+            }
+        };
+    }
+
+    private static OutputStream nonClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // keep the underlying channel open
+                flush();
+            }
+        };
+    }
+
+}
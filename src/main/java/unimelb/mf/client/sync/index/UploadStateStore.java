@@ -0,0 +1,202 @@
+package unimelb.mf.client.sync.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import unimelb.mf.client.util.LoggingUtils;
+
+/**
+ * Persistent state of the segmented uploads in progress, so that an
+ * interrupted upload of a large file resumes from the last acknowledged
+ * segment (in the next run), as long as the size and mtime of the file are
+ * unchanged. There are only a few large files being uploaded at a time, so the
+ * state file is small, and it is rewritten (atomically) whenever a segment is
+ * acknowledged.
+ *
+ * @author wliu5
+ *
+ */
+public class UploadStateStore {
+
+    public static final String FILE_EXTENSION = ".upload";
+
+    private static final int VERSION = 2;
+
+    public static class State {
+
+        private final long _size;
+        private final long _mtime;
+        private final String _uploadId;
+        private final long _offset;
+        private final long _csum;
+        private final boolean _csumTracked;
+
+        public State(long size, long mtime, String uploadId, long offset, long csum, boolean csumTracked) {
+            _size = size;
+            _mtime = mtime;
+            _uploadId = uploadId;
+            _offset = offset;
+            _csum = csum;
+            _csumTracked = csumTracked;
+        }
+
+        /**
+         * @return the size of the file when the upload started.
+         */
+        public long size() {
+            return _size;
+        }
+
+        /**
+         * @return the mtime (in milliseconds) of the file when the upload
+         *         started.
+         */
+        public long mtime() {
+            return _mtime;
+        }
+
+        public String uploadId() {
+            return _uploadId;
+        }
+
+        /**
+         * @return the number of bytes acknowledged by the server.
+         */
+        public long offset() {
+            return _offset;
+        }
+
+        /**
+         * @return the CRC32 checksum of the acknowledged bytes, or 0 if not
+         *         computed.
+         */
+        public long csum() {
+            return _csum;
+        }
+
+        /**
+         * @return true if the CRC32 checksum of all the acknowledged bytes has
+         *         been computed, i.e. csumCheck was enabled since the upload
+         *         started.
+         */
+        public boolean csumTracked() {
+            return _csumTracked;
+        }
+
+        public State advance(long offset, long csum, boolean csumTracked) {
+            return new State(_size, _mtime, _uploadId, offset, csum, csumTracked && (_csumTracked || _offset == 0));
+        }
+    }
+
+    private Path _file;
+    private Logger _logger;
+    private Map<String, State> _states;
+
+    private UploadStateStore(Path file, Logger logger) {
+        _file = file;
+        _logger = logger == null ? LoggingUtils.createConsoleLogger() : logger;
+        _states = new LinkedHashMap<String, State>();
+    }
+
+    /**
+     * Loads (or creates) the state file.
+     *
+     * @param file
+     *            the state file.
+     * @param logger
+     *            the logger.
+     * @return
+     * @throws IOException
+     */
+    public static UploadStateStore open(Path file, Logger logger) throws IOException {
+        UploadStateStore store = new UploadStateStore(file, logger);
+        store.load();
+        return store;
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(_file)))) {
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                _logger.warning("Discarding upload state file: '" + _file + "' of unknown version.");
+                return;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String uploadId = in.readUTF();
+                long offset = in.readLong();
+                long csum = in.readLong();
+                // version 1 did not record whether the checksum was computed.
+                boolean csumTracked = version >= 2 ? in.readBoolean() : false;
+                _states.put(path, new State(size, mtime, uploadId, offset, csum, csumTracked));
+            }
+            if (!_states.isEmpty()) {
+                _logger.info("Loaded the state of " + _states.size() + " interrupted uploads from file: '" + _file
+                        + "'");
+            }
+        } catch (NoSuchFileException e) {
+            // no upload in progress.
+        }
+    }
+
+    private void save() throws IOException {
+        Path tmpFile = Paths.get(_file.toString() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(_states.size());
+            for (Map.Entry<String, State> e : _states.entrySet()) {
+                State s = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(s.size());
+                out.writeLong(s.mtime());
+                out.writeUTF(s.uploadId());
+                out.writeLong(s.offset());
+                out.writeLong(s.csum());
+                out.writeBoolean(s.csumTracked());
+            }
+        }
+        Files.move(tmpFile, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String keyOf(Path file) {
+        return file.toAbsolutePath().toString();
+    }
+
+    public Path file() {
+        return _file;
+    }
+
+    public synchronized State get(Path file) {
+        return _states.get(keyOf(file));
+    }
+
+    public synchronized void put(Path file, State state) throws IOException {
+        _states.put(keyOf(file), state);
+        save();
+    }
+
+    public synchronized void remove(Path file) throws IOException {
+        if (_states.remove(keyOf(file)) != null) {
+            save();
+        }
+    }
+
+    public synchronized int size() {
+        return _states.size();
+    }
+
+}
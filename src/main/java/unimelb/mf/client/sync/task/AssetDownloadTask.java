@@ -15,6 +15,7 @@ import arc.xml.XmlDoc.Element;
 import arc.xml.XmlStringWriter;
 import unimelb.mf.client.file.PosixAttributes;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.util.BandwidthLimiter;
 import unimelb.mf.client.util.PathUtils;
 
 public class AssetDownloadTask extends SyncTask {
@@ -24,6 +25,7 @@ public class AssetDownloadTask extends SyncTask {
     private String _assetId;
     private String _assetPath;
     private long _assetPosixMTime;
+    private BandwidthLimiter _bandwidthLimiter;
 
     public AssetDownloadTask(MFSession session, Logger logger, Path rootDir, String assetId, String assetPath,
             long assetPosixMTime, String rootNS) {
@@ -33,6 +35,11 @@ public class AssetDownloadTask extends SyncTask {
         _assetPosixMTime = assetPosixMTime;
     }
 
+    public AssetDownloadTask setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        _bandwidthLimiter = bandwidthLimiter;
+        return this;
+    }
+
     @Override
     public void execute(MFSession session) throws Throwable {
 
@@ -67,6 +74,9 @@ public class AssetDownloadTask extends SyncTask {
                         byte[] buffer = new byte[BUFFER_SIZE];
                         int len;
                         while ((len = in.read(buffer)) != -1) {
+                            if (_bandwidthLimiter != null) {
+                                _bandwidthLimiter.acquire(len);
+                            }
                             out.write(buffer, 0, len);
                             incWorkProgress(len);
                             if (Thread.interrupted()) {
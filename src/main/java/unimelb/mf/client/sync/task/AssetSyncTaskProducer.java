@@ -13,6 +13,7 @@ import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import unimelb.mf.client.file.PosixAttributes;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.util.BandwidthLimiter;
 import unimelb.mf.client.util.LoggingUtils;
 import unimelb.mf.client.util.PathUtils;
 
@@ -35,6 +36,8 @@ public class AssetSyncTaskProducer implements Runnable {
 
     private int _pageSize;
 
+    private BandwidthLimiter _bandwidthLimiter;
+
     public AssetSyncTaskProducer(MFSession session, Logger logger, Path rootDirectory, String rootNamespace,
             BlockingQueue<SyncTask> queue) {
         this(Direction.LOCAL_TO_REMOTE, session, logger, rootDirectory, rootNamespace, queue, DEFAULT_PAGE_SIZE);
@@ -53,6 +56,11 @@ public class AssetSyncTaskProducer implements Runnable {
         _pageSize = pageSize;
     }
 
+    public AssetSyncTaskProducer setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        _bandwidthLimiter = bandwidthLimiter;
+        return this;
+    }
+
     public Direction direction() {
         return _direction;
     }
@@ -117,14 +125,15 @@ public class AssetSyncTaskProducer implements Runnable {
                                 assetsToDelete.add(assetId);
                             } else {
                                 _queue.put(new AssetDownloadTask(_session, _logger, _rootDirectory, assetId, assetPath,
-                                        assetPosixMTime, _rootNamespace));
+                                        assetPosixMTime, _rootNamespace).setBandwidthLimiter(_bandwidthLimiter));
                             }
                         } else {
                             if (_direction == Direction.REMOTE_TO_LOCAL) {
                                 PosixAttributes fileAttrs = PosixAttributes.read(file);
                                 if (assetPosixMTime > fileAttrs.mtime()) {
                                     _queue.put(new AssetDownloadTask(_session, _logger, _rootDirectory, assetId,
-                                            assetPath, assetPosixMTime, _rootNamespace));
+                                            assetPath, assetPosixMTime, _rootNamespace)
+                                                    .setBandwidthLimiter(_bandwidthLimiter));
                                 }
                             }
                         }
@@ -0,0 +1,66 @@
+package unimelb.mf.client.sync.task;
+
+/**
+ * Adapts the number of files checked with Mediaflux per request
+ * ({@link FileCheckTask}) to the measured round-trip time. The per-file cost
+ * of the previous batches (which grows with the number of existing assets
+ * returned) is used to estimate the batch size that takes about
+ * {@link #TARGET_RTT} milliseconds, and the batch size moves halfway towards
+ * it, by at most a factor of 2 each time.
+ *
+ * @author wliu5
+ *
+ */
+public class CheckBatchSizer {
+
+    public static final int MIN_BATCH_SIZE = 10;
+
+    public static final long TARGET_RTT = 1000L; // milliseconds
+
+    private final int _maxBatchSize;
+    private final boolean _adaptive;
+    private volatile int _batchSize;
+
+    /**
+     * @param batchSize
+     *            the initial batch size.
+     * @param maxBatchSize
+     *            the maximum batch size.
+     * @param adaptive
+     *            whether to adapt the batch size. If false, the batch size is
+     *            fixed.
+     */
+    public CheckBatchSizer(int batchSize, int maxBatchSize, boolean adaptive) {
+        _batchSize = batchSize;
+        _maxBatchSize = maxBatchSize;
+        _adaptive = adaptive;
+    }
+
+    public int batchSize() {
+        return _batchSize;
+    }
+
+    /**
+     * Updates the batch size with the round-trip time of a batch.
+     *
+     * @param nbFiles
+     *            the number of files in the batch.
+     * @param rtt
+     *            the round-trip time in milliseconds.
+     */
+    public synchronized void update(int nbFiles, long rtt) {
+        int batchSize = _batchSize;
+        if (!_adaptive || nbFiles <= 0 || nbFiles < batchSize / 2) {
+            // the per-file cost of small (partial) batches is dominated by
+            // the fixed cost of the request.
+            return;
+        }
+        double costPerFile = Math.max(rtt, 1L) / (double) nbFiles;
+        long target = (long) (TARGET_RTT / costPerFile);
+        long next = (batchSize + target) / 2;
+        next = Math.max(batchSize / 2, Math.min(batchSize * 2L, next));
+        next = Math.max(Math.min(MIN_BATCH_SIZE, _maxBatchSize), Math.min(_maxBatchSize, next));
+        _batchSize = (int) next;
+    }
+
+}
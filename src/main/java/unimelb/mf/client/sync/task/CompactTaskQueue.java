@@ -0,0 +1,548 @@
+package unimelb.mf.client.sync.task;
+
+import java.nio.file.Path;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import unimelb.mf.client.task.Task;
+
+/**
+ * A bounded task queue which stores the pending {@link FileUploadTask}s in a
+ * compact form: the index of a prototype task (one per job, which holds the
+ * session, logger, root directory, namespace, listener etc.), the (interned)
+ * parent directory, the file name, size, mtime and whether the asset is new. The upload task is only
+ * created when it is taken from the queue. Other tasks are stored as they
+ * are.
+ *
+ * The tasks are queued in lanes, one per job (root directory and namespace).
+ * The tasks in the same lane are taken in FIFO order, and the lanes are served
+ * in (smooth) weighted round-robin order, so that a large job does not
+ * monopolise the consumers. {@link PoisonTask}s are only taken when all the
+ * other lanes are empty.
+ *
+ * @author wliu5
+ *
+ */
+public class CompactTaskQueue extends AbstractQueue<Task> implements BlockingQueue<Task> {
+
+    private static final int INITIAL_LANE_CAPACITY = 1024;
+
+    private static class Parent {
+        final Path path;
+        int refs;
+
+        Parent(Path path) {
+            this.path = path;
+            this.refs = 0;
+        }
+    }
+
+    /**
+     * FIFO ring buffer. For compact entries, _items holds the parent directory
+     * and _names holds the file name; otherwise, _items holds the task and
+     * _names holds null.
+     */
+    private class Lane {
+
+        final String key;
+        int weight;
+        int currentWeight;
+
+        private Object[] _items;
+        private String[] _names;
+        private long[] _sizes;
+        private long[] _mtimes;
+        private boolean[] _newAssets;
+        private int[] _prototypeIndexes;
+        private int _head;
+        private int _count;
+
+        Lane(String key, int weight) {
+            this.key = key;
+            this.weight = weight;
+            this.currentWeight = 0;
+            _head = 0;
+            _count = 0;
+            allocate(Math.min(_capacity, INITIAL_LANE_CAPACITY));
+        }
+
+        private void allocate(int length) {
+            Object[] items = new Object[length];
+            String[] names = new String[length];
+            long[] sizes = new long[length];
+            long[] mtimes = new long[length];
+            boolean[] newAssets = new boolean[length];
+            int[] prototypeIndexes = new int[length];
+            for (int i = 0; i < _count; i++) {
+                int j = (_head + i) % _items.length;
+                items[i] = _items[j];
+                names[i] = _names[j];
+                sizes[i] = _sizes[j];
+                mtimes[i] = _mtimes[j];
+                newAssets[i] = _newAssets[j];
+                prototypeIndexes[i] = _prototypeIndexes[j];
+            }
+            _items = items;
+            _names = names;
+            _sizes = sizes;
+            _mtimes = mtimes;
+            _newAssets = newAssets;
+            _prototypeIndexes = prototypeIndexes;
+            _head = 0;
+        }
+
+        boolean isEmpty() {
+            return _count == 0;
+        }
+
+        void add(Task task) {
+            if (_count == _items.length) {
+                allocate(Math.min(_capacity, _items.length * 2));
+            }
+            int i = (_head + _count) % _items.length;
+            Path parent = task instanceof FileUploadTask ? ((FileUploadTask) task).file().getParent() : null;
+            if (parent != null) {
+                FileUploadTask ut = (FileUploadTask) task;
+                _items[i] = internParent(parent);
+                _names[i] = ut.file().getFileName().toString();
+                _sizes[i] = ut.fileSize();
+                _mtimes[i] = ut.fileMtime();
+                _newAssets[i] = ut.isNewAsset();
+                _prototypeIndexes[i] = prototypeIndexOf(ut);
+            } else {
+                _items[i] = task;
+                _names[i] = null;
+            }
+            _count++;
+        }
+
+        Task remove() {
+            Task task = get(0);
+            removeHead();
+            return task;
+        }
+
+        void removeHead() {
+            if (_names[_head] != null) {
+                releaseParent((Path) _items[_head]);
+            }
+            _items[_head] = null;
+            _names[_head] = null;
+            _head = (_head + 1) % _items.length;
+            _count--;
+        }
+
+        Task get(int index) {
+            int i = (_head + index) % _items.length;
+            String name = _names[i];
+            if (name == null) {
+                return (Task) _items[i];
+            }
+            Path parent = (Path) _items[i];
+            FileUploadTask prototype = _prototypes.get(_prototypeIndexes[i]);
+            return prototype.copyFor(parent.resolve(name), _sizes[i], _mtimes[i]).setNewAsset(_newAssets[i]);
+        }
+    }
+
+    private final int _capacity;
+    private int _count;
+
+    private final Map<String, Lane> _laneMap = new HashMap<String, Lane>();
+    private final List<Lane> _lanes = new ArrayList<Lane>();
+    private final Map<String, Integer> _weights = new HashMap<String, Integer>();
+
+    /*
+     * the lane for the poison tasks.
+     */
+    private Lane _lastLane;
+
+    private final List<FileUploadTask> _prototypes = new ArrayList<FileUploadTask>();
+
+    private final Map<Path, Parent> _parents = new HashMap<Path, Parent>();
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+
+    public CompactTaskQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        _capacity = capacity;
+        _count = 0;
+        _lastLane = new Lane(null, 1);
+    }
+
+    private static String laneKey(Path rootDir, String rootNS) {
+        return rootNS + ":" + rootDir;
+    }
+
+    /**
+     * Sets the weight of the lane for the tasks of the specified job (root
+     * directory and namespace). The weights of the lanes default to 1.
+     *
+     * @param rootDir
+     *            the root directory of the job.
+     * @param rootNS
+     *            the root namespace of the job.
+     * @param weight
+     *            the weight.
+     */
+    public void setWeight(Path rootDir, String rootNS, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Invalid weight: " + weight);
+        }
+        _lock.lock();
+        try {
+            String key = laneKey(rootDir, rootNS);
+            _weights.put(key, weight);
+            Lane lane = _laneMap.get(key);
+            if (lane != null) {
+                lane.weight = weight;
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return the existing lane of the task, or null.
+     */
+    private Lane existingLaneOf(Task task) {
+        if (task instanceof PoisonTask) {
+            return _lastLane;
+        }
+        if (task instanceof SyncTask) {
+            SyncTask st = (SyncTask) task;
+            return _laneMap.get(laneKey(st.rootDirectory(), st.rootNamespace()));
+        }
+        return _laneMap.get(null);
+    }
+
+    private Lane laneFor(Task task) {
+        if (task instanceof PoisonTask) {
+            return _lastLane;
+        }
+        String key = null;
+        if (task instanceof SyncTask) {
+            SyncTask st = (SyncTask) task;
+            key = laneKey(st.rootDirectory(), st.rootNamespace());
+        }
+        Lane lane = _laneMap.get(key);
+        if (lane == null) {
+            Integer weight = _weights.get(key);
+            lane = new Lane(key, weight == null ? 1 : weight);
+            _laneMap.put(key, lane);
+            _lanes.add(lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Selects the next lane to take from: the non-empty lane with the highest
+     * current weight, after increasing the current weights of all the
+     * non-empty lanes by their weights (smooth weighted round-robin).
+     *
+     * @param commit
+     *            whether to update the current weights.
+     */
+    private Lane selectLane(boolean commit) {
+        Lane selected = null;
+        int totalWeight = 0;
+        for (Lane lane : _lanes) {
+            if (lane.isEmpty()) {
+                continue;
+            }
+            totalWeight += lane.weight;
+            if (selected == null || lane.currentWeight + lane.weight > selected.currentWeight + selected.weight) {
+                selected = lane;
+            }
+        }
+        if (selected == null) {
+            return _lastLane;
+        }
+        if (commit) {
+            for (Lane lane : _lanes) {
+                if (!lane.isEmpty()) {
+                    lane.currentWeight += lane.weight;
+                }
+            }
+            selected.currentWeight -= totalWeight;
+        }
+        return selected;
+    }
+
+    private int prototypeIndexOf(FileUploadTask task) {
+        for (int i = _prototypes.size() - 1; i >= 0; i--) {
+            if (_prototypes.get(i).sameContext(task)) {
+                return i;
+            }
+        }
+        _prototypes.add(task);
+        return _prototypes.size() - 1;
+    }
+
+    private Path internParent(Path dir) {
+        Parent parent = _parents.get(dir);
+        if (parent == null) {
+            parent = new Parent(dir);
+            _parents.put(dir, parent);
+        }
+        parent.refs++;
+        return parent.path;
+    }
+
+    private void releaseParent(Path dir) {
+        Parent parent = _parents.get(dir);
+        if (parent != null && --parent.refs <= 0) {
+            _parents.remove(dir);
+        }
+    }
+
+    private void enqueue(Task task) {
+        laneFor(task).add(task);
+        _count++;
+        _notEmpty.signal();
+    }
+
+    private Task dequeue() {
+        Lane lane = selectLane(true);
+        Task task = lane.remove();
+        if (lane.isEmpty()) {
+            lane.currentWeight = 0;
+        }
+        _count--;
+        _notFull.signal();
+        return task;
+    }
+
+    private static void checkNotNull(Object o) {
+        if (o == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    @Override
+    public boolean offer(Task task) {
+        checkNotNull(task);
+        _lock.lock();
+        try {
+            if (_count == _capacity) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Task task) throws InterruptedException {
+        checkNotNull(task);
+        _lock.lockInterruptibly();
+        try {
+            while (_count == _capacity) {
+                _notFull.await();
+            }
+            enqueue(task);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Task task, long timeout, TimeUnit unit) throws InterruptedException {
+        checkNotNull(task);
+        long nanos = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        try {
+            while (_count == _capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = _notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Task poll() {
+        _lock.lock();
+        try {
+            return _count == 0 ? null : dequeue();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next task in the lane (i.e. of the job) of the specified task,
+     * if it is accepted by the filter, regardless of the round-robin order of
+     * the lanes. The tasks of the other lanes are left in the queue, so that
+     * the other consumers can take them.
+     *
+     * @param task
+     *            the task of the lane.
+     * @param filter
+     *            the filter.
+     * @return the next task in the lane, or null if the lane is empty or the
+     *         task is not accepted.
+     */
+    public Task pollLane(Task task, Predicate<Task> filter) {
+        _lock.lock();
+        try {
+            Lane lane = existingLaneOf(task);
+            if (lane == null || lane.isEmpty()) {
+                return null;
+            }
+            Task next = lane.get(0);
+            if (!filter.test(next)) {
+                return null;
+            }
+            lane.removeHead();
+            if (lane.isEmpty()) {
+                lane.currentWeight = 0;
+            }
+            _count--;
+            _notFull.signal();
+            return next;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Task take() throws InterruptedException {
+        _lock.lockInterruptibly();
+        try {
+            while (_count == 0) {
+                _notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Task poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        try {
+            while (_count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = _notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Task peek() {
+        _lock.lock();
+        try {
+            return _count == 0 ? null : selectLane(false).get(0);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        _lock.lock();
+        try {
+            return _count;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        _lock.lock();
+        try {
+            return _capacity - _count;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Task> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Task> c, int maxElements) {
+        checkNotNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        _lock.lock();
+        try {
+            int n = 0;
+            while (_count > 0 && n < maxElements) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued tasks (lane by lane).
+     * The tasks are materialized, and it does not support removal.
+     */
+    @Override
+    public Iterator<Task> iterator() {
+        _lock.lock();
+        try {
+            List<Task> tasks = new ArrayList<Task>(_count);
+            for (Lane lane : _lanes) {
+                for (int i = 0; i < lane._count; i++) {
+                    tasks.add(lane.get(i));
+                }
+            }
+            for (int i = 0; i < _lastLane._count; i++) {
+                tasks.add(_lastLane.get(i));
+            }
+            final Iterator<Task> it = tasks.iterator();
+            return new Iterator<Task>() {
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Task next() {
+                    return it.next();
+                }
+            };
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package unimelb.mf.client.sync.task;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import arc.mf.client.ServerClient;
+import arc.streams.StreamCopy.AbortCheck;
+import arc.xml.XmlDoc;
+import arc.xml.XmlStringWriter;
+import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.util.BandwidthLimiter;
+import unimelb.mf.client.util.BufferPool;
+import unimelb.mf.client.util.MultiDigest;
+import unimelb.mf.client.util.PathUtils;
+
+/**
+ * Uploads a large number of tiny files (of the same job) as a single zip
+ * archive, which is generated on the fly while it is streamed to the server
+ * (no temporary file), and extracted by asset.import into the job namespace.
+ * The imported assets are then verified with a single asset.query, and their
+ * posix attributes are set with a single service.execute request. The files
+ * that fail the verification, or all the files if the import fails, are
+ * uploaded one by one.
+ *
+ * @author wliu5
+ *
+ */
+public class FileArchiveUploadTask extends SyncTask {
+
+    public static final String ARCHIVE_MIME_TYPE = "application/zip";
+
+    public static final String ARCHIVE_FILE_EXTENSION = "zip";
+
+    public static final String IMPORT_SERVICE = "asset.import";
+
+    private List<FileUploadTask> _tasks;
+
+    /**
+     * @param session
+     *            the Mediaflux session.
+     * @param logger
+     *            the logger.
+     * @param tasks
+     *            the upload tasks, which must be of the same job (root
+     *            directory and namespace).
+     */
+    public FileArchiveUploadTask(MFSession session, Logger logger, List<FileUploadTask> tasks) {
+        super(session, logger, tasks.get(0).rootDirectory(), tasks.get(0).rootNamespace());
+        _tasks = tasks;
+        long workTotal = 0;
+        for (FileUploadTask task : tasks) {
+            workTotal += Math.max(0, task.fileSize());
+        }
+        setWorkTotal(workTotal);
+    }
+
+    public int size() {
+        return _tasks.size();
+    }
+
+    List<FileUploadTask> tasks() {
+        return _tasks;
+    }
+
+    @Override
+    public void execute(MFSession session) throws Throwable {
+        List<FileUploadTask> tasks = new ArrayList<FileUploadTask>(_tasks.size());
+        List<BasicFileAttributes> attrs = new ArrayList<BasicFileAttributes>(_tasks.size());
+        for (FileUploadTask task : _tasks) {
+            task.uploadStarted();
+            try {
+                attrs.add(task.restat());
+                tasks.add(task);
+            } catch (NoSuchFileException e) {
+                logWarning("File: '" + task.file() + "' does not exist.");
+                task.uploadFailed();
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        List<FileUploadTask> retry = new ArrayList<FileUploadTask>();
+        try {
+            XmlStringWriter w = new XmlStringWriter();
+            w.add("namespace", new String[] { "create", "true" }, rootNamespace());
+            ServerClient.Input input = new ServerClient.GeneratedInput(ARCHIVE_MIME_TYPE, ARCHIVE_FILE_EXTENSION,
+                    rootDirectory().toString(), -1) {
+                @Override
+                protected void copyTo(OutputStream out, AbortCheck ac) throws Throwable {
+                    writeArchive(tasks, out, ac);
+                }
+            };
+            setCurrentOperation("Importing " + tasks.size() + " files to namespace: '" + rootNamespace() + "'");
+            logInfo("Uploading " + tasks.size() + " files as an archive to namespace: '" + rootNamespace() + "'");
+            session.execute(IMPORT_SERVICE, w.document(), input, null, this);
+
+            Map<String, XmlDoc.Element> assets = FileBatchUploadTask.queryAssets(session, tasks);
+            List<FileUploadTask> imported = new ArrayList<FileUploadTask>(tasks.size());
+            List<BasicFileAttributes> importedAttrs = new ArrayList<BasicFileAttributes>(tasks.size());
+            List<String> importedIds = new ArrayList<String>(tasks.size());
+            XmlStringWriter w2 = new XmlStringWriter();
+            for (int i = 0; i < tasks.size(); i++) {
+                FileUploadTask task = tasks.get(i);
+                XmlDoc.Element ae = assets.get(task.assetPath());
+                if (ae == null || ae.longValue("csize", -1) != attrs.get(i).size()
+                        || (task.csumCheck() && ae.longValue("csum", 0L, 16) != task.csum())) {
+                    logWarning("Failed to verify asset: '" + task.assetPath() + "'. Uploading file: '" + task.file()
+                            + "' again.");
+                    task.uploadAborted();
+                    retry.add(task);
+                } else {
+                    // set the posix attributes.
+                    task.addAssetSetService(w2);
+                    imported.add(task);
+                    importedAttrs.add(attrs.get(i));
+                    importedIds.add(ae.value("@id"));
+                }
+            }
+            if (!imported.isEmpty()) {
+                session.execute("service.execute", w2.document(), (ServerClient.Input) null, null, this);
+                for (int i = 0; i < imported.size(); i++) {
+                    imported.get(i).uploadCompleted(importedAttrs.get(i), importedIds.get(i));
+                }
+            }
+        } catch (Throwable e) {
+            if (e instanceof InterruptedException) {
+                for (FileUploadTask task : tasks) {
+                    task.uploadFailed();
+                }
+                throw e;
+            }
+            logError("Failed to upload " + tasks.size() + " files as an archive. Uploading them one by one...", e);
+            retry.clear();
+            for (FileUploadTask task : tasks) {
+                task.uploadAborted();
+                retry.add(task);
+            }
+        }
+        FileBatchUploadTask.uploadOneByOne(session, retry, this);
+    }
+
+    /**
+     * Writes the files as a zip archive, with the entry names relative to the
+     * root directory (so that they are extracted to their asset paths relative
+     * to the root namespace) and the file mtimes. The archive does not depend
+     * on the server, so that it can be consumed by a stand-in (e.g. extracted
+     * with java.util.zip.ZipInputStream).
+     *
+     * @param tasks
+     *            the upload tasks.
+     * @param out
+     *            the output stream.
+     * @param ac
+     *            the abort check, or null.
+     * @throws Throwable
+     */
+    void writeArchive(List<FileUploadTask> tasks, OutputStream out, AbortCheck ac) throws Throwable {
+        BufferPool bufferPool = tasks.isEmpty() ? null : tasks.get(0).bufferPool();
+        BandwidthLimiter bandwidthLimiter = tasks.isEmpty() ? null : tasks.get(0).bandwidthLimiter();
+        ByteBuffer buffer = bufferPool == null ? ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE)
+                : bufferPool.acquire();
+        ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(out, 65536));
+        try {
+            for (FileUploadTask task : tasks) {
+                ZipEntry entry = new ZipEntry(PathUtils.relativePath(rootDirectory(), task.file()));
+                if (task.fileMtime() >= 0) {
+                    entry.setTime(task.fileMtime());
+                }
+                zos.putNextEntry(entry);
+                MultiDigest md = task.newDigest();
+                FileChannel in = FileChannel.open(task.file(), StandardOpenOption.READ);
+                try {
+                    int len;
+                    while ((len = in.read(buffer)) != -1) {
+                        if (bandwidthLimiter != null) {
+                            bandwidthLimiter.acquire(len);
+                        }
+                        zos.write(buffer.array(), buffer.arrayOffset(), len);
+                        if (md != null) {
+                            md.update(buffer.array(), buffer.arrayOffset(), len);
+                        }
+                        buffer.clear();
+                        if (task.uploadProgressed(len)) {
+                            FileUploadTask.checkAborted(ac);
+                        }
+                    }
+                } finally {
+                    task.publishProgress();
+                    in.close();
+                }
+                // the files are small: check once per file.
+                FileUploadTask.checkAborted(ac);
+                if (md != null) {
+                    task.digestCompleted(md);
+                }
+                zos.closeEntry();
+            }
+            zos.finish();
+        } finally {
+            zos.close();
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    @Override
+    public long workProgressed() {
+        long workProgressed = 0;
+        for (FileUploadTask task : _tasks) {
+            workProgressed += task.workProgressed();
+        }
+        return workProgressed;
+    }
+
+    @Override
+    public final String type() {
+        return "file.archive.upload";
+    }
+
+}
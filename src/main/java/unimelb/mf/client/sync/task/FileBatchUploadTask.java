@@ -0,0 +1,184 @@
+package unimelb.mf.client.sync.task;
+
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import arc.mf.client.ServerClient;
+import arc.xml.XmlDoc;
+import arc.xml.XmlStringWriter;
+import unimelb.mf.client.session.MFSession;
+
+/**
+ * Uploads a batch of small files in a single service.execute request, which
+ * contains an asset.set service for each file, and the file contents as the
+ * inputs (in the same order). The uploaded assets are verified with a single
+ * asset.query afterwards (content size, and CRC32 checksum if csumCheck is
+ * enabled). The files that fail the verification, or all the files if the
+ * request fails, are then uploaded one by one.
+ *
+ * @author wliu5
+ *
+ */
+public class FileBatchUploadTask extends SyncTask {
+
+    private List<FileUploadTask> _tasks;
+
+    /**
+     * @param session
+     *            the Mediaflux session.
+     * @param logger
+     *            the logger.
+     * @param tasks
+     *            the upload tasks of the small files, which must have the same
+     *            session.
+     */
+    public FileBatchUploadTask(MFSession session, Logger logger, List<FileUploadTask> tasks) {
+        super(session, logger, tasks.get(0).rootDirectory(), tasks.get(0).rootNamespace());
+        _tasks = tasks;
+        long workTotal = 0;
+        for (FileUploadTask task : tasks) {
+            workTotal += Math.max(0, task.fileSize());
+        }
+        setWorkTotal(workTotal);
+    }
+
+    public int size() {
+        return _tasks.size();
+    }
+
+    List<FileUploadTask> tasks() {
+        return _tasks;
+    }
+
+    @Override
+    public void execute(MFSession session) throws Throwable {
+        List<FileUploadTask> tasks = new ArrayList<FileUploadTask>(_tasks.size());
+        List<BasicFileAttributes> attrs = new ArrayList<BasicFileAttributes>(_tasks.size());
+        List<ServerClient.Input> inputs = new ArrayList<ServerClient.Input>(_tasks.size());
+        XmlStringWriter w = new XmlStringWriter();
+        for (FileUploadTask task : _tasks) {
+            task.uploadStarted();
+            try {
+                BasicFileAttributes fileAttrs = task.restat();
+                task.addAssetSetService(w);
+                inputs.add(task.createInput(fileAttrs.size()));
+                tasks.add(task);
+                attrs.add(fileAttrs);
+            } catch (NoSuchFileException e) {
+                logWarning("File: '" + task.file() + "' does not exist.");
+                task.uploadFailed();
+            } catch (Throwable e) {
+                logError("Failed to upload file: '" + task.file() + "'", e);
+                task.uploadFailed();
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        List<FileUploadTask> retry = new ArrayList<FileUploadTask>();
+        try {
+            setCurrentOperation("Uploading " + tasks.size() + " files to namespace: '" + rootNamespace() + "'");
+            logInfo("Uploading " + tasks.size() + " files in a single request...");
+            session.execute("service.execute", w.document(), inputs, null, this);
+
+            Map<String, XmlDoc.Element> assets = queryAssets(session, tasks);
+            for (int i = 0; i < tasks.size(); i++) {
+                FileUploadTask task = tasks.get(i);
+                BasicFileAttributes fileAttrs = attrs.get(i);
+                XmlDoc.Element ae = assets.get(task.assetPath());
+                if (ae == null || ae.longValue("csize", -1) != fileAttrs.size()
+                        || (task.csumCheck() && ae.longValue("csum", 0L, 16) != task.csum())) {
+                    logWarning("Failed to verify asset: '" + task.assetPath() + "'. Uploading file: '" + task.file()
+                            + "' again.");
+                    task.uploadAborted();
+                    retry.add(task);
+                } else {
+                    task.uploadCompleted(fileAttrs, ae.value("@id"));
+                }
+            }
+        } catch (Throwable e) {
+            if (e instanceof InterruptedException) {
+                for (FileUploadTask task : tasks) {
+                    task.uploadFailed();
+                }
+                throw e;
+            }
+            logError("Failed to upload " + tasks.size() + " files in a single request. Uploading them one by one...",
+                    e);
+            retry.clear();
+            for (FileUploadTask task : tasks) {
+                task.uploadAborted();
+                retry.add(task);
+            }
+        }
+
+        uploadOneByOne(session, retry, this);
+    }
+
+    /**
+     * Uploads the files one by one. The failures are logged (and reported to
+     * the listeners of the tasks).
+     */
+    static void uploadOneByOne(MFSession session, List<FileUploadTask> tasks, SyncTask parent) throws Throwable {
+        for (FileUploadTask task : tasks) {
+            try {
+                task.execute(session);
+            } catch (Throwable e) {
+                if (e instanceof InterruptedException) {
+                    throw e;
+                }
+                parent.logError("Failed to upload file: '" + task.file() + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Queries the content sizes and checksums of the assets of the tasks.
+     *
+     * @return the assets by asset path.
+     */
+    static Map<String, XmlDoc.Element> queryAssets(MFSession session, List<FileUploadTask> tasks)
+            throws Throwable {
+        List<String> assetPaths = new ArrayList<String>(tasks.size());
+        for (FileUploadTask task : tasks) {
+            assetPaths.add(task.assetPath());
+        }
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("where", FileCheckTask.whereClause(assetPaths));
+        w.add("action", "get-value");
+        w.add("size", tasks.size());
+        w.add("xpath", new String[] { "ename", "path" },
+                "string.format('%s/%s', xvalue('namespace'), xvalue('name'))");
+        w.add("xpath", new String[] { "ename", "csize" }, "content/size");
+        w.add("xpath", new String[] { "ename", "csum" }, "content/csum");
+        List<XmlDoc.Element> aes = session.execute("asset.query", w.document()).elements("asset");
+        Map<String, XmlDoc.Element> assets = new HashMap<String, XmlDoc.Element>();
+        if (aes != null) {
+            for (XmlDoc.Element ae : aes) {
+                assets.put(ae.value("path"), ae);
+            }
+        }
+        return assets;
+    }
+
+    @Override
+    public long workProgressed() {
+        long workProgressed = 0;
+        for (FileUploadTask task : _tasks) {
+            workProgressed += task.workProgressed();
+        }
+        return workProgressed;
+    }
+
+    @Override
+    public final String type() {
+        return "file.batch.upload";
+    }
+
+}
@@ -2,12 +2,13 @@ package unimelb.mf.client.sync.task;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
 
@@ -15,14 +16,18 @@ import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import unimelb.mf.client.file.PosixAttributes;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.sync.index.ChecksumCache;
 import unimelb.mf.client.task.AbstractTask;
 import unimelb.mf.client.task.Task;
+import unimelb.mf.client.util.PathUtils;
 
 public class FileCheckTask extends AbstractTask {
 
     private Map<String, FileUploadTask> _tasks;
     private BlockingQueue<Task> _queue;
     private FileUploadListener _ul;
+    private CheckBatchSizer _batchSizer;
+    private ChecksumCache _csumCache;
 
     public FileCheckTask(MFSession session, Logger logger, Collection<FileUploadTask> tasks, BlockingQueue<Task> queue,
             FileUploadListener ul) {
@@ -37,117 +42,223 @@ public class FileCheckTask extends AbstractTask {
         }
     }
 
+    /**
+     * Sets the batch sizer to report the round-trip time of the check to.
+     */
+    public FileCheckTask setBatchSizer(CheckBatchSizer batchSizer) {
+        _batchSizer = batchSizer;
+        return this;
+    }
+
+    /**
+     * Sets the checksum cache to compare the CRC32 checksums of the files
+     * with the asset content checksums, instead of comparing their mtimes.
+     */
+    public FileCheckTask setChecksumCache(ChecksumCache csumCache) {
+        _csumCache = csumCache;
+        return this;
+    }
+
     @Override
     public void execute(MFSession session) throws Throwable {
         if (_tasks != null && !_tasks.isEmpty()) {
             this.logInfo("Checking " + _tasks.size() + " files...");
-            XmlStringWriter w1 = new XmlStringWriter();
-            Set<String> assetPaths = _tasks.keySet();
-            for (String assetPath : assetPaths) {
-                w1.add("id", "path=" + assetPath);
+
+            long startTime = System.currentTimeMillis();
+            Map<String, XmlDoc.Element> existing = queryExisting(session, _tasks.keySet());
+            if (_batchSizer != null) {
+                _batchSizer.update(_tasks.size(), System.currentTimeMillis() - startTime);
             }
-            List<XmlDoc.Element> ees = session.execute("asset.exists", w1.document()).elements("exists");
-
-            int nbExists = 0;
-            XmlStringWriter w2 = new XmlStringWriter();
-            for (XmlDoc.Element ee : ees) {
-                String assetPath = ee.value("@id").replaceFirst("^path=", "");
-                boolean exists = ee.booleanValue();
-                if (!exists) {
-                    _queue.put(_tasks.get(assetPath));
-                } else {
-                    w2.add("id", "path=" + assetPath);
-                    nbExists++;
+
+            List<String> undestroy = new ArrayList<String>();
+            List<FileUploadTask> update = new ArrayList<FileUploadTask>();
+            int nbSkipped = 0;
+            for (FileUploadTask task : _tasks.values()) {
+                XmlDoc.Element ae = existing.get(task.assetPath());
+                if (ae == null) {
+                    _queue.put(task.setNewAsset(true));
+                    continue;
                 }
-            }
-            if (nbExists > 0) {
-                List<String> undestroy = new ArrayList<String>();
-                List<FileUploadTask> update = new ArrayList<FileUploadTask>();
-                List<XmlDoc.Element> aes = session.execute("asset.get", w2.document()).elements("asset");
-                int nbSkipped = 0;
-                for (XmlDoc.Element ae : aes) {
 
-                    String assetId = ae.value("@id");
+                String assetId = ae.value("@id");
 
-                    /*
-                     * undestroy if soft-destroyed
-                     */
-                    boolean softDestroyed = ae.booleanValue("@destroyed", false);
-                    if (softDestroyed) {
-                        undestroy.add(assetId);
-                    }
+                /*
+                 * undestroy if soft-destroyed
+                 */
+                boolean softDestroyed = ae.booleanValue("destroyed", false);
+                if (softDestroyed) {
+                    undestroy.add(assetId);
+                }
 
-                    String assetPath = ae.value("path");
-                    FileUploadTask task = _tasks.get(assetPath);
-                    Path file = task.file();
-
-                    /*
-                     * update if asset has no content
-                     */
-                    if (!ae.elementExists("content")) {
-                        update.add(task);
-                        continue;
-                    }
+                Path file = task.file();
 
-                    /*
-                     * update if file size differs asset content size
-                     */
-                    long contentSize = ae.longValue("content/size");
-                    long fileSize = Files.size(file);
-                    if (fileSize != contentSize) {
-                        update.add(task);
-                        continue;
-                    }
+                /*
+                 * update if asset has no content
+                 */
+                long contentSize = ae.longValue("csize", -1);
+                if (contentSize < 0) {
+                    update.add(task);
+                    continue;
+                }
 
-                    /*
-                     * update if local file posix mtime is greater
-                     */
-                    PosixAttributes contentAttrs = ae.elementExists("meta/" + PosixAttributes.DOC_TYPE)
-                            ? new PosixAttributes(ae.element("meta/" + PosixAttributes.DOC_TYPE))
-                            : null;
-                    PosixAttributes fileAttrs = PosixAttributes.read(file);
-                    if (contentAttrs != null && fileAttrs != null && fileAttrs.mtimeGreaterThan(contentAttrs)) {
-                        // local file mtime > asset content posix mtime
-                        update.add(task);
-                        continue;
-                    }
+                /*
+                 * update if file size differs asset content size. (The size
+                 * and mtime read when the file was scanned are used, if
+                 * available.)
+                 */
+                long fileSize = task.fileSize();
+                long fileMTime = task.fileMtime();
+                if (fileSize < 0 || fileMTime < 0) {
+                    BasicFileAttributes fileAttrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    fileSize = fileAttrs.size();
+                    fileMTime = fileAttrs.lastModifiedTime().toMillis();
+                }
+                if (fileSize != contentSize) {
+                    update.add(task);
+                    continue;
+                }
 
-                    // @formatter:off
-                    /*
-                     * update if csums differ
-                     */
-//                    long contentCSUM = ae.longValue("content/csum[@base='16']", 0L, 16);
-//                    if (contentCSUM != ChecksumUtils.getCRC32Value(file)) {
-//                        update.add(task);
-//                        continue;
-//                    }
-                    // @formatter:on
-
-                    // logInfo("Skipped file: '" + file + "'. Asset: '" + assetPath + "' already exists.");
-                    nbSkipped ++;
-                    if (_ul != null) {
-                        _ul.fileUploadSkipped(file);
-                    }
+                /*
+                 * update if csums differ (if comparing csums), or if local
+                 * file posix mtime is greater
+                 */
+                long contentMTime = ae.longValue("mtime", -1);
+                long contentCSUM = ae.longValue("csum", 0L, 16);
+                if (contentDiffers(file, task.fileAttributes(), fileMTime, contentMTime, contentCSUM, _csumCache)) {
+                    update.add(task);
+                    continue;
                 }
-                if (!undestroy.isEmpty()) {
-                    XmlStringWriter w3 = new XmlStringWriter();
-                    for (String assetId : undestroy) {
-                        w3.add("id", assetId);
-                    }
-                    logInfo("undestroy soft-destroyed assets...");
-                    session.execute("asset.soft.undestroy", w3.document());
+
+                // logInfo("Skipped file: '" + file + "'. Asset: '" + assetPath + "' already exists.");
+                nbSkipped++;
+                task.updateSyncStateIndex(task.fileAttributes(), assetId, contentCSUM);
+                if (_ul != null) {
+                    _ul.fileUploadSkipped(file);
                 }
-                if (!update.isEmpty()) {
-                    for (FileUploadTask task : update) {
-                        _queue.put(task);
-                    }
+            }
+            if (!undestroy.isEmpty()) {
+                XmlStringWriter w2 = new XmlStringWriter();
+                for (String assetId : undestroy) {
+                    w2.add("id", assetId);
                 }
+                logInfo("undestroy soft-destroyed assets...");
+                session.execute("asset.soft.undestroy", w2.document());
+            }
+            if (!update.isEmpty()) {
+                for (FileUploadTask task : update) {
+                    _queue.put(task);
+                }
+            }
+            if (nbSkipped > 0) {
                 logInfo("Skipped " + nbSkipped + " files that already exist in Mediaflux.");
             }
             setWorkProgressed(_tasks.size());
         }
     }
 
+    /**
+     * Queries the existing (including soft-destroyed) assets of the specified
+     * paths, getting only the values needed. There may be more assets than
+     * paths (a live asset and soft-destroyed ones of the same path), so the
+     * results are paged until there is no more remaining.
+     *
+     * @return the assets by path. The live asset is preferred to the
+     *         soft-destroyed one.
+     */
+    static Map<String, XmlDoc.Element> queryExisting(MFSession session, Collection<String> assetPaths)
+            throws Throwable {
+        Map<String, XmlDoc.Element> existing = new HashMap<String, XmlDoc.Element>();
+        String where = whereClause(assetPaths);
+        int pageSize = Math.max(1, assetPaths.size());
+        long idx = 1;
+        boolean completed = false;
+        do {
+            XmlStringWriter w = new XmlStringWriter();
+            w.add("where", where);
+            w.add("include-destroyed", true);
+            w.add("action", "get-value");
+            w.add("count", true);
+            w.add("size", pageSize);
+            w.add("idx", idx);
+            w.add("xpath", new String[] { "ename", "path" },
+                    "string.format('%s/%s', xvalue('namespace'), xvalue('name'))");
+            w.add("xpath", new String[] { "ename", "destroyed" }, "@destroyed");
+            w.add("xpath", new String[] { "ename", "csize" }, "content/size");
+            w.add("xpath", new String[] { "ename", "csum" }, "content/csum");
+            w.add("xpath", new String[] { "ename", "mtime" }, "meta/" + PosixAttributes.DOC_TYPE + "/mtime");
+            XmlDoc.Element re = session.execute("asset.query", w.document());
+            List<XmlDoc.Element> aes = re.elements("asset");
+            if (aes != null) {
+                for (XmlDoc.Element ae : aes) {
+                    String assetPath = ae.value("path");
+                    XmlDoc.Element prev = existing.get(assetPath);
+                    // prefer the live asset to the soft-destroyed one.
+                    if (prev == null || (prev.booleanValue("destroyed", false)
+                            && !ae.booleanValue("destroyed", false))) {
+                        existing.put(assetPath, ae);
+                    }
+                }
+            }
+            idx += pageSize;
+            completed = aes == null || re.longValue("cursor/remaining", 0) == 0;
+        } while (!completed);
+        return existing;
+    }
+
+    /**
+     * Compares the file with the asset content of the same size. If the
+     * checksum cache is set and the content checksum is known, the CRC32
+     * checksums are compared, so that the files modified without changing
+     * their sizes are detected, and the files touched without being modified
+     * are not uploaded again. Otherwise, the content differs if the local file
+     * mtime is greater than the asset posix mtime.
+     */
+    static boolean contentDiffers(Path file, BasicFileAttributes attrs, long fileMTime, long contentMTime,
+            long contentCSUM, ChecksumCache csumCache) throws Throwable {
+        if (csumCache != null && contentCSUM != 0) {
+            return csumCache.getCRC32(file, attrs) != contentCSUM;
+        }
+        // local file mtime > asset content posix mtime
+        return contentMTime >= 0 && fileMTime > contentMTime;
+    }
+
+    /**
+     * Builds the query to select the assets of the specified paths, grouped by
+     * parent namespace: (namespace='/a' and (name='x' or name='y')) or ...
+     */
+    static String whereClause(Collection<String> assetPaths) {
+        Map<String, List<String>> names = new LinkedHashMap<String, List<String>>();
+        for (String assetPath : assetPaths) {
+            String namespace = PathUtils.getParentPath(assetPath);
+            List<String> ns = names.get(namespace);
+            if (ns == null) {
+                ns = new ArrayList<String>();
+                names.put(namespace, ns);
+            }
+            ns.add(PathUtils.getLastComponent(assetPath));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : names.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(" or ");
+            }
+            sb.append("(namespace='").append(escape(entry.getKey())).append("' and (");
+            List<String> ns = entry.getValue();
+            for (int i = 0; i < ns.size(); i++) {
+                if (i > 0) {
+                    sb.append(" or ");
+                }
+                sb.append("name='").append(escape(ns.get(i))).append("'");
+            }
+            sb.append("))");
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+
     @Override
     public String type() {
         return "file.check";
@@ -3,23 +3,46 @@ package unimelb.mf.client.sync.task;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import unimelb.mf.client.file.DirectoryStateCache;
+import unimelb.mf.client.file.FileSpillQueue;
 import unimelb.mf.client.file.Filter;
+import unimelb.mf.client.file.ParallelFileWalker;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.sync.MFSync;
 import unimelb.mf.client.sync.MFSyncSettings;
+import unimelb.mf.client.sync.index.ChecksumCache;
+import unimelb.mf.client.sync.index.DedupRegistry;
+import unimelb.mf.client.sync.index.RemoteAssetIndex;
+import unimelb.mf.client.sync.index.SyncStateIndex;
 import unimelb.mf.client.task.Task;
+import unimelb.mf.client.util.BandwidthLimiter;
+import unimelb.mf.client.util.BufferPool;
+import unimelb.mf.client.util.PathUtils;
 
 public class FileSyncTaskProducer implements Runnable {
 
@@ -27,14 +50,43 @@ public class FileSyncTaskProducer implements Runnable {
     private Logger _logger;
     private BlockingQueue<Task> _queue;
 
+    private ParallelFileWalker _walker;
+
     private ThreadPoolExecutor _checkThreadPool;
+    private Semaphore _checkPermits;
     private BlockingQueue<FileUploadTask> _checkQueue;
+    private CheckBatchSizer _batchSizer;
+    private ScheduledExecutorService _lingerTimer = null;
+    private volatile long _lastCheckSubmitTime = 0;
 
     private MFSyncSettings _settings;
     private FileUploadListener _ul;
 
     private Filter _filter = null;
 
+    private SyncStateIndex _index = null;
+
+    private ChecksumCache _csumCache = null;
+    private BufferPool _bufferPool = null;
+    private SegmentedUpload _segmentedUpload = null;
+    private BandwidthLimiter _bandwidthLimiter = null;
+    private DedupRegistry _dedupRegistry = null;
+
+    private FileSpillQueue _spillQueue = null;
+
+    private FileWatchTaskProducer _watcher = null;
+
+    private QuiescenceGate _gate = null;
+
+    private ExecutorService _jobThreadPool = null;
+
+    private Map<MFSyncSettings.Job, DirectoryStateCache> _dirStates;
+    private Map<MFSyncSettings.Job, RemoteAssetIndex> _remoteIndexes;
+    // the number of files checked (not matching the sync state index) by the
+    // last full scan of each job.
+    private Map<MFSyncSettings.Job, Long> _checkedFileCounts;
+    private long _lastFullScanTime = 0;
+
     public FileSyncTaskProducer(MFSession session, Logger logger, MFSyncSettings settings, FileUploadListener ul,
             BlockingQueue<Task> queue) {
         _session = session;
@@ -42,15 +94,87 @@ public class FileSyncTaskProducer implements Runnable {
         _settings = settings;
         _ul = ul;
         _queue = queue;
-        _checkThreadPool = new ThreadPoolExecutor(1, _settings.maxNumberOfCheckers(), 0, TimeUnit.MILLISECONDS,
+        _walker = new ParallelFileWalker(_settings.numberOfScanners());
+        /*
+         * up to maxNumberOfCheckers batches are checked concurrently (the
+         * idle threads time out). The number of batches in flight (running
+         * or waiting) is bounded by the permits: when they are all taken, the
+         * submitting (scanner) thread blocks, which slows down the scanning.
+         */
+        int nbCheckers = _settings.maxNumberOfCheckers();
+        _checkThreadPool = new ThreadPoolExecutor(nbCheckers, nbCheckers, 60, TimeUnit.SECONDS,
                 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
 
                     @Override
                     public Thread newThread(Runnable r) {
                         return new Thread(r, "Checker");
                     }
-                }, new ThreadPoolExecutor.CallerRunsPolicy());
-        _checkQueue = new LinkedBlockingQueue<FileUploadTask>();
+                });
+        _checkThreadPool.allowCoreThreadTimeOut(true);
+        _checkPermits = new Semaphore(nbCheckers * 2);
+        // it is drained by the scanner (and watcher) threads whenever it
+        // reaches the batch size, and by the linger timer when the files have
+        // waited for the linger time.
+        _batchSizer = new CheckBatchSizer(_settings.checkBatchSize(), MFSync.MAX_CHECK_BATCH_SIZE,
+                _settings.adaptiveCheckBatchSize());
+        _checkQueue = new LinkedBlockingQueue<FileUploadTask>(
+                (_settings.adaptiveCheckBatchSize() ? MFSync.MAX_CHECK_BATCH_SIZE : _settings.checkBatchSize())
+                        + _settings.numberOfScanners() + 1);
+        if (_settings.checkLinger() > 0) {
+            _lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Check Linger");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long linger = _settings.checkLinger();
+            _lingerTimer.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!_checkQueue.isEmpty() && System.currentTimeMillis() - _lastCheckSubmitTime >= linger) {
+                        try {
+                            flush();
+                        } catch (Throwable e) {
+                            _logger.log(Level.SEVERE, e.getMessage(), e);
+                        }
+                    }
+                }
+            }, linger, linger, TimeUnit.MILLISECONDS);
+        }
+        _dirStates = new ConcurrentHashMap<MFSyncSettings.Job, DirectoryStateCache>();
+        _remoteIndexes = new ConcurrentHashMap<MFSyncSettings.Job, RemoteAssetIndex>();
+        _checkedFileCounts = new ConcurrentHashMap<MFSyncSettings.Job, Long>();
+        int nbJobs = _settings.jobs().size();
+        if (nbJobs > 1) {
+            // the jobs are scanned concurrently, sharing the scanner and
+            // checker threads. Their tasks are interleaved in the (weighted)
+            // task queue.
+            _jobThreadPool = Executors.newFixedThreadPool(nbJobs, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Job Scanner");
+                }
+            });
+        }
+        if (_settings.quiescencePeriod() > 0) {
+            _gate = new QuiescenceGate(_settings.quiescencePeriod(), new QuiescenceGate.Handler() {
+
+                @Override
+                public void release(MFSyncSettings.Job job, Path file, BasicFileAttributes attrs) throws Throwable {
+                    check(job, file, attrs, null);
+                }
+
+                @Override
+                public void released() throws Throwable {
+                    flush();
+                }
+            }, _logger);
+        }
     }
 
     @Override
@@ -60,9 +184,13 @@ public class FileSyncTaskProducer implements Runnable {
                 _logger.info("Start scanning source files...");
                 execute();
                 if (!_settings.daemonEnabled()) {
+                    if (_gate != null && _gate.size() > 0) {
+                        _logger.info("Waiting for " + _gate.size() + " files being written to settle...");
+                        _gate.awaitEmpty();
+                    }
                     _checkThreadPool.shutdown();
                     _checkThreadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
-                    int nbWorkers = _settings.numberOfWorkers();
+                    int nbWorkers = _settings.numberOfWorkerThreads();
                     for (int i = 0; i < nbWorkers; i++) {
                         _queue.put(new PoisonTask());
                     }
@@ -84,6 +212,17 @@ public class FileSyncTaskProducer implements Runnable {
                     _logger.log(Level.SEVERE, e.getMessage(), e);
                 }
             }
+        } finally {
+            if (_jobThreadPool != null) {
+                _jobThreadPool.shutdownNow();
+            }
+            if (_lingerTimer != null) {
+                _lingerTimer.shutdownNow();
+            }
+            _walker.shutdown();
+            if (_gate != null) {
+                _gate.shutdown();
+            }
         }
     }
 
@@ -92,31 +231,302 @@ public class FileSyncTaskProducer implements Runnable {
         return this;
     }
 
+    public FileSyncTaskProducer setSyncStateIndex(SyncStateIndex index) {
+        _index = index;
+        return this;
+    }
+
+    public FileSyncTaskProducer setChecksumCache(ChecksumCache csumCache) {
+        _csumCache = csumCache;
+        return this;
+    }
+
+    public FileSyncTaskProducer setBufferPool(BufferPool bufferPool) {
+        _bufferPool = bufferPool;
+        return this;
+    }
+
+    public FileSyncTaskProducer setSegmentedUpload(SegmentedUpload segmentedUpload) {
+        _segmentedUpload = segmentedUpload;
+        return this;
+    }
+
+    public FileSyncTaskProducer setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        _bandwidthLimiter = bandwidthLimiter;
+        return this;
+    }
+
+    public FileSyncTaskProducer setDedupRegistry(DedupRegistry dedupRegistry) {
+        _dedupRegistry = dedupRegistry;
+        return this;
+    }
+
+    public FileSyncTaskProducer setSpillQueue(FileSpillQueue spillQueue) {
+        _spillQueue = spillQueue;
+        return this;
+    }
+
+    /**
+     * Sets the watcher to register the scanned directories with.
+     */
+    public FileSyncTaskProducer setWatcher(FileWatchTaskProducer watcher) {
+        _watcher = watcher;
+        return this;
+    }
+
     protected void execute() throws Throwable {
+        if (_settings.daemonIncrementalScanEnabled()) {
+            long now = System.currentTimeMillis();
+            if (_lastFullScanTime > 0 && now - _lastFullScanTime < _settings.daemonFullScanInterval()) {
+                _logger.info("Scanning changed directories only...");
+            } else {
+                _lastFullScanTime = now;
+                _dirStates.clear();
+            }
+        }
         List<MFSyncSettings.Job> jobs = _settings.jobs();
-        for (MFSyncSettings.Job job : jobs) {
-            submit(job);
+        if (_jobThreadPool == null) {
+            for (MFSyncSettings.Job job : jobs) {
+                submit(job);
+            }
+        } else {
+            List<Future<?>> futures = new ArrayList<Future<?>>(jobs.size());
+            for (MFSyncSettings.Job job : jobs) {
+                futures.add(_jobThreadPool.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            submit(job);
+                        } catch (Exception | Error e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            throw new RuntimeException(e);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof InterruptedException) {
+                            throw (InterruptedException) cause;
+                        }
+                        _logger.log(Level.SEVERE, cause.getMessage(), cause);
+                    }
+                }
+            } catch (InterruptedException e) {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+                throw e;
+            }
+        }
+        try {
+            drainSpillQueue();
+            flush();
+        } finally {
+            // the remote state is only valid for this scan.
+            _remoteIndexes.clear();
+        }
+        if (_index != null) {
+            _index.flush();
+        }
+        if (_csumCache != null) {
+            _csumCache.flush();
         }
     }
 
     private void submit(MFSyncSettings.Job job) throws Throwable {
-        Files.walkFileTree(job.directory(), new SimpleFileVisitor<Path>() {
+        DirectoryStateCache dirStates = null;
+        if (_settings.daemonIncrementalScanEnabled()) {
+            // the directory states are kept per job, because the jobs may
+            // share directories but visit different files in them.
+            dirStates = _dirStates.get(job);
+            if (dirStates == null) {
+                dirStates = new DirectoryStateCache();
+                _dirStates.put(job, dirStates);
+            }
+        }
+        boolean fullScan = dirStates == null || dirStates.size() == 0;
+        if (_settings.prefetchLimit() > 0 && fullScan) {
+            prefetch(job);
+        }
+        LongAdder nbChecked = fullScan ? new LongAdder() : null;
+        walk(job, job.directory(), dirStates, _spillQueue, nbChecked);
+        if (nbChecked != null) {
+            _checkedFileCounts.put(job, nbChecked.sum());
+        }
+        flush();
+    }
+
+    /**
+     * Prefetches the assets in the destination namespace of the job, if there
+     * are not more of them than the prefetch limit, so that the files are
+     * compared with the prefetched assets instead of being checked in
+     * batches. Only for full scans: the incremental scans visit too few files
+     * to be worth it. It is also skipped if there are many more assets than
+     * the files checked by the last full scan of the job (e.g. a small job
+     * into a large namespace, or the daemon rescans where most of the files
+     * match the sync state index).
+     */
+    private void prefetch(MFSyncSettings.Job job) throws Throwable {
+        _remoteIndexes.remove(job);
+        long count = RemoteAssetIndex.countAssets(_session, job.namespace());
+        if (count > _settings.prefetchLimit()) {
+            _logger.info("Found " + count + " assets in namespace: '" + job.namespace()
+                    + "'. Exceeds prefetch limit. Checking files in batches...");
+            return;
+        }
+        Long nbChecked = _checkedFileCounts.get(job);
+        if (nbChecked != null && count > MFSync.PREFETCH_MAX_ASSETS_PER_FILE * nbChecked) {
+            _logger.info("Found " + count + " assets in namespace: '" + job.namespace() + "', but only " + nbChecked
+                    + " files were checked by the last scan. Checking files in batches...");
+            return;
+        }
+        _remoteIndexes.put(job, RemoteAssetIndex.load(_session, job.namespace(), count, _logger));
+    }
+
+    /**
+     * Checks the files spilled to disk (by all the jobs) during the scan.
+     */
+    private void drainSpillQueue() throws Throwable {
+        if (_spillQueue != null && _spillQueue.size() > 0) {
+            _logger.info("Checking " + _spillQueue.size() + " files spilled to disk...");
+            List<MFSyncSettings.Job> jobs = _settings.jobs();
+            _spillQueue.drain(new FileSpillQueue.Handler() {
+
+                @Override
+                public void handle(int jobIndex, Path file) throws Throwable {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        // removed since it was scanned.
+                        return;
+                    }
+                    check(jobs.get(jobIndex), file, attrs, null);
+                }
+            });
+        }
+    }
+
+    private int jobIndexOf(FileUploadTask task) {
+        List<MFSyncSettings.Job> jobs = _settings.jobs();
+        for (int i = 0; i < jobs.size(); i++) {
+            MFSyncSettings.Job job = jobs.get(i);
+            if (job.directory().equals(task.rootDirectory()) && job.namespace().equals(task.rootNamespace())) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No job found for file: '" + task.file() + "'");
+    }
+
+    /**
+     * Scans the specified directory (sub-tree) of the job. The directory
+     * state cache and the spill queue are not used. It is called by the
+     * watcher.
+     *
+     * @param job
+     *            the job.
+     * @param dir
+     *            the directory, which must be (or be a descendant of) the job
+     *            directory.
+     * @throws Throwable
+     */
+    public void rescan(MFSyncSettings.Job job, Path dir) throws Throwable {
+        walk(job, dir, null, null, null);
+        flush();
+    }
+
+    /**
+     * Checks the specified file of the job, and uploads it if it does not
+     * exist or differs. The file is submitted in batch, call {@link #flush()}
+     * to submit the pending files.
+     *
+     * @param job
+     *            the job.
+     * @param file
+     *            the file.
+     * @param attrs
+     *            the file attributes.
+     * @throws Throwable
+     */
+    public void submitFile(MFSyncSettings.Job job, Path file, BasicFileAttributes attrs) throws Throwable {
+        visitFile(job, file, attrs, null);
+    }
+
+    /**
+     * Invalidates the cached state of the directory of the file (which failed
+     * to check or upload), so that the next incremental scan visits the file
+     * again.
+     *
+     * @param file
+     *            the file.
+     */
+    public void invalidateDirectoryOf(Path file) {
+        Path dir = file.getParent();
+        if (dir == null) {
+            return;
+        }
+        for (Map.Entry<MFSyncSettings.Job, DirectoryStateCache> entry : _dirStates.entrySet()) {
+            if (file.startsWith(entry.getKey().directory())) {
+                entry.getValue().invalidate(dir);
+            }
+        }
+    }
+
+    /**
+     * Submits the pending files to check.
+     *
+     * @throws Throwable
+     */
+    public void flush() throws Throwable {
+        while (!_checkQueue.isEmpty()) {
+            List<FileUploadTask> tasks = new ArrayList<FileUploadTask>();
+            _checkQueue.drainTo(tasks, _batchSizer.batchSize());
+            submitCheckTask(tasks, null);
+        }
+    }
+
+    /**
+     * @return true if the file is to be checked (now, or once settled).
+     */
+    private boolean visitFile(MFSyncSettings.Job job, Path file, BasicFileAttributes attrs,
+            FileSpillQueue spillQueue) throws Throwable {
+        if (_filter == null || _filter.acceptFile(file, attrs)) {
+            if (job.matchPath(file)) {
+                if (_index != null && _index.matches(
+                        PathUtils.join(job.namespace(), PathUtils.relativePath(job.directory(), file)), attrs)) {
+                    // unchanged since last synced.
+                    if (_ul != null) {
+                        _ul.fileUploadSkipped(file);
+                    }
+                    return false;
+                }
+                if (_gate != null && _gate.hold(job, file, attrs)) {
+                    // may still be being written.
+                    return true;
+                }
+                check(job, file, attrs, spillQueue);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void walk(MFSyncSettings.Job job, Path start, DirectoryStateCache dirStates, FileSpillQueue spillQueue,
+            LongAdder nbChecked) throws Throwable {
+        _walker.walk(start, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                 try {
-                    if (_filter == null || _filter.acceptFile(file, attrs)) {
-                        if (job.matchPath(file)) {
-                            _checkQueue.put(new FileUploadTask(_session, _logger, file, job.directory(),
-                                    job.namespace(), _settings.csumCheck(), _ul));
-                            if (_checkQueue.size() >= _settings.checkBatchSize()) {
-                                List<FileUploadTask> tasks = new ArrayList<FileUploadTask>();
-                                int nbTasks = _checkQueue.drainTo(tasks, _settings.checkBatchSize());
-                                if (!tasks.isEmpty()) {
-                                    _logger.info("Submitting " + nbTasks + " files to check...");
-                                    _checkThreadPool.submit(new FileCheckTask(_session, _logger, tasks, _queue, _ul));
-                                }
-                            }
-                        }
+                    if (FileSyncTaskProducer.this.visitFile(job, file, attrs, spillQueue) && nbChecked != null) {
+                        nbChecked.increment();
                     }
                 } catch (Throwable e) {
                     if (e instanceof InterruptedException) {
@@ -161,19 +571,101 @@ public class FileSyncTaskProducer implements Runnable {
                         }
                         _logger.log(Level.SEVERE, e.getMessage(), e);
                     }
+                    if (!job.mayMatchDescendants(dir)) {
+                        // no descendant can match the include/exclude patterns.
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (_watcher != null) {
+                        _watcher.register(dir);
+                    }
                     return FileVisitResult.CONTINUE;
                 } else {
                     return FileVisitResult.SKIP_SUBTREE;
                 }
             }
-        });
-        while (!_checkQueue.isEmpty()) {
+        }, dirStates);
+    }
+
+    private void check(MFSyncSettings.Job job, Path file, BasicFileAttributes attrs, FileSpillQueue spillQueue)
+            throws Throwable {
+        FileUploadTask task = new FileUploadTask(_session, _logger, file, job.directory(), job.namespace(),
+                _settings.csumCheck(), _ul).setSyncStateIndex(_index).setBufferPool(_bufferPool)
+                        .setDigestTypes(_settings.digestTypes()).setSegmentedUpload(_segmentedUpload)
+                        .setBandwidthLimiter(_bandwidthLimiter).setDedupRegistry(_dedupRegistry)
+                        .setFileAttributes(attrs);
+        RemoteAssetIndex remoteIndex = _remoteIndexes.get(job);
+        if (remoteIndex != null) {
+            RemoteAssetIndex.Entry ae = remoteIndex.get(task.assetPath());
+            if (ae == null) {
+                // asset does not exist.
+                _queue.put(task.setNewAsset(true));
+                return;
+            }
+            if (!ae.destroyed()) {
+                // same criteria as FileCheckTask
+                if (ae.size() < 0 || ae.size() != attrs.size() || FileCheckTask.contentDiffers(file, attrs,
+                        attrs.lastModifiedTime().toMillis(), ae.mtime(), ae.csum(), _csumCache)) {
+                    _queue.put(task);
+                } else {
+                    task.updateSyncStateIndex(attrs, ae.assetId(), ae.csum());
+                    if (_ul != null) {
+                        _ul.fileUploadSkipped(file);
+                    }
+                }
+                return;
+            }
+            // soft-destroyed: check in batch, which undestroys it.
+        }
+        _checkQueue.put(task);
+        int batchSize = _batchSizer.batchSize();
+        if (_checkQueue.size() >= batchSize) {
             List<FileUploadTask> tasks = new ArrayList<FileUploadTask>();
-            int nbTasks = _checkQueue.drainTo(tasks, _settings.checkBatchSize());
-            if (!tasks.isEmpty()) {
-                _logger.info("Submitting " + nbTasks + " files to check...");
-                _checkThreadPool.submit(new FileCheckTask(_session, _logger, tasks, _queue, _ul));
+            _checkQueue.drainTo(tasks, batchSize);
+            submitCheckTask(tasks, spillQueue);
+        }
+    }
+
+    private void submitCheckTask(List<FileUploadTask> tasks, FileSpillQueue spillQueue) throws Throwable {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        if (spillQueue != null
+                && (_checkPermits.availablePermits() == 0 || _queue.remainingCapacity() < tasks.size())) {
+            // the pipeline is saturated. Spill to disk instead of blocking the
+            // scanner.
+            for (FileUploadTask task : tasks) {
+                spillQueue.add(jobIndexOf(task), task.file());
             }
+            return;
+        }
+        _lastCheckSubmitTime = System.currentTimeMillis();
+        _logger.info("Submitting " + tasks.size() + " files to check...");
+        FileCheckTask task = new FileCheckTask(_session, _logger, tasks, _queue, _ul).setBatchSizer(_batchSizer)
+                .setChecksumCache(_csumCache);
+        _checkPermits.acquire();
+        try {
+            _checkThreadPool.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        task.call();
+                    } catch (Throwable e) {
+                        // check the files again in the next scan.
+                        for (FileUploadTask t : tasks) {
+                            invalidateDirectoryOf(t.file());
+                        }
+                        if (!(e instanceof InterruptedException)) {
+                            _logger.log(Level.SEVERE, e.getMessage(), e);
+                        }
+                    } finally {
+                        _checkPermits.release();
+                    }
+                }
+            });
+        } catch (Throwable e) {
+            _checkPermits.release();
+            throw e;
         }
     }
 
@@ -1,14 +1,17 @@
 package unimelb.mf.client.sync.task;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
 
 import arc.mf.client.ServerClient;
 import arc.streams.StreamCopy.AbortCheck;
@@ -16,6 +19,12 @@ import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import unimelb.mf.client.file.PosixAttributes;
 import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.sync.index.DedupRegistry;
+import unimelb.mf.client.sync.index.SyncStateIndex;
+import unimelb.mf.client.util.BandwidthLimiter;
+import unimelb.mf.client.util.BufferPool;
+import unimelb.mf.client.util.ChecksumUtils.ChecksumType;
+import unimelb.mf.client.util.MultiDigest;
 import unimelb.mf.client.util.PathUtils;
 
 public class FileUploadTask extends SyncTask {
@@ -30,12 +39,60 @@ public class FileUploadTask extends SyncTask {
 
     private int _retry = 1;
 
+    /**
+     * The progress is published to the listener (which is shared by the
+     * workers) in steps of at least this number of bytes, rather than for
+     * every buffer.
+     */
+    public static final long PROGRESS_PUBLISH_SIZE = 1048576L;
+
+    /**
+     * The service to copy an asset (including its content) on the server, for
+     * the deduplicated files.
+     */
+    public static final String DEDUP_COPY_SERVICE = "asset.copy";
+
     private long _bytesUploaded = 0;
 
+    private long _bytesPublished = 0;
+
     private String _assetPath;
 
     private String _assetId;
 
+    /*
+     * the check found no asset (live or soft-destroyed) at the asset path.
+     */
+    private boolean _newAsset = false;
+
+    private SyncStateIndex _index;
+
+    private long _fileSize = -1;
+
+    private long _fileMtime = -1;
+
+    private BasicFileAttributes _fileAttrs = null;
+
+    private BufferPool _bufferPool = null;
+
+    private Set<ChecksumType> _digestTypes = null;
+
+    private Map<ChecksumType, String> _digests = null;
+
+    private SegmentedUpload _segmentedUpload = null;
+
+    private BandwidthLimiter _bandwidthLimiter = null;
+
+    private DedupRegistry _dedupRegistry = null;
+
+    private String _sha256 = null;
+
+    /*
+     * the checksums have been computed before uploading (to deduplicate), so
+     * they are not computed again while uploading.
+     */
+    private boolean _digestsComputed = false;
+
     public FileUploadTask(MFSession session, Logger logger, Path file, Path rootDir, String rootNS, boolean csumCheck,
             FileUploadListener ul) {
         super(session, logger, rootDir, rootNS);
@@ -54,30 +111,460 @@ public class FileUploadTask extends SyncTask {
         _assetId = assetId;
     }
 
+    /**
+     * Marks that the check found no asset at the asset path, so that the file
+     * can be uploaded in an archive (which only creates assets).
+     */
+    FileUploadTask setNewAsset(boolean newAsset) {
+        _newAsset = newAsset;
+        return this;
+    }
+
+    /**
+     * @return true if the check found no asset at the asset path, false if it
+     *         found one (or the file has not been checked).
+     */
+    boolean isNewAsset() {
+        return _newAsset;
+    }
+
     public Path file() {
         return _file;
     }
 
+    public FileUploadTask setSyncStateIndex(SyncStateIndex index) {
+        _index = index;
+        return this;
+    }
+
+    /**
+     * Sets the pool of the buffers used to read the file. If not set, a buffer
+     * is allocated for each upload.
+     */
+    public FileUploadTask setBufferPool(BufferPool bufferPool) {
+        _bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * Sets the types of the checksums (in addition to the CRC32 checksum if
+     * csumCheck is enabled) computed while uploading the file, which are
+     * logged when the upload completes.
+     */
+    public FileUploadTask setDigestTypes(Set<ChecksumType> digestTypes) {
+        _digestTypes = digestTypes == null || digestTypes.isEmpty() ? null : digestTypes;
+        return this;
+    }
+
+    /**
+     * @return the checksums computed while uploading the file, or null if not
+     *         computed.
+     */
+    public Map<ChecksumType, String> digests() {
+        return _digests;
+    }
+
+    /**
+     * Sets the segmented upload, for the large files. If not set, the files
+     * are uploaded in a single request.
+     */
+    public FileUploadTask setSegmentedUpload(SegmentedUpload segmentedUpload) {
+        _segmentedUpload = segmentedUpload;
+        return this;
+    }
+
+    public FileUploadTask setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        _bandwidthLimiter = bandwidthLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the registry of the uploaded contents, so that the file is copied
+     * on the server if an identical file has been uploaded. If not set, the
+     * file is always uploaded.
+     */
+    public FileUploadTask setDedupRegistry(DedupRegistry dedupRegistry) {
+        _dedupRegistry = dedupRegistry;
+        return this;
+    }
+
+    private boolean dedup() {
+        return _dedupRegistry != null && _dedupRegistry.accepts(_fileSize);
+    }
+
+    BandwidthLimiter bandwidthLimiter() {
+        return _bandwidthLimiter;
+    }
+
+    BufferPool bufferPool() {
+        return _bufferPool;
+    }
+
+    /**
+     * Sets the file size and mtime (in milliseconds) read when the file was
+     * scanned.
+     */
+    public FileUploadTask setFileAttributes(long size, long mtime) {
+        _fileSize = size;
+        _fileMtime = mtime;
+        if (size >= 0) {
+            setWorkTotal(size);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the file attributes read when the file was scanned. They are kept
+     * (to update the sync state index without reading them again) until the
+     * task is stored in compact form in the task queue.
+     */
+    public FileUploadTask setFileAttributes(BasicFileAttributes attrs) {
+        _fileAttrs = attrs;
+        return setFileAttributes(attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * @return the file attributes read when the file was scanned, or null if
+     *         not available.
+     */
+    BasicFileAttributes fileAttributes() {
+        return _fileAttrs;
+    }
+
+    /**
+     * @return the file size when the file was scanned, or -1 if unknown.
+     */
+    public long fileSize() {
+        return _fileSize;
+    }
+
+    /**
+     * @return the file mtime (in milliseconds) when the file was scanned, or
+     *         -1 if unknown.
+     */
+    public long fileMtime() {
+        return _fileMtime;
+    }
+
+    /**
+     * Check if the specified task uploads to the same job (session, root
+     * directory, namespace, options and listener) as this task.
+     */
+    boolean sameContext(FileUploadTask task) {
+        return session() == task.session() && logger() == task.logger() && _ul == task._ul
+                && _index == task._index && _bufferPool == task._bufferPool && _digestTypes == task._digestTypes
+                && _segmentedUpload == task._segmentedUpload && _bandwidthLimiter == task._bandwidthLimiter
+                && _dedupRegistry == task._dedupRegistry && _csumCheck == task._csumCheck
+                && rootDirectory().equals(task.rootDirectory()) && rootNamespace().equals(task.rootNamespace());
+    }
+
+    MFSession sessionOf() {
+        return session();
+    }
+
+    /**
+     * Creates a new (pending) task for the specified file in the same context.
+     */
+    FileUploadTask copyFor(Path file, long size, long mtime) {
+        return new FileUploadTask(session(), logger(), file, rootDirectory(), rootNamespace(), _csumCheck, _ul)
+                .setSyncStateIndex(_index).setBufferPool(_bufferPool).setDigestTypes(_digestTypes)
+                .setSegmentedUpload(_segmentedUpload).setBandwidthLimiter(_bandwidthLimiter)
+                .setDedupRegistry(_dedupRegistry).setFileAttributes(size, mtime);
+    }
+
+    /**
+     * Records the current state of the local file in the sync state index (if
+     * set). It is called when the file is uploaded, or when it is found
+     * identical to the existing asset.
+     */
+    void updateSyncStateIndex(BasicFileAttributes attrs, String assetId, long csum) {
+        if (_index != null) {
+            try {
+                _index.put(_assetPath, attrs == null ? Files.readAttributes(_file, BasicFileAttributes.class) : attrs,
+                        assetId, csum);
+            } catch (Throwable e) {
+                logError("Failed to update sync state index for file: '" + _file + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the current attributes of the file, in case it has changed since
+     * it was scanned.
+     */
+    BasicFileAttributes restat() throws Throwable {
+        BasicFileAttributes basicAttrs = Files.readAttributes(_file, BasicFileAttributes.class);
+        if (basicAttrs.size() != _fileSize || basicAttrs.lastModifiedTime().toMillis() != _fileMtime) {
+            setFileAttributes(basicAttrs);
+        }
+        return basicAttrs;
+    }
+
+    /**
+     * Adds the asset.set service (to be executed by service.execute) to
+     * create or update the asset, with the posix attributes of the file. The
+     * posix attributes (including ACL, owner and group) are only read now that
+     * the file is to be uploaded.
+     */
+    void addAssetSetService(XmlStringWriter w) throws Throwable {
+        w.push("service", new String[] { "name", "asset.set" });
+        w.add("id", "path=" + _assetPath);
+        w.add("create", true);
+        w.push("meta", new String[] { "action", "replace" });
+        PosixAttributes.read(_file).save(w);
+        w.pop();
+        w.pop();
+    }
+
+    /**
+     * Creates the input to upload the file content. The CRC32 checksum (if
+     * csumCheck is enabled) and the other digests are computed while
+     * uploading.
+     */
+    ServerClient.Input createInput(long fileSize) throws Throwable {
+        String fileExt = PathUtils.getFileExtension(_file.toString());
+        return new ServerClient.GeneratedInput(null, fileExt, _file.toString(), fileSize) {
+            @Override
+            protected void copyTo(OutputStream out, AbortCheck ac) throws Throwable {
+                try {
+                    FileChannel in = FileChannel.open(_file, StandardOpenOption.READ);
+                    try {
+                        if (!computesDigests() && out instanceof WritableByteChannel) {
+                            transfer(in, (WritableByteChannel) out, ac);
+                        } else {
+                            copy(in, out, ac);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Copies the file to the output stream through a (pooled) buffer, and
+     * computes the checksums in the same pass.
+     */
+    private void copy(FileChannel in, OutputStream out, AbortCheck ac) throws Throwable {
+        ByteBuffer buffer = _bufferPool == null ? ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE)
+                : _bufferPool.acquire();
+        try {
+            MultiDigest md = newDigest();
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                if (_bandwidthLimiter != null) {
+                    _bandwidthLimiter.acquire(len);
+                }
+                out.write(buffer.array(), buffer.arrayOffset(), len);
+                if (md != null) {
+                    md.update(buffer.array(), buffer.arrayOffset(), len);
+                }
+                buffer.clear();
+                if (uploadProgressed(len)) {
+                    checkAborted(ac);
+                }
+            }
+            if (md != null) {
+                digestCompleted(md);
+            }
+        } finally {
+            publishProgress();
+            if (_bufferPool != null) {
+                _bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Transfers the file to the channel, which may avoid copying the file
+     * contents in user space (e.g. if the channel is a socket).
+     */
+    private void transfer(FileChannel in, WritableByteChannel out, AbortCheck ac) throws Throwable {
+        long chunkSize = _bufferPool == null ? BufferPool.MIN_BUFFER_SIZE : _bufferPool.bufferSize();
+        long position = 0;
+        long size = in.size();
+        try {
+            while (position < size) {
+                long count = Math.min(chunkSize, size - position);
+                if (_bandwidthLimiter != null) {
+                    _bandwidthLimiter.acquire(count);
+                }
+                long len = in.transferTo(position, count, out);
+                if (len <= 0) {
+                    break;
+                }
+                position += len;
+                if (uploadProgressed(len)) {
+                    checkAborted(ac);
+                }
+            }
+        } finally {
+            publishProgress();
+        }
+    }
+
+    /**
+     * Records the bytes of the file uploaded (or written to an archive). The
+     * progress is accumulated in the task, and only published to the listener
+     * in steps of {@link #PROGRESS_PUBLISH_SIZE}, so that the cost of the
+     * accounting does not depend on the buffer size.
+     *
+     * @return true if the progress has been published, i.e. it is time for the
+     *         copy loop to check if the upload has been aborted.
+     */
+    boolean uploadProgressed(long len) {
+        _bytesUploaded += len;
+        incWorkProgress(len);
+        if (_bytesUploaded - _bytesPublished >= PROGRESS_PUBLISH_SIZE) {
+            publishProgress();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Publishes the progress accumulated since the last call to the listener.
+     */
+    void publishProgress() {
+        long delta = _bytesUploaded - _bytesPublished;
+        if (delta != 0) {
+            _bytesPublished = _bytesUploaded;
+            if (_ul != null) {
+                _ul.fileUploadProgressed(delta);
+            }
+        }
+    }
+
+    static void checkAborted(AbortCheck ac) throws InterruptedException {
+        if ((ac != null && ac.hasBeenAborted()) || Thread.interrupted()) {
+            throw new InterruptedException("Upload aborted.");
+        }
+    }
+
+    void setCsum(long csum) {
+        _csum = csum;
+    }
+
+    void segmentStarted(long offset, long fileSize) {
+        setCurrentOperation("Uploading file: '" + _file + "' to asset: '" + _assetPath + "' (" + offset + "/"
+                + fileSize + " bytes)");
+    }
+
+    private boolean computesDigests() {
+        return !_digestsComputed && (_csumCheck || _digestTypes != null || dedup());
+    }
+
+    /**
+     * @return a digest of the checksums to compute while uploading, or null if
+     *         none.
+     */
+    MultiDigest newDigest() throws Throwable {
+        if (!computesDigests()) {
+            return null;
+        }
+        boolean dedup = dedup();
+        Set<ChecksumType> types = EnumSet.noneOf(ChecksumType.class);
+        if (_csumCheck) {
+            types.add(ChecksumType.CRC32);
+        }
+        if (_digestTypes != null) {
+            types.addAll(_digestTypes);
+        }
+        if (dedup) {
+            // to register the content for deduplication.
+            types.add(ChecksumType.SHA256);
+        }
+        return new MultiDigest(types);
+    }
+
+    /**
+     * Records the checksums computed while uploading.
+     */
+    void digestCompleted(MultiDigest md) {
+        if (_csumCheck) {
+            _csum = md.crc32Value();
+        }
+        if (_digestTypes != null || dedup()) {
+            Map<ChecksumType, String> digests = md.values();
+            if (dedup()) {
+                _sha256 = digests.get(ChecksumType.SHA256);
+            }
+            if (_digestTypes != null) {
+                digests.keySet().retainAll(_digestTypes);
+                _digests = digests;
+            }
+        }
+    }
+
+    boolean csumCheck() {
+        return _csumCheck;
+    }
+
+    /**
+     * @return the CRC32 checksum computed while uploading, or 0 if not
+     *         computed.
+     */
+    long csum() {
+        return _csum;
+    }
+
+    void uploadStarted() {
+        if (_ul != null) {
+            _ul.fileUploadStarted(_file);
+        }
+    }
+
+    void uploadCompleted(BasicFileAttributes attrs, String assetId) {
+        _assetId = assetId;
+        updateSyncStateIndex(attrs, _assetId, _csum);
+        if (_digests != null) {
+            logInfo("Checksums of file: '" + _file + "': " + MultiDigest.toString(_digests));
+        }
+        if (_ul != null) {
+            _ul.fileUploadCompleted(_file, _assetId);
+        }
+    }
+
+    /**
+     * Discards the progress of the failed upload (to retry it).
+     */
+    void uploadAborted() {
+        _csum = 0;
+        _digests = null;
+        _sha256 = null;
+        _digestsComputed = false;
+        rewindProgress();
+    }
+
+    void uploadFailed() {
+        if (_ul != null) {
+            _ul.fileUploadFailed(_file);
+        }
+        _digestsComputed = false;
+        rewindProgress();
+    }
+
     @Override
     public void execute(MFSession session) throws Throwable {
         try {
-            if (_ul != null) {
-                _ul.fileUploadStarted(_file);
+            uploadStarted();
+            // re-stat the file in case it has changed since it was scanned.
+            BasicFileAttributes basicAttrs = restat();
+            long fileSize = basicAttrs.size();
+            if (dedup() && executeDeduplicated(session, basicAttrs)) {
+                return;
+            }
+            if (_segmentedUpload != null && _segmentedUpload.accepts(fileSize)) {
+                executeSegmented(session, basicAttrs);
+                registerContent(basicAttrs);
+                return;
             }
-            PosixAttributes fileAttrs = null;
-            long fileSize = Files.size(_file);
 
             XmlStringWriter w2 = new XmlStringWriter();
-            w2.push("service", new String[] { "name", "asset.set" });
-            w2.add("id", "path=" + _assetPath);
-            w2.add("create", true);
-            w2.push("meta", new String[] { "action", "replace" });
-            if (fileAttrs == null) {
-                fileAttrs = PosixAttributes.read(_file);
-            }
-            fileAttrs.save(w2);
-            w2.pop();
-            w2.pop();
+            addAssetSetService(w2);
 
             if (_csumCheck) {
                 w2.push("service", new String[] { "name", "asset.get" });
@@ -85,85 +572,178 @@ public class FileUploadTask extends SyncTask {
                 w2.pop();
             }
 
-            String fileExt = PathUtils.getFileExtension(_file.toString());
-            ServerClient.Input input = new ServerClient.GeneratedInput(null, fileExt, _file.toString(), fileSize) {
-                @Override
-                protected void copyTo(OutputStream out, AbortCheck ac) throws Throwable {
-                    try {
-                        InputStream in = new BufferedInputStream(new FileInputStream(_file.toFile()));
-                        if (_csumCheck) {
-                            in = new CheckedInputStream(in, new CRC32());
-                        }
-                        byte[] buffer = new byte[8192];
-                        int len;
-                        try {
-                            while ((len = in.read(buffer)) != -1) {
-                                out.write(buffer, 0, len);
-                                _bytesUploaded += len;
-                                incWorkProgress(len);
-                                if (_ul != null) {
-                                    _ul.fileUploadProgressed(len);
-                                }
-                                if ((ac != null && ac.hasBeenAborted()) || Thread.interrupted()) {
-                                    throw new InterruptedException("Upload aborted.");
-                                }
-                            }
-                        } finally {
-                            in.close();
-                        }
-                        if (_csumCheck) {
-                            _csum = ((CheckedInputStream) in).getChecksum().getValue();
-                        }
-                    } finally {
-                        out.close();
-                    }
-                }
-            };
+            ServerClient.Input input = createInput(fileSize);
             setCurrentOperation("Uploading file: '" + _file + "' to asset: '" + _assetPath + "'");
             logInfo("Uploading file: '" + _file + "' to asset: '" + _assetPath + "'");
             XmlDoc.Element re = session.execute("service.execute", w2.document(), input, null, this);
+            String assetId = null;
             if (_csumCheck) {
                 XmlDoc.Element ae = re.element("reply[@service='asset.get']/response/asset");
-                _assetId = re.value("id");
+                assetId = ae.value("@id");
                 long assetCSUM = ae.longValue("content/csum[@base='16']", 0L, 16);
                 if (_csum != assetCSUM) {
                     logWarning("CRC32 checksums do not match for file: '" + _file + "'(" + _csum + ") and asset: '"
                             + _assetPath + "'(" + assetCSUM + ")");
-                    _csum = 0;
+                    long csum = _csum;
+                    uploadAborted();
                     if (_retry > 0) {
                         _retry--;
-                        rewindProgress();
                         execute(session);
                         return;
                     } else {
-                        throw new Exception("CRC32 checksums do not match for file: '" + _file + "'(" + _csum
+                        throw new Exception("CRC32 checksums do not match for file: '" + _file + "'(" + csum
                                 + ") and asset: '" + _assetPath + "'(" + assetCSUM + ")");
                     }
                 }
             } else {
                 if (re.elementExists("reply[@service='asset.set']/response/id")) {
-                    _assetId = re.value("reply[@service='asset.set']/response/id");
+                    assetId = re.value("reply[@service='asset.set']/response/id");
                 } else if (re.elementExists("reply[@service='asset.set']/response/version")) {
-                    _assetId = re.value("reply[@service='asset.set']/response/version/@id");
+                    assetId = re.value("reply[@service='asset.set']/response/version/@id");
                 }
             }
-            if (_ul != null) {
-                _ul.fileUploadCompleted(_file, _assetId);
+            uploadCompleted(basicAttrs, assetId);
+            registerContent(basicAttrs);
+        } catch (Throwable e) {
+            uploadFailed();
+            throw e;
+        }
+    }
+
+    /**
+     * If an identical file has been uploaded (see {@link DedupRegistry}),
+     * copies its asset on the server instead of uploading the file. The file
+     * is only hashed if a file of the same size with a digest has been
+     * uploaded. If there is no identical file, the file is read once more to
+     * upload it, but the checksums are not computed again. The content of the
+     * copy is verified with its size (and CRC32 checksum if csumCheck is
+     * enabled), and the file is uploaded if it does not match.
+     *
+     * @return true if the asset has been copied, false if the file is to be
+     *         uploaded.
+     */
+    private boolean executeDeduplicated(MFSession session, BasicFileAttributes basicAttrs) throws Throwable {
+        long fileSize = basicAttrs.size();
+        if (!_dedupRegistry.containsDigest(fileSize)) {
+            return false;
+        }
+        setCurrentOperation("Hashing file: '" + _file + "'");
+        MultiDigest md = newDigest();
+        ByteBuffer buffer = _bufferPool == null ? ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE)
+                : _bufferPool.acquire();
+        try (FileChannel in = FileChannel.open(_file, StandardOpenOption.READ)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                md.update(buffer.array(), buffer.arrayOffset(), len);
+                buffer.clear();
+                checkAborted(null);
+            }
+        } finally {
+            if (_bufferPool != null) {
+                _bufferPool.release(buffer);
             }
+        }
+        digestCompleted(md);
+        _digestsComputed = true;
+        String sourceAssetId = _dedupRegistry.find(_file, fileSize, _sha256);
+        if (sourceAssetId == null) {
+            return false;
+        }
+
+        XmlStringWriter w = new XmlStringWriter();
+        w.push("service", new String[] { "name", DEDUP_COPY_SERVICE });
+        w.add("id", sourceAssetId);
+        w.add("to", "path=" + _assetPath);
+        w.pop();
+        addAssetSetService(w);
+        // to verify the content of the copy.
+        w.push("service", new String[] { "name", "asset.get" });
+        w.add("id", "path=" + _assetPath);
+        w.pop();
+        setCurrentOperation("Copying asset: " + sourceAssetId + " to asset: '" + _assetPath + "'");
+        logInfo("File: '" + _file + "' is identical to asset: " + sourceAssetId + ". Copying it to asset: '"
+                + _assetPath + "'");
+        XmlDoc.Element re;
+        try {
+            re = session.execute("service.execute", w.document(), (ServerClient.Input) null, null, this);
         } catch (Throwable e) {
-            if (_ul != null) {
-                _ul.fileUploadFailed(_file);
+            if (e instanceof InterruptedException) {
+                throw e;
+            }
+            logWarning("Failed to copy asset: " + sourceAssetId + " to asset: '" + _assetPath + "'. Uploading file: '"
+                    + _file + "' instead. " + e.getMessage());
+            return false;
+        }
+        XmlDoc.Element ae = re.element("reply[@service='asset.get']/response/asset");
+        long assetSize = ae.longValue("content/size", -1L);
+        if (assetSize != fileSize) {
+            logWarning("Sizes do not match for file: '" + _file + "'(" + fileSize + ") and the copied asset: '"
+                    + _assetPath + "'(" + assetSize + "). Uploading the file instead.");
+            return false;
+        }
+        if (_csumCheck) {
+            long assetCSUM = ae.longValue("content/csum[@base='16']", 0L, 16);
+            if (_csum != assetCSUM) {
+                logWarning("CRC32 checksums do not match for file: '" + _file + "'(" + _csum
+                        + ") and the copied asset: '" + _assetPath + "'(" + assetCSUM
+                        + "). Uploading the file instead.");
+                return false;
             }
-            rewindProgress();
-            throw e;
         }
+        String assetId = ae.value("@id");
+        _dedupRegistry.deduplicated(fileSize);
+        uploadCompleted(basicAttrs, assetId);
+        registerContent(basicAttrs);
+        return true;
     }
 
-    private void rewindProgress() {
-        if (_bytesUploaded > 0) {
-            if (_ul != null) {
-                _ul.fileUploadProgressed(-1 * _bytesUploaded);
+    /**
+     * Registers the uploaded (or copied) content for deduplication.
+     */
+    private void registerContent(BasicFileAttributes basicAttrs) {
+        if (dedup()) {
+            _dedupRegistry.register(_file, basicAttrs, _sha256, _assetId);
+        }
+    }
+
+    /**
+     * Uploads the (large) file in segments, which resumes the interrupted
+     * upload of the file if any. Then sets the posix attributes of the asset,
+     * and verifies the committed content with its size (and CRC32 checksum if
+     * csumCheck is enabled). The upload fails if it does not match.
+     */
+    private void executeSegmented(MFSession session, BasicFileAttributes basicAttrs) throws Throwable {
+        logInfo("Uploading file: '" + _file + "' to asset: '" + _assetPath + "' in segments");
+        String assetId = _segmentedUpload.upload(session, this, basicAttrs);
+        XmlStringWriter w = new XmlStringWriter();
+        addAssetSetService(w);
+        w.push("service", new String[] { "name", "asset.get" });
+        w.add("id", "path=" + _assetPath);
+        w.pop();
+        XmlDoc.Element re = session.execute("service.execute", w.document(), (ServerClient.Input) null, null,
+                this);
+        XmlDoc.Element ae = re.element("reply[@service='asset.get']/response/asset");
+        long assetSize = ae == null ? -1L : ae.longValue("content/size", -1L);
+        if (assetSize != basicAttrs.size()) {
+            throw new Exception("Sizes do not match for file: '" + _file + "'(" + basicAttrs.size()
+                    + ") and asset: '" + _assetPath + "'(" + assetSize + ")");
+        }
+        if (_csumCheck) {
+            long assetCSUM = ae.longValue("content/csum[@base='16']", 0L, 16);
+            if (_csum != assetCSUM) {
+                throw new Exception("CRC32 checksums do not match for file: '" + _file + "'(" + _csum
+                        + ") and asset: '" + _assetPath + "'(" + assetCSUM + ")");
             }
+        }
+        uploadCompleted(basicAttrs, assetId);
+    }
+
+    private void rewindProgress() {
+        if (_bytesPublished != 0 && _ul != null) {
+            _ul.fileUploadProgressed(-1 * _bytesPublished);
+        }
+        _bytesPublished = 0;
+        if (_bytesUploaded != 0) {
             incWorkProgress(-1 * _bytesUploaded);
             _bytesUploaded = 0;
         }
@@ -1,6 +1,5 @@
 package unimelb.mf.client.sync.task;
 
-import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
@@ -8,19 +7,24 @@ import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 import java.io.IOException;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.AbstractMap.SimpleEntry;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,41 +32,59 @@ import arc.mf.client.ServerClient;
 import arc.utils.CanAbort;
 import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
-import unimelb.mf.client.file.Filter;
 import unimelb.mf.client.session.MFSession;
 import unimelb.mf.client.sync.MFSyncSettings;
 import unimelb.mf.client.task.Task;
 import unimelb.mf.client.util.HasAbortableOperation;
 import unimelb.mf.client.util.LoggingUtils;
-import unimelb.mf.client.util.OSUtils;
 import unimelb.mf.client.util.PathUtils;
 
 /**
- * 
+ *
  * @author wliu5
- * 
+ *
  *         https://docs.oracle.com/javase/tutorial/displayCode.html?code=https://docs.oracle.com/javase/tutorial/essential/io/examples/WatchDir.java
- * 
+ *
  *         NOTE:
- * 
+ *
  *         There are some platform dependency issues with Java WatchService. see
  *         the discussions below:
- * 
+ *
  *         https://stackoverflow.com/questions/16777869/java-7-watchservice-ignoring-multiple-occurrences-of-the-same-event
  *         http://blog.omega-prime.co.uk/2015/11/14/beware-java-nio-file-watchservice-is-subtly-broken-on-linux/
  *         https://stackoverflow.com/questions/22956262/java-watchservice-gets-informed-before-content-is-copied
  *         https://stackoverflow.com/questions/33753561/java-nio-watch-service-created-both-entry-create-and-entry-modify-when-a-new
- * 
- *         We decide not to use this solution.
+ *
+ *         They are worked around as below:
+ *
+ *         1) The directories are registered by the {@link FileSyncTaskProducer}
+ *         when they are scanned, so that no separate walk is required, and the
+ *         sub-trees of the new (or moved in) directories are scanned (and
+ *         registered) when their CREATE events are received.
+ *
+ *         2) The CREATE and MODIFY events of a file are coalesced: the file is
+ *         only submitted after no event has been received for it for
+ *         {@link #COALESCE_DELAY} milliseconds.
+ *
+ *         3) On OVERFLOW, the directory of the watch key is scanned again.
+ *
+ *         4) The directories that cannot be registered (e.g. the inotify
+ *         watch limit is reached), and any event lost, are still covered by
+ *         the periodic scans of the {@link FileSyncTaskProducer}.
+ *
+ *         The files are submitted to the {@link FileSyncTaskProducer} to be
+ *         checked (and uploaded if changed).
  *
  */
 public class FileWatchTaskProducer implements Runnable, HasAbortableOperation {
 
+    public static final long COALESCE_DELAY = 1000L; // milliseconds
+
     private MFSession _session;
 
     private MFSyncSettings _settings;
 
-    private FileUploadListener _ul;
+    private FileSyncTaskProducer _producer;
 
     private boolean _syncDeletion = false;
 
@@ -72,18 +94,30 @@ public class FileWatchTaskProducer implements Runnable, HasAbortableOperation {
 
     private WatchService _watcher;
     private Map<WatchKey, Path> _watchKeys;
+    private Map<Path, WatchKey> _watchedDirs;
+    private volatile boolean _registerFailed = false;
 
-    private CanAbort _ca;
+    /*
+     * files waiting for events to settle, in the order of their deadlines
+     * (the time of their last events plus the delay). Accessed by the watcher
+     * thread only.
+     */
+    private LinkedHashMap<Path, Long> _pendingFiles;
+
+    /*
+     * directories to scan again. Accessed by the watcher thread only.
+     */
+    private Set<Path> _pendingDirs;
 
-    private Filter _filter;
+    private CanAbort _ca;
 
-    public FileWatchTaskProducer(MFSession session, Logger logger, MFSyncSettings settings, FileUploadListener ul,
-            BlockingQueue<Task> queue) throws IOException {
+    public FileWatchTaskProducer(MFSession session, Logger logger, MFSyncSettings settings,
+            FileSyncTaskProducer producer, BlockingQueue<Task> queue) throws IOException {
         _session = session;
 
         _settings = settings;
 
-        _ul = ul;
+        _producer = producer;
 
         _syncDeletion = false;
 
@@ -92,41 +126,40 @@ public class FileWatchTaskProducer implements Runnable, HasAbortableOperation {
         _queue = queue;
 
         _watcher = FileSystems.getDefault().newWatchService();
-        _watchKeys = new HashMap<WatchKey, Path>();
+        _watchKeys = new ConcurrentHashMap<WatchKey, Path>();
+        _watchedDirs = new ConcurrentHashMap<Path, WatchKey>();
+        _pendingFiles = new LinkedHashMap<Path, Long>();
+        _pendingDirs = new HashSet<Path>();
     }
 
     /**
-     * Register the given directory with the WatchService
+     * Register the given directory with the WatchService. It is thread-safe,
+     * and does nothing if the directory is already registered.
      */
-    private void register(Path dir) throws IOException {
-        WatchKey key = dir.register(_watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-        Path prev = _watchKeys.get(key);
-        if (prev == null) {
-            _logger.info(String.format("Started watching directory: %s", dir));
-        } else {
-            if (!dir.equals(prev)) {
-                _logger.info(String.format("Updated watching directory: %s -> %s", prev, dir));
+    public void register(Path dir) {
+        WatchKey key = _watchedDirs.get(dir);
+        if (key != null && key.isValid() && dir.equals(_watchKeys.get(key))) {
+            return;
+        }
+        try {
+            key = dir.register(_watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            _watchKeys.put(key, dir);
+            _watchedDirs.put(dir, key);
+        } catch (IOException e) {
+            if (!_registerFailed) {
+                _registerFailed = true;
+                _logger.log(Level.WARNING, "Failed to watch directory: '" + dir
+                        + "'. The changes in the directories not watched are only detected by the periodic scans. (On Linux, try increasing fs.inotify.max_user_watches.)",
+                        e);
             }
         }
-        _watchKeys.put(key, dir);
     }
 
-    /**
-     * Register the given directory, and all its sub-directories, with the
-     * WatchService.
-     */
-    private void registerAll(Path rootDir) throws IOException {
-        // register directory and sub-directories
-        Files.walkFileTree(rootDir, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                register(dir);
-                return FileVisitResult.CONTINUE;
-            }
-        });
+    public int numberOfWatchedDirectories() {
+        return _watchKeys.size();
     }
 
-    private void processEvents(WatchKey key) throws Throwable {
+    private void processEvents(WatchKey key, long now) throws Throwable {
         Path dir = _watchKeys.get(key);
         if (dir == null) {
             _logger.severe("WatchKey is not recognized!");
@@ -135,72 +168,110 @@ public class FileWatchTaskProducer implements Runnable, HasAbortableOperation {
         for (WatchEvent<?> event : key.pollEvents()) {
             WatchEvent.Kind<?> kind = event.kind();
             if (kind == OVERFLOW) {
-                _logger.warning("Encountered OVERFLOW event.");
+                _logger.warning("Encountered OVERFLOW event. Scanning directory: '" + dir + "' again.");
+                _pendingDirs.add(dir);
                 continue;
             }
 
             // Context for directory entry event is the file name of
             // entry
-            @SuppressWarnings("unchecked")
-            WatchEvent<Path> ev = (WatchEvent<Path>) event;
-            Path name = ev.context();
-            Path child = dir.resolve(name);
-
-            // log event
-            _logger.info(String.format("Processing event: %s: %s", ev.kind().name(), child));
+            Path child = dir.resolve((Path) event.context());
 
             if (kind == ENTRY_DELETE) {
+                _pendingFiles.remove(child);
+                WatchKey childKey = _watchedDirs.remove(child);
+                if (childKey != null && child.equals(_watchKeys.get(childKey))) {
+                    _watchKeys.remove(childKey);
+                    childKey.cancel();
+                }
                 if (_syncDeletion) {
                     syncDeletion(child);
                 }
-                return;
+                continue;
             }
 
-            BasicFileAttributes childAttrs = Files.readAttributes(child, BasicFileAttributes.class);
-
-            boolean isDirectory = Files.isDirectory(child, NOFOLLOW_LINKS);
-            boolean isRegularFile = Files.isRegularFile(child, NOFOLLOW_LINKS);
-            if (!isDirectory && !isRegularFile) {
-                _logger.info("Skipped: " + child + ". Not a directory or regular file.");
+            BasicFileAttributes childAttrs;
+            try {
+                childAttrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                // removed since.
                 continue;
             }
+            if (childAttrs.isDirectory()) {
+                if (kind == ENTRY_CREATE) {
+                    // it may be empty if the event was triggered by mkdir;
+                    // Otherwise it may contain files if the event was
+                    // triggered by mv.
+                    _pendingDirs.add(child);
+                }
+            } else if (childAttrs.isRegularFile()) {
+                // re-insert to keep the map in deadline order.
+                _pendingFiles.remove(child);
+                _pendingFiles.put(child, now + COALESCE_DELAY);
+            }
+        }
+    }
 
-            if (kind == ENTRY_CREATE) {
-                if (isDirectory) {
-                    // if directory is created, and watching recursively,
-                    // then register it and its sub-directories
-                    try {
-                        registerAll(child);
-                    } catch (IOException ioe) {
-                        _logger.log(Level.SEVERE, "Failed to register: " + child, ioe);
-                    }
-                    // upload the directory (It may be empty if the event
-                    // was triggered by mkdir; Otherwise it may contains
-                    // files if the event was triggered by mv)
-                    uploadDirectory(child, childAttrs);
-                } else if (isRegularFile) {
-                    if (OSUtils.IS_LINUX || OSUtils.IS_WINDOWS) {
-                        // On Linux and Windows, multiple events: CREATE,
-                        // MODIFY, MODIFY, are dispatched
-                        // as the copy operation is not atomic. Therefore, we
-                        // ignore CREATE event, rely on MODIFY event.
-                        //
-                        // see also
-                        // https://stackoverflow.com/questions/16777869/java-7-watchservice-ignoring-multiple-occurrences-of-the-same-event
-                    } else {
-                        uploadFile(child, childAttrs);
-                    }
+    private void processPendingFiles(long now) throws Throwable {
+        int nbFiles = 0;
+        Iterator<Map.Entry<Path, Long>> it = _pendingFiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (entry.getValue() > now) {
+                break;
+            }
+            it.remove();
+            Path file = entry.getKey();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            if (!attrs.isRegularFile()) {
+                continue;
+            }
+            for (MFSyncSettings.Job job : _settings.jobs()) {
+                if (PathUtils.isOrIsDescendant(file, job.directory())) {
+                    _producer.submitFile(job, file, attrs);
+                    nbFiles++;
                 }
-            } else if (kind == ENTRY_MODIFY) {
-                if (isDirectory) {
-                    // TODO see if this event can be used.
-                } else if (isRegularFile) {
-                    uploadFile(child, childAttrs);
+            }
+        }
+        if (nbFiles > 0) {
+            _producer.flush();
+        }
+    }
+
+    private void processPendingDirectories() throws Throwable {
+        if (_pendingDirs.isEmpty()) {
+            return;
+        }
+        Set<Path> dirs = _pendingDirs;
+        _pendingDirs = new HashSet<Path>();
+        for (Path dir : dirs) {
+            if (hasAncestorIn(dir, dirs)) {
+                // will be scanned with its ancestor.
+                continue;
+            }
+            for (MFSyncSettings.Job job : _settings.jobs()) {
+                if (PathUtils.isOrIsDescendant(dir, job.directory())) {
+                    _logger.info("Scanning directory: '" + dir + "'...");
+                    _producer.rescan(job, dir);
                 }
             }
         }
     }
 
+    private static boolean hasAncestorIn(Path path, Set<Path> dirs) {
+        for (Path p = path.getParent(); p != null; p = p.getParent()) {
+            if (dirs.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void syncDeletion(Path path) throws Throwable {
         List<MFSyncSettings.Job> jobs = _settings.jobsMatchPath(path);
         if (jobs != null) {
@@ -224,38 +295,6 @@ public class FileWatchTaskProducer implements Runnable, HasAbortableOperation {
         }
     }
 
-    private void uploadDirectory(Path dir, BasicFileAttributes dirAttrs) throws Throwable {
-        if (_filter == null || _filter.acceptDirectory(dir, dirAttrs)) {
-            List<MFSyncSettings.Job> jobs = _settings.jobsMatchPath(dir);
-            if (jobs != null) {
-                for (MFSyncSettings.Job job : jobs) {
-                    MFSyncSettings settings = _settings.copy(false);
-                    settings.addUploadJob(dir,
-                            PathUtils.join(job.namespace(), PathUtils.relativePath(job.directory(), dir)), false,
-                            job.includes(), job.excludes());
-                    new FileSyncTaskProducer(_session, _logger, settings, _ul, _queue).execute();
-                }
-            }
-        }
-    }
-
-    private void uploadFile(Path file, BasicFileAttributes fileAttrs) throws Throwable {
-        if (_filter == null || _filter.acceptFile(file, fileAttrs)) {
-            List<MFSyncSettings.Job> jobs = _settings.jobsMatchPath(file);
-            if (jobs != null) {
-                for (MFSyncSettings.Job job : jobs) {
-                    _queue.put(new FileUploadTask(_session, _logger, file, job.directory(), job.namespace(),
-                            _settings.csumCheck(), _ul));
-                }
-            }
-        }
-    }
-
-    public FileWatchTaskProducer setFilter(Filter filter) {
-        _filter = filter;
-        return this;
-    }
-
     public void setSyncDeletion(boolean syncDeletion) {
         _syncDeletion = syncDeletion;
     }
@@ -263,33 +302,30 @@ public class FileWatchTaskProducer implements Runnable, HasAbortableOperation {
     @Override
     public void run() {
         try {
-            List<MFSyncSettings.Job> jobs = _settings.jobs();
-            for (MFSyncSettings.Job job : jobs) {
-                registerAll(job.directory());
-            }
             while (!Thread.interrupted()) {
-                // wait for key to be signaled
-                WatchKey key = _watcher.take();
-                // The code below is trying to work around the issue that
-                // multiple events are dispatched on Linux and Windows
-                // platforms: CREATE, MODIFY, MODIFY
-                //
-                // See also
-                // https://stackoverflow.com/questions/16777869/java-7-watchservice-ignoring-multiple-occurrences-of-the-same-event
-                Thread.sleep(50);
-                processEvents(key);
-
-                // reset key and remove from set if directory no longer
-                // accessible
-                boolean valid = key.reset();
-                if (!valid) {
-                    _watchKeys.remove(key);
+                // wait for key to be signaled, or the first pending file to
+                // be due.
+                WatchKey key;
+                if (_pendingFiles.isEmpty()) {
+                    key = _watcher.take();
+                } else {
+                    long deadline = _pendingFiles.values().iterator().next();
+                    key = _watcher.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
                 }
-
-                // all directories are inaccessible?
-                if (_watchKeys.isEmpty()) {
-                    break;
+                while (key != null) {
+                    processEvents(key, System.currentTimeMillis());
+                    // reset key and remove from set if directory no longer
+                    // accessible
+                    if (!key.reset()) {
+                        Path dir = _watchKeys.remove(key);
+                        if (dir != null) {
+                            _watchedDirs.remove(dir, key);
+                        }
+                    }
+                    key = _watcher.poll();
                 }
+                processPendingDirectories();
+                processPendingFiles(System.currentTimeMillis());
             }
         } catch (Throwable e) {
             if (e instanceof InterruptedException) {
@@ -299,6 +335,12 @@ public class FileWatchTaskProducer implements Runnable, HasAbortableOperation {
             } else {
                 _logger.log(Level.SEVERE, e.getMessage(), e);
             }
+        } finally {
+            try {
+                _watcher.close();
+            } catch (IOException e) {
+                _logger.log(Level.WARNING, e.getMessage(), e);
+            }
         }
     }
 
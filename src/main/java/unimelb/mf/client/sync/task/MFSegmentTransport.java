@@ -0,0 +1,134 @@
+package unimelb.mf.client.sync.task;
+
+import java.io.OutputStream;
+
+import arc.mf.client.ServerClient;
+import arc.streams.StreamCopy.AbortCheck;
+import arc.xml.XmlDoc;
+import arc.xml.XmlStringWriter;
+import unimelb.mf.client.session.MFSession;
+
+/**
+ * Segmented uploads with the I/O job services of the Mediaflux server: an I/O
+ * job is created for the upload, the segments are written to the job at their
+ * offsets, and the job is finished and set as the content of the asset. The
+ * server does not return the checksums of the segments, so the content is only
+ * verified once committed: the size of the content of the asset is always
+ * compared with the file (and the CRC32 checksum too if csumCheck is enabled),
+ * and the upload fails if they do not match.
+ *
+ * Note: the arguments of the services (id, size, offset and job/written) and
+ * the io: content url have not been verified against every server version. A
+ * server that interprets them differently results in a failed upload (by the
+ * verification above), not in a corrupted asset being reported as synced.
+ *
+ * The services are not available on all the servers (or to all the users), so
+ * check with {@link #isSupported(MFSession)} before using the transport.
+ *
+ * @author wliu5
+ *
+ */
+public class MFSegmentTransport implements SegmentTransport {
+
+    public static final String SERVICE_BEGIN = "server.io.job.create";
+
+    public static final String SERVICE_DESCRIBE = "server.io.job.describe";
+
+    public static final String SERVICE_PUT = "server.io.write";
+
+    public static final String SERVICE_COMMIT = "server.io.write.finish";
+
+    public static final String SERVICE_ABORT = "server.io.job.destroy";
+
+    /**
+     * The prefix of the url of the content written to an I/O job, to set it as
+     * the content of the asset.
+     */
+    public static final String CONTENT_URL_PREFIX = "io:";
+
+    /**
+     * @return true if the services required to write the segments are
+     *         available on the server. The services to describe and to
+     *         discard the uploads are optional: without them, the interrupted
+     *         uploads are restarted instead of resumed.
+     * @throws Throwable
+     */
+    public static boolean isSupported(MFSession session) throws Throwable {
+        for (String service : new String[] { SERVICE_BEGIN, SERVICE_PUT, SERVICE_COMMIT }) {
+            XmlStringWriter w = new XmlStringWriter();
+            w.add("service", service);
+            if (!session.execute("system.service.exists", w.document()).booleanValue("exists")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String begin(MFSession session, String assetPath, long length) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("size", length);
+        return session.execute(SERVICE_BEGIN, w.document()).value("id");
+    }
+
+    @Override
+    public long acknowledged(MFSession session, String uploadId) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("id", uploadId);
+        XmlDoc.Element re;
+        try {
+            re = session.execute(SERVICE_DESCRIBE, w.document());
+        } catch (Throwable e) {
+            // the job has expired (or cannot be described).
+            return -1;
+        }
+        return re.longValue("job/written", -1L);
+    }
+
+    @Override
+    public long put(MFSession session, String uploadId, long offset, Segment segment) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("id", uploadId);
+        w.add("offset", offset);
+        ServerClient.Input input = new ServerClient.GeneratedInput(null, null, null, segment.length()) {
+            @Override
+            protected void copyTo(OutputStream out, AbortCheck ac) throws Throwable {
+                try {
+                    segment.writeTo(out, ac);
+                } finally {
+                    out.close();
+                }
+            }
+        };
+        session.execute(SERVICE_PUT, w.document(), input);
+        return -1;
+    }
+
+    @Override
+    public String commit(MFSession session, String uploadId, String assetPath) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        w.push("service", new String[] { "name", SERVICE_COMMIT });
+        w.add("id", uploadId);
+        w.pop();
+        w.push("service", new String[] { "name", "asset.set" });
+        w.add("id", "path=" + assetPath);
+        w.add("create", true);
+        w.add("url", CONTENT_URL_PREFIX + uploadId);
+        w.pop();
+        XmlDoc.Element re = session.execute("service.execute", w.document());
+        if (re.elementExists("reply[@service='asset.set']/response/id")) {
+            // created.
+            return re.value("reply[@service='asset.set']/response/id");
+        }
+        // new version of the existing asset.
+        return re.value("reply[@service='asset.set']/response/version/@id");
+    }
+
+    @Override
+    public void abort(MFSession session, String uploadId) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("id", uploadId);
+        session.execute(SERVICE_ABORT, w.document());
+    }
+
+}
@@ -0,0 +1,288 @@
+package unimelb.mf.client.sync.task;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import unimelb.mf.client.sync.MFSyncSettings;
+
+/**
+ * Holds the files that may still be being written (modified within the
+ * quiescence period), until their size and mtime have not changed for the
+ * quiescence period. The held files are scheduled in a hashed timer wheel, so
+ * that each of them is only stat'ed again when it is due.
+ *
+ * @author wliu5
+ *
+ */
+public class QuiescenceGate {
+
+    public static interface Handler {
+
+        /**
+         * Called (from the gate thread) when the held file becomes quiescent.
+         */
+        void release(MFSyncSettings.Job job, Path file, BasicFileAttributes attrs) throws Throwable;
+
+        /**
+         * Called (from the gate thread) after the due files of a tick have
+         * been released.
+         */
+        void released() throws Throwable;
+    }
+
+    public static final long TICK_DURATION = 200L; // milliseconds
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static class HeldFile {
+        final MFSyncSettings.Job job;
+        final Path file;
+        long size;
+        long mtime;
+        long observedAt;
+        long deadlineTick;
+
+        HeldFile(MFSyncSettings.Job job, Path file) {
+            this.job = job;
+            this.file = file;
+        }
+    }
+
+    private static class Key {
+        final MFSyncSettings.Job job;
+        final Path file;
+
+        Key(MFSyncSettings.Job job, Path file) {
+            this.job = job;
+            this.file = file;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key k = (Key) o;
+                return job == k.job && file.equals(k.file);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(job) * 31 + file.hashCode();
+        }
+    }
+
+    private final long _period;
+    private final Handler _handler;
+    private final Logger _logger;
+
+    private final Map<Key, HeldFile> _held = new HashMap<Key, HeldFile>();
+    private final List<List<HeldFile>> _wheel;
+    private final long _startTime;
+    private long _tick;
+
+    private Thread _thread;
+
+    public QuiescenceGate(long period, Handler handler, Logger logger) {
+        _period = period;
+        _handler = handler;
+        _logger = logger;
+        _wheel = new ArrayList<List<HeldFile>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            _wheel.add(new ArrayList<HeldFile>());
+        }
+        _startTime = System.currentTimeMillis();
+        _tick = 0;
+    }
+
+    public long period() {
+        return _period;
+    }
+
+    /**
+     * Holds the file if it was modified within the quiescence period.
+     *
+     * @return true if the file is held (or has been held already), false if
+     *         the file is quiescent.
+     */
+    public synchronized boolean hold(MFSyncSettings.Job job, Path file, BasicFileAttributes attrs) {
+        Key key = new Key(job, file);
+        if (_held.containsKey(key)) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        if (now - mtime >= _period) {
+            return false;
+        }
+        HeldFile hf = new HeldFile(job, file);
+        hf.size = attrs.size();
+        hf.mtime = mtime;
+        hf.observedAt = now;
+        _held.put(key, hf);
+        schedule(hf, now);
+        notifyAll();
+        if (_thread == null) {
+            _thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    runTicks();
+                }
+            }, "Quiescence Gate");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+        return true;
+    }
+
+    private void schedule(HeldFile hf, long now) {
+        // due when it would have been quiescent for the period since its
+        // mtime (or since it was observed, in case of future mtime).
+        long deadline = Math.min(hf.mtime, hf.observedAt) + _period;
+        if (deadline < now) {
+            deadline = now;
+        }
+        long deadlineTick = (deadline - _startTime + TICK_DURATION - 1) / TICK_DURATION;
+        if (deadlineTick <= _tick) {
+            deadlineTick = _tick + 1;
+        }
+        hf.deadlineTick = deadlineTick;
+        _wheel.get((int) (deadlineTick % WHEEL_SIZE)).add(hf);
+    }
+
+    public synchronized int size() {
+        return _held.size();
+    }
+
+    /**
+     * Waits until all the held files have been released (or dropped).
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void awaitEmpty() throws InterruptedException {
+        while (!_held.isEmpty()) {
+            wait();
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (_thread != null) {
+            _thread.interrupt();
+            _thread = null;
+        }
+        _held.clear();
+        for (List<HeldFile> bucket : _wheel) {
+            bucket.clear();
+        }
+        notifyAll();
+    }
+
+    private void runTicks() {
+        try {
+            while (!Thread.interrupted()) {
+                List<HeldFile> due = new ArrayList<HeldFile>();
+                synchronized (this) {
+                    if (_held.isEmpty()) {
+                        wait();
+                        continue;
+                    }
+                    long sleep = _startTime + (_tick + 1) * TICK_DURATION - System.currentTimeMillis();
+                    if (sleep > 0) {
+                        wait(sleep);
+                        continue;
+                    }
+                    _tick++;
+                    Iterator<HeldFile> it = _wheel.get((int) (_tick % WHEEL_SIZE)).iterator();
+                    while (it.hasNext()) {
+                        HeldFile hf = it.next();
+                        if (hf.deadlineTick <= _tick) {
+                            it.remove();
+                            due.add(hf);
+                        }
+                    }
+                }
+                if (!due.isEmpty()) {
+                    process(due);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shut down.
+        }
+    }
+
+    private void process(List<HeldFile> due) throws InterruptedException {
+        List<HeldFile> released = new ArrayList<HeldFile>();
+        List<BasicFileAttributes> releasedAttrs = new ArrayList<BasicFileAttributes>();
+        for (HeldFile hf : due) {
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = Files.readAttributes(hf.file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                // removed.
+            } catch (IOException e) {
+                _logger.log(Level.WARNING, "Failed to read attributes of file: '" + hf.file + "'", e);
+            }
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (attrs == null) {
+                    remove(hf);
+                    continue;
+                }
+                long mtime = attrs.lastModifiedTime().toMillis();
+                if (attrs.size() != hf.size || mtime != hf.mtime) {
+                    hf.size = attrs.size();
+                    hf.mtime = mtime;
+                    hf.observedAt = now;
+                } else if (now - mtime >= _period || now - hf.observedAt >= _period) {
+                    released.add(hf);
+                    releasedAttrs.add(attrs);
+                    continue;
+                }
+                schedule(hf, now);
+            }
+        }
+        if (released.isEmpty()) {
+            return;
+        }
+        // the files are removed from the gate after they have been passed to
+        // the handler, so that awaitEmpty() does not return before that.
+        try {
+            for (int i = 0; i < released.size(); i++) {
+                HeldFile hf = released.get(i);
+                _handler.release(hf.job, hf.file, releasedAttrs.get(i));
+            }
+            _handler.released();
+        } catch (Throwable e) {
+            if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            }
+            _logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            synchronized (this) {
+                for (HeldFile hf : released) {
+                    remove(hf);
+                }
+            }
+        }
+    }
+
+    private void remove(HeldFile hf) {
+        _held.remove(new Key(hf.job, hf.file));
+        if (_held.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+}
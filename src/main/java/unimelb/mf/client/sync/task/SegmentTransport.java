@@ -0,0 +1,98 @@
+package unimelb.mf.client.sync.task;
+
+import java.io.OutputStream;
+
+import arc.streams.StreamCopy.AbortCheck;
+import unimelb.mf.client.session.MFSession;
+
+/**
+ * The server side of the segmented uploads (see {@link SegmentedUpload}). An
+ * upload is started for an asset, its content is sent in segments, which are
+ * appended in order, and the upload is committed as the content of the asset
+ * once all the segments are acknowledged.
+ *
+ * @author wliu5
+ *
+ */
+public interface SegmentTransport {
+
+    /**
+     * A segment of the content.
+     */
+    interface Segment {
+
+        /**
+         * @return the length of the segment.
+         */
+        long length();
+
+        /**
+         * Writes the segment to the output stream.
+         *
+         * @param out
+         *            the output stream.
+         * @param ac
+         *            the abort check, or null.
+         * @throws Throwable
+         */
+        void writeTo(OutputStream out, AbortCheck ac) throws Throwable;
+    }
+
+    /**
+     * Starts an upload.
+     *
+     * @param session
+     *            the Mediaflux session.
+     * @param assetPath
+     *            the path of the asset to upload to.
+     * @param length
+     *            the total length of the content.
+     * @return the upload id.
+     * @throws Throwable
+     */
+    String begin(MFSession session, String assetPath, long length) throws Throwable;
+
+    /**
+     * @param session
+     *            the Mediaflux session.
+     * @param uploadId
+     *            the upload id.
+     * @return the number of bytes of the upload stored by the server, or -1 if
+     *         the upload does not exist (e.g. it has expired).
+     * @throws Throwable
+     */
+    long acknowledged(MFSession session, String uploadId) throws Throwable;
+
+    /**
+     * Writes a segment of the content at the specified offset. Any bytes
+     * already stored after the offset are discarded.
+     *
+     * @param session
+     *            the Mediaflux session.
+     * @param uploadId
+     *            the upload id.
+     * @param offset
+     *            the offset of the segment.
+     * @param segment
+     *            the segment.
+     * @return the CRC32 checksum of the segment computed by the server, or -1
+     *         if not available.
+     * @throws Throwable
+     */
+    long put(MFSession session, String uploadId, long offset, Segment segment) throws Throwable;
+
+    /**
+     * Commits the upload as the content of the asset (creating the asset if it
+     * does not exist).
+     *
+     * @return the asset id.
+     * @throws Throwable
+     */
+    String commit(MFSession session, String uploadId, String assetPath) throws Throwable;
+
+    /**
+     * Discards the upload.
+     */
+    void abort(MFSession session, String uploadId) throws Throwable;
+
+}
@@ -0,0 +1,206 @@
+package unimelb.mf.client.sync.task;
+
+import java.io.EOFException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+
+import arc.streams.StreamCopy.AbortCheck;
+import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.sync.index.UploadStateStore;
+import unimelb.mf.client.util.BandwidthLimiter;
+import unimelb.mf.client.util.BufferPool;
+import unimelb.mf.client.util.MultiDigest;
+
+/**
+ * Uploads the large files in segments, through a {@link SegmentTransport}.
+ * The progress (the acknowledged offset, and the CRC32 checksum of the
+ * acknowledged bytes if csumCheck is enabled) is persisted in the
+ * {@link UploadStateStore} after each segment, so that an interrupted upload
+ * resumes from the last acknowledged segment, even in the next run. With
+ * csumCheck, each segment is verified with the checksum computed by the
+ * server, so that only the mismatching segment is sent again.
+ *
+ * @author wliu5
+ *
+ */
+public class SegmentedUpload {
+
+    public static final long MIN_SEGMENT_SIZE = 1048576L;
+
+    private final SegmentTransport _transport;
+    private final UploadStateStore _store;
+    private final long _threshold;
+    private final long _segmentSize;
+
+    /**
+     * @param transport
+     *            the transport of the segments.
+     * @param store
+     *            the persistent state of the uploads.
+     * @param threshold
+     *            the minimum size (in bytes) of the files to upload in
+     *            segments.
+     * @param segmentSize
+     *            the size (in bytes) of the segments.
+     */
+    public SegmentedUpload(SegmentTransport transport, UploadStateStore store, long threshold, long segmentSize) {
+        _transport = transport;
+        _store = store;
+        _threshold = threshold;
+        _segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+    }
+
+    public boolean accepts(long fileSize) {
+        return _threshold > 0 && fileSize >= _threshold;
+    }
+
+    /**
+     * Uploads (or resumes uploading) the file content, and commits it as the
+     * content of the asset.
+     *
+     * @param session
+     *            the Mediaflux session.
+     * @param task
+     *            the upload task.
+     * @param attrs
+     *            the current attributes of the file.
+     * @return the asset id.
+     * @throws Throwable
+     */
+    String upload(MFSession session, FileUploadTask task, BasicFileAttributes attrs) throws Throwable {
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        UploadStateStore.State state = _store.get(task.file());
+        if (state != null && (state.size() != size || state.mtime() != mtime)) {
+            task.logInfo("File: '" + task.file() + "' has changed since its upload was interrupted. Restarting.");
+            discard(session, task, state);
+            state = null;
+        }
+        boolean csumCheck = task.csumCheck();
+        if (state != null && csumCheck && state.offset() > 0 && !state.csumTracked()) {
+            // the checksum of the acknowledged bytes is unknown.
+            task.logInfo("Upload of file: '" + task.file()
+                    + "' was interrupted without checksum. Restarting to verify the checksum.");
+            discard(session, task, state);
+            state = null;
+        }
+        if (state != null) {
+            long acknowledged = _transport.acknowledged(session, state.uploadId());
+            if (acknowledged < state.offset()) {
+                task.logInfo("Upload of file: '" + task.file() + "' cannot be resumed. Restarting.");
+                discard(session, task, state);
+                state = null;
+            } else {
+                task.logInfo("Resuming upload of file: '" + task.file() + "' from offset: " + state.offset());
+                task.uploadProgressed(state.offset());
+            }
+        }
+        if (state == null) {
+            String uploadId = _transport.begin(session, task.assetPath(), size);
+            state = new UploadStateStore.State(size, mtime, uploadId, 0, 0, csumCheck);
+            _store.put(task.file(), state);
+        }
+
+        while (state.offset() < size) {
+            long offset = state.offset();
+            long length = Math.min(_segmentSize, size - offset);
+            CRC32 crc = csumCheck ? new CRC32() : null;
+            task.segmentStarted(offset, size);
+            long serverCSUM = _transport.put(session, state.uploadId(), offset,
+                    segment(task, offset, length, crc));
+            if (crc != null && serverCSUM >= 0 && serverCSUM != crc.getValue()) {
+                task.logWarning("CRC32 checksums do not match for segment at offset: " + offset + " of file: '"
+                        + task.file() + "'. Sending it again.");
+                task.uploadProgressed(-length);
+                crc.reset();
+                serverCSUM = _transport.put(session, state.uploadId(), offset,
+                        segment(task, offset, length, crc));
+                if (serverCSUM >= 0 && serverCSUM != crc.getValue()) {
+                    throw new Exception("CRC32 checksums do not match for segment at offset: " + offset
+                            + " of file: '" + task.file() + "'");
+                }
+            }
+            long csum = crc == null ? 0
+                    : (offset == 0 ? crc.getValue() : MultiDigest.combineCRC32(state.csum(), crc.getValue(), length));
+            state = state.advance(offset + length, csum, csumCheck);
+            _store.put(task.file(), state);
+        }
+        String assetId = _transport.commit(session, state.uploadId(), task.assetPath());
+        _store.remove(task.file());
+        if (csumCheck) {
+            task.setCsum(state.csum());
+        }
+        return assetId;
+    }
+
+    private void discard(MFSession session, FileUploadTask task, UploadStateStore.State state) throws Throwable {
+        try {
+            _transport.abort(session, state.uploadId());
+        } catch (Throwable e) {
+            task.logWarning("Failed to discard upload: " + state.uploadId() + " of file: '" + task.file() + "'");
+        }
+        _store.remove(task.file());
+    }
+
+    private static SegmentTransport.Segment segment(FileUploadTask task, long offset, long length, CRC32 crc) {
+        return new SegmentTransport.Segment() {
+
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out, AbortCheck ac) throws Throwable {
+                copy(task, offset, length, crc, out, ac);
+            }
+        };
+    }
+
+    /**
+     * Copies the segment of the file to the output stream, and computes its
+     * CRC32 checksum if crc is not null.
+     */
+    static void copy(FileUploadTask task, long offset, long length, CRC32 crc, OutputStream out, AbortCheck ac)
+            throws Throwable {
+        BufferPool bufferPool = task.bufferPool();
+        BandwidthLimiter bandwidthLimiter = task.bandwidthLimiter();
+        ByteBuffer buffer = bufferPool == null ? ByteBuffer.allocate(BufferPool.MIN_BUFFER_SIZE)
+                : bufferPool.acquire();
+        FileChannel in = FileChannel.open(task.file(), StandardOpenOption.READ);
+        try {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int len = in.read(buffer, position);
+                if (len < 0) {
+                    throw new EOFException("File: '" + task.file() + "' was truncated while uploading.");
+                }
+                if (bandwidthLimiter != null) {
+                    bandwidthLimiter.acquire(len);
+                }
+                out.write(buffer.array(), buffer.arrayOffset(), len);
+                if (crc != null) {
+                    crc.update(buffer.array(), buffer.arrayOffset(), len);
+                }
+                position += len;
+                if (task.uploadProgressed(len)) {
+                    FileUploadTask.checkAborted(ac);
+                }
+            }
+        } finally {
+            task.publishProgress();
+            in.close();
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+}
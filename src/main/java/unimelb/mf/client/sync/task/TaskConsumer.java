@@ -1,9 +1,15 @@
 package unimelb.mf.client.sync.task;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import unimelb.mf.client.sync.MFSyncSettings;
 import unimelb.mf.client.task.Task;
 import unimelb.mf.client.util.LoggingUtils;
 
@@ -13,6 +19,20 @@ public class TaskConsumer implements Runnable {
     private Logger _logger;
     private Task _currentTask;
 
+    /*
+     * the tasks taken from the queue but not yet executed, while collecting
+     * small files.
+     */
+    private Deque<Task> _pending = new ArrayDeque<Task>();
+
+    private long _smallFileThreshold = 0;
+    private int _smallFileBatchSize = 1;
+
+    private List<MFSyncSettings.Job> _jobs;
+
+    private WorkerController _controller;
+    private int _index;
+
     public Task currentTask() {
         return _currentTask;
     }
@@ -22,13 +42,183 @@ public class TaskConsumer implements Runnable {
         _logger = logger == null ? LoggingUtils.createConsoleLogger() : logger;
     }
 
+    /**
+     * Uploads the consecutive small files (taken from the queue) in batches.
+     *
+     * @param threshold
+     *            the maximum size (in bytes) of the small files. If it is 0,
+     *            the files are uploaded one by one.
+     * @param batchSize
+     *            the maximum number of files in a batch.
+     */
+    public TaskConsumer setSmallFileBatch(long threshold, int batchSize) {
+        _smallFileThreshold = threshold;
+        _smallFileBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the jobs, so that the tiny files of the jobs with archive upload
+     * enabled are uploaded as archives.
+     */
+    public TaskConsumer setJobs(List<MFSyncSettings.Job> jobs) {
+        _jobs = jobs;
+        return this;
+    }
+
+    /**
+     * Sets the controller of the number of active workers, which parks this
+     * consumer (between tasks) while its index is not below the number of
+     * active workers.
+     */
+    public TaskConsumer setWorkerController(WorkerController controller, int index) {
+        _controller = controller;
+        _index = index;
+        return this;
+    }
+
+    private boolean isSmallFile(Task task) {
+        if (task instanceof FileUploadTask) {
+            long size = ((FileUploadTask) task).fileSize();
+            return size >= 0 && size <= _smallFileThreshold;
+        }
+        return false;
+    }
+
+    /**
+     * @return the job of the task, if it has archive upload enabled and the
+     *         file is small enough to be archived, or null. Only the files
+     *         found to have no asset are archived: the updates of the
+     *         existing assets are uploaded in batches (or one by one).
+     */
+    private MFSyncSettings.Job archiveJobOf(Task task) {
+        if (_jobs == null || !(task instanceof FileUploadTask)) {
+            return null;
+        }
+        FileUploadTask ut = (FileUploadTask) task;
+        if (ut.fileSize() < 0 || !ut.isNewAsset()) {
+            return null;
+        }
+        for (MFSyncSettings.Job job : _jobs) {
+            if (job.archiveEnabled() && ut.fileSize() <= job.archiveMaxFileSize()
+                    && job.directory().equals(ut.rootDirectory()) && job.namespace() != null
+                    && job.namespace().equals(ut.rootNamespace())) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    Task nextTask() throws InterruptedException {
+        Task task = _pending.poll();
+        boolean held = task != null;
+        if (task == null) {
+            task = _queue.take();
+        }
+        if (!held) {
+            MFSyncSettings.Job job = archiveJobOf(task);
+            if (job != null) {
+                return nextArchive((FileUploadTask) task, job);
+            }
+        }
+        if (_smallFileThreshold <= 0 || _smallFileBatchSize <= 1 || !isSmallFile(task)) {
+            return task;
+        }
+        FileUploadTask first = (FileUploadTask) task;
+        List<FileUploadTask> tasks = new ArrayList<FileUploadTask>(_smallFileBatchSize);
+        tasks.add(first);
+        while (tasks.size() < _smallFileBatchSize) {
+            Task t = _pending.poll();
+            if (t == null) {
+                t = _queue.poll();
+            }
+            if (t == null) {
+                break;
+            }
+            if (isSmallFile(t) && ((FileUploadTask) t).sessionOf() == first.sessionOf()) {
+                tasks.add((FileUploadTask) t);
+            } else {
+                _pending.addFirst(t);
+                break;
+            }
+        }
+        if (tasks.size() == 1) {
+            return first;
+        }
+        return new FileBatchUploadTask(first.sessionOf(), _logger, tasks);
+    }
+
+    /**
+     * Takes the next queued task if it is a tiny file of the same job (and
+     * session) as the first file of the archive. With a
+     * {@link CompactTaskQueue}, only the lane of the job is looked at, and the
+     * other tasks stay in the queue for the other consumers. Otherwise, a
+     * non-matching task is held (and executed next), and it stops there.
+     *
+     * @return the task or null if there is no more tiny file of the job.
+     */
+    private FileUploadTask pollArchiveTask(FileUploadTask first, MFSyncSettings.Job job) {
+        Predicate<Task> matches = t -> archiveJobOf(t) == job
+                && ((FileUploadTask) t).sessionOf() == first.sessionOf();
+        if (_queue instanceof CompactTaskQueue) {
+            return (FileUploadTask) ((CompactTaskQueue) _queue).pollLane(first, matches);
+        }
+        Task t = _queue.poll();
+        if (t == null) {
+            return null;
+        }
+        if (matches.test(t)) {
+            return (FileUploadTask) t;
+        }
+        _pending.add(t);
+        return null;
+    }
+
+    /**
+     * Collects the queued tiny files of the job into an archive. If there are
+     * not enough files for an archive, they are uploaded in batches instead.
+     */
+    private Task nextArchive(FileUploadTask first, MFSyncSettings.Job job) {
+        List<FileUploadTask> tasks = new ArrayList<FileUploadTask>();
+        tasks.add(first);
+        while (tasks.size() < job.archiveMaxFiles()) {
+            FileUploadTask t = pollArchiveTask(first, job);
+            if (t == null) {
+                break;
+            }
+            tasks.add(t);
+        }
+        if (tasks.size() >= job.archiveMinFiles()) {
+            return new FileArchiveUploadTask(first.sessionOf(), _logger, tasks);
+        }
+        int batchSize = Math.max(1, _smallFileBatchSize);
+        List<Task> batches = new ArrayList<Task>();
+        for (int from = 0; from < tasks.size(); from += batchSize) {
+            List<FileUploadTask> batch = tasks.subList(from, Math.min(tasks.size(), from + batchSize));
+            batches.add(batch.size() == 1 ? batch.get(0)
+                    : new FileBatchUploadTask(first.sessionOf(), _logger, new ArrayList<FileUploadTask>(batch)));
+        }
+        for (int i = batches.size() - 1; i > 0; i--) {
+            _pending.addFirst(batches.get(i));
+        }
+        return batches.get(0);
+    }
+
     @Override
     public void run() {
         try {
             while (!Thread.interrupted()) {
+                if (_controller != null && _pending.isEmpty()) {
+                    _currentTask = null;
+                    _controller.awaitActive(_index);
+                }
                 // wait for task from queue
-                _currentTask = _queue.take();
+                _currentTask = nextTask();
                 if (_currentTask instanceof PoisonTask) {
+                    if (_controller != null) {
+                        // wake up the parked consumers to take their poison.
+                        _controller.stop();
+                    }
                     _logger.info("Stopping consumer thread...");
                     break;
                 }
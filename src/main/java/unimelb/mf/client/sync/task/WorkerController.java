@@ -0,0 +1,214 @@
+package unimelb.mf.client.sync.task;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import unimelb.mf.client.util.LoggingUtils;
+
+/**
+ * Adapts the number of active workers ({@link TaskConsumer}s) to the measured
+ * throughput and server latency, in AIMD style: while there are tasks queued,
+ * a worker is added after each interval in which the throughput (in bytes or
+ * in files per second) improved; the number of workers is halved when the
+ * server latency rises well above its baseline, or when the throughput drops
+ * after a worker was added. If the worker added did not improve the
+ * throughput, it is taken back, and the number is held for a few intervals
+ * before probing again.
+ *
+ * The consumer threads are started up to the maximum, and the ones above the
+ * current number of active workers are parked between tasks (see
+ * {@link #awaitActive(int)}).
+ *
+ * @author wliu5
+ *
+ */
+public class WorkerController {
+
+    public static final long INTERVAL = 10000L; // milliseconds
+
+    /*
+     * relative change of the throughput considered as an improvement (or a
+     * drop).
+     */
+    private static final double GAIN = 0.05;
+    private static final double LOSS = 0.10;
+
+    /*
+     * the latency is considered congested if it exceeds the baseline by this
+     * factor (and by at least MIN_LATENCY_INCREASE milliseconds).
+     */
+    private static final double LATENCY_FACTOR = 3.0;
+    private static final long MIN_LATENCY_INCREASE = 50L;
+
+    /*
+     * number of intervals to hold before probing with one more worker.
+     */
+    private static final int HOLD_INTERVALS = 6;
+
+    private static enum Decision {
+        NONE, INCREASE, DECREASE, HOLD
+    }
+
+    private final int _min;
+    private final int _max;
+    private final Logger _logger;
+
+    private int _active;
+    private boolean _stopping = false;
+
+    private long _lastTime = -1;
+    private long _lastBytes;
+    private long _lastFiles;
+    private double _lastByteRate;
+    private double _lastFileRate;
+    private long _baseLatency = -1;
+    private Decision _lastDecision = Decision.NONE;
+    private int _holds = 0; // remaining intervals to hold
+    private String _lastReason = null;
+    private long _lastDecisionTime = 0;
+
+    /**
+     * @param initial
+     *            the initial number of active workers.
+     * @param min
+     *            the minimum number of active workers.
+     * @param max
+     *            the maximum number of active workers (the number of
+     *            consumer threads).
+     * @param logger
+     *            the logger.
+     */
+    public WorkerController(int initial, int min, int max, Logger logger) {
+        _min = Math.max(1, min);
+        _max = Math.max(_min, max);
+        _active = Math.max(_min, Math.min(_max, initial));
+        _logger = logger == null ? LoggingUtils.createConsoleLogger() : logger;
+    }
+
+    public synchronized int activeWorkers() {
+        return _active;
+    }
+
+    public int minWorkers() {
+        return _min;
+    }
+
+    public int maxWorkers() {
+        return _max;
+    }
+
+    /**
+     * Called by the consumer (with the specified index) before taking the next
+     * task. Blocks while the index is not below the number of active workers.
+     */
+    public synchronized void awaitActive(int index) throws InterruptedException {
+        while (!_stopping && index >= _active) {
+            wait();
+        }
+    }
+
+    /**
+     * Releases all the parked consumers, e.g. when the consumers are being
+     * stopped (with {@link PoisonTask}s).
+     */
+    public synchronized void stop() {
+        _stopping = true;
+        notifyAll();
+    }
+
+    private synchronized void setActive(int active, Decision decision, String reason, long now) {
+        int prev = _active;
+        _active = Math.max(_min, Math.min(_max, active));
+        _lastDecision = decision;
+        _lastReason = reason;
+        _lastDecisionTime = now;
+        if (_active != prev) {
+            _logger.info("Number of active workers: " + prev + " -> " + _active + " (" + reason + ")");
+            notifyAll();
+        }
+    }
+
+    /**
+     * Updates the number of active workers with the measurements of the last
+     * interval.
+     *
+     * @param bytes
+     *            the total number of bytes uploaded so far.
+     * @param files
+     *            the total number of files processed so far.
+     * @param backlog
+     *            the number of tasks queued.
+     * @param latency
+     *            the server latency (in milliseconds), or -1 if unknown.
+     * @param now
+     *            the current time (in milliseconds).
+     */
+    public void update(long bytes, long files, int backlog, long latency, long now) {
+        if (_lastTime < 0 || now <= _lastTime) {
+            _lastTime = now;
+            _lastBytes = bytes;
+            _lastFiles = files;
+            if (latency >= 0) {
+                _baseLatency = latency;
+            }
+            return;
+        }
+        double seconds = (now - _lastTime) / 1000.0;
+        double byteRate = (bytes - _lastBytes) / seconds;
+        double fileRate = (files - _lastFiles) / seconds;
+        _lastTime = now;
+        _lastBytes = bytes;
+        _lastFiles = files;
+
+        int active = activeWorkers();
+        String measured = String.format("%.3f MB/s, %.1f files/s, latency: %d ms", byteRate / 1000000.0, fileRate,
+                latency);
+        if (latency >= 0 && _baseLatency >= 0 && latency > _baseLatency * LATENCY_FACTOR
+                && latency - _baseLatency >= MIN_LATENCY_INCREASE) {
+            _holds = HOLD_INTERVALS;
+            setActive(active / 2, Decision.DECREASE,
+                    "server latency above baseline: " + _baseLatency + " ms; " + measured, now);
+        } else if (_lastDecision == Decision.INCREASE && byteRate < _lastByteRate * (1 - LOSS)
+                && fileRate < _lastFileRate * (1 - LOSS)) {
+            _holds = HOLD_INTERVALS;
+            setActive(active / 2, Decision.DECREASE, "throughput dropped; " + measured, now);
+        } else if (backlog <= 0) {
+            // nothing to gain from more workers.
+            setActive(active, Decision.HOLD, "no backlog; " + measured, now);
+        } else if (_lastDecision == Decision.INCREASE && byteRate <= _lastByteRate * (1 + GAIN)
+                && fileRate <= _lastFileRate * (1 + GAIN)) {
+            // the last worker added did not help: take it back.
+            _holds = HOLD_INTERVALS;
+            setActive(active - 1, Decision.HOLD, "throughput not improved; " + measured, now);
+        } else if (_holds > 0) {
+            _holds--;
+            setActive(active, Decision.HOLD, "holding; " + measured, now);
+        } else {
+            setActive(active + 1, active < _max ? Decision.INCREASE : Decision.HOLD,
+                    "backlog: " + backlog + "; " + measured, now);
+        }
+        _lastByteRate = byteRate;
+        _lastFileRate = fileRate;
+        if (latency >= 0) {
+            // the baseline follows the lowest latency, and slowly drifts up.
+            _baseLatency = _baseLatency < 0 ? latency
+                    : Math.min(latency, _baseLatency + Math.max(1, _baseLatency / 10));
+        }
+    }
+
+    /**
+     * @return a description of the current state, e.g. for the status.
+     */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(_active).append(" (min: ").append(_min).append(", max: ").append(_max).append(")");
+        if (_lastReason != null) {
+            sb.append(", last: ").append(_lastDecision.name().toLowerCase()).append(" at ")
+                    .append(new SimpleDateFormat("HH:mm:ss").format(new Date(_lastDecisionTime))).append(" (")
+                    .append(_lastReason).append(")");
+        }
+        return sb.toString();
+    }
+
+}
@@ -27,6 +27,10 @@ public abstract class AbstractTask implements Task {
         _workProgressed = 0;
     }
 
+    protected final MFSession session() {
+        return _session;
+    }
+
     public CanAbort abortableOperation() {
         return _ca;
     }
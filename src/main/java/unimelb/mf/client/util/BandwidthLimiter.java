@@ -0,0 +1,291 @@
+package unimelb.mf.client.util;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the bandwidth used by the transfers, with token buckets: a global
+ * bucket shared by the worker threads, and optionally a bucket per worker
+ * thread. The global limit can vary with the time of the day
+ * (see {@link Window}), and can be overridden at runtime.
+ *
+ * The global bucket is guarded by a fair lock, and the workers take the
+ * tokens for the bytes they are about to send (going into debt if there are
+ * not enough) and then wait for the debt to be repaid, so that the workers get
+ * fair shares of the bandwidth, in the order they ask for it. When there is no
+ * limit at all, the lock is not taken.
+ *
+ * @author wliu5
+ *
+ */
+public class BandwidthLimiter {
+
+    /**
+     * A time window of the day (on some days of the week) with a bandwidth
+     * limit. If the end time is before the start time, the window spans
+     * midnight.
+     */
+    public static class Window {
+
+        private final LocalTime _start;
+        private final LocalTime _end;
+        private final Set<DayOfWeek> _days;
+        private final long _limit;
+
+        /**
+         * @param start
+         *            the start time.
+         * @param end
+         *            the end time.
+         * @param days
+         *            the days of the week (when the window starts), or null
+         *            for every day.
+         * @param limit
+         *            the limit (in bytes per second). 0 for unlimited.
+         */
+        public Window(LocalTime start, LocalTime end, Set<DayOfWeek> days, long limit) {
+            _start = start;
+            _end = end;
+            _days = days == null || days.isEmpty() ? EnumSet.allOf(DayOfWeek.class) : EnumSet.copyOf(days);
+            _limit = limit;
+        }
+
+        public long limit() {
+            return _limit;
+        }
+
+        public boolean contains(LocalDateTime time) {
+            LocalTime t = time.toLocalTime();
+            if (_start.isBefore(_end) || _start.equals(_end)) {
+                return _days.contains(time.getDayOfWeek()) && !t.isBefore(_start) && t.isBefore(_end);
+            }
+            // spans midnight
+            if (!t.isBefore(_start)) {
+                return _days.contains(time.getDayOfWeek());
+            }
+            return t.isBefore(_end) && _days.contains(time.getDayOfWeek().minus(1));
+        }
+
+        /**
+         * Parses the days of the week, e.g. "mon-fri" or "sat,sun".
+         */
+        public static Set<DayOfWeek> parseDays(String days) {
+            Set<DayOfWeek> set = EnumSet.noneOf(DayOfWeek.class);
+            if (days == null || days.trim().isEmpty()) {
+                return set;
+            }
+            for (String token : days.split(",")) {
+                token = token.trim();
+                int idx = token.indexOf('-');
+                if (idx > 0) {
+                    DayOfWeek from = parseDay(token.substring(0, idx));
+                    DayOfWeek to = parseDay(token.substring(idx + 1));
+                    for (DayOfWeek d = from;; d = d.plus(1)) {
+                        set.add(d);
+                        if (d == to) {
+                            break;
+                        }
+                    }
+                } else {
+                    set.add(parseDay(token));
+                }
+            }
+            return set;
+        }
+
+        private static DayOfWeek parseDay(String day) {
+            day = day.trim().toUpperCase();
+            for (DayOfWeek d : DayOfWeek.values()) {
+                if (day.length() >= 3 && d.name().startsWith(day)) {
+                    return d;
+                }
+            }
+            throw new IllegalArgumentException("Invalid day of week: " + day);
+        }
+
+        @Override
+        public String toString() {
+            return _start + "-" + _end + (_days.size() == 7 ? "" : " " + _days.toString().toLowerCase()) + ": "
+                    + _limit;
+        }
+    }
+
+    private static class Bucket {
+
+        private long _rate; // bytes per second, 0 for unlimited
+        private double _tokens;
+        private long _lastRefill = System.nanoTime();
+
+        Bucket(long rate) {
+            setRate(rate);
+        }
+
+        void setRate(long rate) {
+            if (rate != _rate) {
+                _rate = rate;
+                _tokens = Math.min(_tokens, rate);
+            }
+        }
+
+        /**
+         * Takes the tokens.
+         *
+         * @return the time (in nanoseconds) to wait for the debt to be repaid.
+         */
+        long take(long n) {
+            if (_rate <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            // refill, up to a burst of one second.
+            _tokens = Math.min(_rate, _tokens + (now - _lastRefill) * _rate / 1e9);
+            _lastRefill = now;
+            _tokens -= n;
+            return _tokens >= 0 ? 0 : (long) (-_tokens * 1e9 / _rate);
+        }
+    }
+
+    private final ReentrantLock _lock = new ReentrantLock(true);
+    private final Bucket _global;
+    private volatile long _defaultLimit;
+    private volatile long _perWorkerLimit;
+    private volatile List<Window> _windows;
+    private volatile Long _override = null;
+    private volatile long _nextScheduleCheck = 0;
+    // the rate of the global bucket, read without the lock.
+    private volatile long _globalRate;
+
+    private final ThreadLocal<Bucket> _workerBuckets = new ThreadLocal<Bucket>();
+
+    /**
+     * @param limit
+     *            the global limit (in bytes per second) outside the windows.
+     *            0 for unlimited.
+     * @param perWorkerLimit
+     *            the limit (in bytes per second) of each worker thread. 0 for
+     *            unlimited.
+     * @param windows
+     *            the windows with different global limits, or null. The first
+     *            window containing the current time applies.
+     */
+    public BandwidthLimiter(long limit, long perWorkerLimit, List<Window> windows) {
+        _defaultLimit = limit;
+        _perWorkerLimit = perWorkerLimit;
+        _windows = windows == null ? Collections.<Window> emptyList() : new ArrayList<Window>(windows);
+        _globalRate = currentScheduledLimit();
+        _global = new Bucket(_globalRate);
+    }
+
+    private long currentScheduledLimit() {
+        LocalDateTime now = LocalDateTime.now();
+        for (Window window : _windows) {
+            if (window.contains(now)) {
+                return window.limit();
+            }
+        }
+        return _defaultLimit;
+    }
+
+    /**
+     * @return the current global limit (in bytes per second), 0 for
+     *         unlimited.
+     */
+    public long limit() {
+        Long override = _override;
+        return override != null ? override : currentScheduledLimit();
+    }
+
+    public long perWorkerLimit() {
+        return _perWorkerLimit;
+    }
+
+    public boolean isOverridden() {
+        return _override != null;
+    }
+
+    /**
+     * Overrides the scheduled global limit.
+     *
+     * @param limit
+     *            the global limit (in bytes per second), 0 for unlimited, or
+     *            null to restore the schedule.
+     */
+    public void setOverride(Long limit) {
+        _override = limit;
+        _nextScheduleCheck = 0;
+    }
+
+    public void setPerWorkerLimit(long perWorkerLimit) {
+        _perWorkerLimit = perWorkerLimit;
+    }
+
+    /**
+     * Waits until the specified number of bytes can be transferred.
+     *
+     * @param nbBytes
+     *            the number of bytes about to be transferred.
+     * @throws InterruptedException
+     */
+    public void acquire(long nbBytes) throws InterruptedException {
+        if (nbBytes <= 0) {
+            return;
+        }
+        long wait = 0;
+        long perWorkerLimit = _perWorkerLimit;
+        long now = System.currentTimeMillis();
+        if (perWorkerLimit <= 0 && _globalRate <= 0 && now < _nextScheduleCheck) {
+            // unlimited.
+            return;
+        }
+        if (perWorkerLimit > 0) {
+            Bucket bucket = _workerBuckets.get();
+            if (bucket == null) {
+                bucket = new Bucket(perWorkerLimit);
+                _workerBuckets.set(bucket);
+            }
+            bucket.setRate(perWorkerLimit);
+            wait = bucket.take(nbBytes);
+        }
+        _lock.lockInterruptibly();
+        try {
+            if (now >= _nextScheduleCheck) {
+                _globalRate = limit();
+                _global.setRate(_globalRate);
+                _nextScheduleCheck = now + 1000L;
+            }
+            wait = Math.max(wait, _global.take(nbBytes));
+        } finally {
+            _lock.unlock();
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * @return a description of the limits, e.g. for the status.
+     */
+    public String describe() {
+        long limit = limit();
+        StringBuilder sb = new StringBuilder();
+        sb.append(limit > 0 ? limit + " bytes/s" : "unlimited");
+        if (_override != null) {
+            sb.append(" (overridden)");
+        } else if (!_windows.isEmpty()) {
+            sb.append(" (scheduled)");
+        }
+        if (_perWorkerLimit > 0) {
+            sb.append(", per worker: ").append(_perWorkerLimit).append(" bytes/s");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,72 @@
+package unimelb.mf.client.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of fixed size byte buffers, shared by the worker threads, so that the
+ * (large) buffers are not allocated for every file. At most maxIdle buffers
+ * are kept in the pool, the others are left to the garbage collector when they
+ * are released.
+ *
+ * The buffers are heap buffers, backed by arrays: the upload streams only
+ * accept byte arrays, so a direct buffer would have to be copied to an array
+ * anyway.
+ *
+ * @author wliu5
+ *
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 8192;
+
+    public static final int MAX_BUFFER_SIZE = 64 * 1024 * 1024;
+
+    private final int _bufferSize;
+    private final BlockingQueue<ByteBuffer> _buffers;
+
+    /**
+     * @param bufferSize
+     *            the size (in bytes) of the buffers.
+     * @param maxIdle
+     *            the maximum number of idle buffers kept in the pool.
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        if (bufferSize < MIN_BUFFER_SIZE || bufferSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        }
+        _bufferSize = bufferSize;
+        _buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxIdle));
+    }
+
+    public int bufferSize() {
+        return _bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer, from the pool if available, or newly
+     *         allocated.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = _buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(_bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool.
+     *
+     * @param buffer
+     *            the buffer acquired from the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == _bufferSize) {
+            _buffers.offer(buffer);
+        }
+    }
+
+}
@@ -1,15 +1,13 @@
 package unimelb.mf.client.util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
-import java.math.BigInteger;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 public class ChecksumUtils {
 
@@ -17,136 +15,106 @@ public class ChecksumUtils {
     }
 
     public static enum ChecksumType {
-        CRC32, MD5, SHA1, SHA256
+        CRC32, CRC32C, MD5, SHA1, SHA256
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static String get(File f, ChecksumType type) throws Throwable {
-        InputStream in = new BufferedInputStream(new FileInputStream(f));
-        try {
-            return get(in, type);
-        } finally {
-            in.close();
-        }
+        return get(f, Collections.singleton(type)).get(type);
     }
 
-    public static String get(InputStream in, ChecksumType type) throws Throwable {
-        switch (type) {
-        case CRC32:
-            return getCRC32(in);
-        case MD5:
-            return getMD5(in);
-        case SHA1:
-            return getSHA1(in);
-        case SHA256:
-            return getSHA256(in);
-        default:
-            break;
-        }
-        throw new IllegalArgumentException("Unknown checksum type: " + type);
+    /**
+     * Computes the checksums of the specified types in a single pass over the
+     * file.
+     *
+     * @return the checksums in hex, by type.
+     */
+    public static Map<ChecksumType, String> get(File f, ChecksumType... types) throws Throwable {
+        return get(f, Arrays.asList(types));
     }
 
-    public static long getCRC32Value(Path f) throws Throwable {
-        return getCRC32Value(f.toFile());
+    public static Map<ChecksumType, String> get(File f, Collection<ChecksumType> types) throws Throwable {
+        return MultiDigest.digest(f.toPath(), types, MultiDigest.DEFAULT_BUFFER_SIZE);
     }
 
-    public static long getCRC32Value(File f) throws Throwable {
-        InputStream in = new BufferedInputStream(new FileInputStream(f));
+    public static String get(InputStream in, ChecksumType type) throws Throwable {
+        return get(in, Collections.singleton(type)).get(type);
+    }
+
+    /**
+     * Computes the checksums of the specified types in a single pass over the
+     * stream. The stream is closed.
+     *
+     * @return the checksums in hex, by type.
+     */
+    public static Map<ChecksumType, String> get(InputStream in, Collection<ChecksumType> types) throws Throwable {
+        MultiDigest md = new MultiDigest(types);
         try {
-            return getCRC32Value(in);
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                md.update(buffer, 0, len);
+            }
         } finally {
             in.close();
         }
+        return md.values();
+    }
+
+    public static long getCRC32Value(Path f) throws Throwable {
+        return Long.parseLong(get(f.toFile(), ChecksumType.CRC32), 16);
+    }
+
+    public static long getCRC32Value(File f) throws Throwable {
+        return getCRC32Value(f.toPath());
     };
 
     public static long getCRC32Value(InputStream in) throws Throwable {
-        CheckedInputStream cin = new CheckedInputStream(
-                (in instanceof BufferedInputStream) ? in : new BufferedInputStream(in), new CRC32());
-        byte[] buffer = new byte[1024];
-        try {
-            while (cin.read(buffer) != -1) {
-                // Read file in completely
-            }
-        } finally {
-            cin.close();
-            in.close();
-        }
-        return cin.getChecksum().getValue();
+        return Long.parseLong(getCRC32(in), 16);
     }
 
     public static String getCRC32(File f) throws Throwable {
-        InputStream in = new BufferedInputStream(new FileInputStream(f));
-        try {
-            return getCRC32(in);
-        } finally {
-            in.close();
-        }
+        return get(f, ChecksumType.CRC32);
     }
 
     public static String getCRC32(InputStream in) throws Throwable {
-        CheckedInputStream cin = new CheckedInputStream(
-                (in instanceof BufferedInputStream) ? in : new BufferedInputStream(in), new CRC32());
-        byte[] buffer = new byte[1024];
-        try {
-            while (cin.read(buffer) != -1) {
-                // Read file in completely
-            }
-        } finally {
-            cin.close();
-            in.close();
-        }
-        long value = cin.getChecksum().getValue();
-        return Long.toHexString(value);
+        return get(in, ChecksumType.CRC32);
     }
 
     public static String getSHA1(File f) throws Throwable {
-        InputStream in = new BufferedInputStream(new FileInputStream(f));
-        try {
-            return getSHA1(in);
-        } finally {
-            in.close();
-        }
+        return get(f, ChecksumType.SHA1);
     }
 
     public static String getSHA1(InputStream in) throws Throwable {
-        return getDigest("SHA-1", in);
+        return get(in, ChecksumType.SHA1);
     }
 
     public static String getSHA256(File f) throws Throwable {
-        InputStream in = new BufferedInputStream(new FileInputStream(f));
-        try {
-            return getSHA256(in);
-        } finally {
-            in.close();
-        }
+        return get(f, ChecksumType.SHA256);
     }
 
     public static String getSHA256(InputStream in) throws Throwable {
-        return getDigest("SHA-256", in);
+        return get(in, ChecksumType.SHA256);
     }
 
     public static String getMD5(File f) throws Throwable {
-        InputStream in = new BufferedInputStream(new FileInputStream(f));
-        try {
-            return getMD5(in);
-        } finally {
-            in.close();
-        }
+        return get(f, ChecksumType.MD5);
     }
 
     public static String getMD5(InputStream in) throws Throwable {
-        return getDigest("MD5", in);
+        return get(in, ChecksumType.MD5);
     }
 
     public static byte[] getDigest(InputStream in, String algorithm) throws Throwable {
         MessageDigest md = MessageDigest.getInstance(algorithm);
-        DigestInputStream dis = new DigestInputStream(in, md);
         try {
-            byte[] buffer = new byte[1024];
-            while (dis.read(buffer) != -1) {
-                // Read the stream fully
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                md.update(buffer, 0, len);
             }
         } finally {
-            dis.close();
             in.close();
         }
         return md.digest();
@@ -157,8 +125,12 @@ public class ChecksumUtils {
     }
 
     public static String toHexString(byte[] bytes) {
-        BigInteger bi = new BigInteger(1, bytes);
-        return String.format("%0" + (bytes.length << 1) + "x", bi);
+        char[] chars = new char[bytes.length << 1];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i << 1] = HEX_DIGITS[(bytes[i] >>> 4) & 0xf];
+            chars[(i << 1) + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
     }
 
 }
@@ -0,0 +1,469 @@
+package unimelb.mf.client.util;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import unimelb.mf.client.util.ChecksumUtils.ChecksumType;
+
+/**
+ * Computes a set of checksums (CRC32, CRC32C and message digests) in a single
+ * pass over the data, so that the data is only read once whatever the number
+ * of checksums. CRC32C uses java.util.zip.CRC32C (hardware accelerated) if the
+ * JVM provides it (Java 9+), or a table driven implementation otherwise.
+ *
+ * Large files can be digested in parallel, see
+ * {@link #digestParallel(Path, Collection, long, int, ExecutorService)}.
+ *
+ * @author wliu5
+ *
+ */
+public class MultiDigest {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1048576;
+
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    private static final int CRC32_POLY = 0xedb88320; // reflected
+
+    private static final int CRC32C_POLY = 0x82f63b78; // reflected
+
+    private final Set<ChecksumType> _types;
+    private final Checksum _crc32;
+    private final Checksum _crc32c;
+    private final Map<ChecksumType, MessageDigest> _digests;
+
+    /**
+     * @param types
+     *            the checksum types to compute.
+     */
+    public MultiDigest(Collection<ChecksumType> types) throws NoSuchAlgorithmException {
+        _types = types == null || types.isEmpty() ? EnumSet.noneOf(ChecksumType.class) : EnumSet.copyOf(types);
+        _crc32 = _types.contains(ChecksumType.CRC32) ? new CRC32() : null;
+        _crc32c = _types.contains(ChecksumType.CRC32C) ? newCRC32C() : null;
+        _digests = new LinkedHashMap<ChecksumType, MessageDigest>();
+        for (ChecksumType type : _types) {
+            String algorithm = algorithmOf(type);
+            if (algorithm != null) {
+                _digests.put(type, MessageDigest.getInstance(algorithm));
+            }
+        }
+    }
+
+    public Set<ChecksumType> types() {
+        return _types;
+    }
+
+    public boolean isEmpty() {
+        return _types.isEmpty();
+    }
+
+    /**
+     * @return the name of the message digest algorithm, or null if the type is
+     *         a CRC.
+     */
+    static String algorithmOf(ChecksumType type) {
+        switch (type) {
+        case MD5:
+            return "MD5";
+        case SHA1:
+            return "SHA-1";
+        case SHA256:
+            return "SHA-256";
+        default:
+            return null;
+        }
+    }
+
+    public MultiDigest update(byte[] b, int off, int len) {
+        if (_crc32 != null) {
+            _crc32.update(b, off, len);
+        }
+        if (_crc32c != null) {
+            _crc32c.update(b, off, len);
+        }
+        for (MessageDigest md : _digests.values()) {
+            md.update(b, off, len);
+        }
+        return this;
+    }
+
+    /**
+     * @return the CRC32 value, or 0 if it is not computed.
+     */
+    public long crc32Value() {
+        return _crc32 == null ? 0L : _crc32.getValue();
+    }
+
+    /**
+     * @return the CRC32C value, or 0 if it is not computed.
+     */
+    public long crc32cValue() {
+        return _crc32c == null ? 0L : _crc32c.getValue();
+    }
+
+    /**
+     * Completes the computation. The digest should not be updated afterwards.
+     *
+     * @return the checksums in hex, by type.
+     */
+    public Map<ChecksumType, String> values() {
+        Map<ChecksumType, String> values = new LinkedHashMap<ChecksumType, String>();
+        for (ChecksumType type : _types) {
+            switch (type) {
+            case CRC32:
+                values.put(type, Long.toHexString(_crc32.getValue()));
+                break;
+            case CRC32C:
+                values.put(type, Long.toHexString(_crc32c.getValue()));
+                break;
+            default:
+                values.put(type, ChecksumUtils.toHexString(_digests.get(type).digest()));
+                break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Formats the checksums, e.g. "crc32=1a2b3c4d, sha256=...".
+     */
+    public static String toString(Map<ChecksumType, String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<ChecksumType, String> e : values.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(e.getKey().name().toLowerCase()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a comma separated list of checksum types, e.g. "sha256,crc32c".
+     */
+    public static Set<ChecksumType> parseTypes(String types) {
+        Set<ChecksumType> set = EnumSet.noneOf(ChecksumType.class);
+        if (types != null) {
+            for (String type : types.split(",")) {
+                type = type.trim();
+                if (!type.isEmpty()) {
+                    set.add(ChecksumType.valueOf(type.replace("-", "").toUpperCase()));
+                }
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Computes the checksums of the file in a single pass.
+     */
+    public static Map<ChecksumType, String> digest(Path file, Collection<ChecksumType> types, int bufferSize)
+            throws Throwable {
+        MultiDigest md = new MultiDigest(types);
+        FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            int len;
+            while ((len = fc.read(buffer)) != -1) {
+                md.update(buffer.array(), 0, len);
+                buffer.clear();
+            }
+        } finally {
+            fc.close();
+        }
+        return md.values();
+    }
+
+    private static class ChunkDigest {
+        long length;
+        long crc32;
+        long crc32c;
+        Map<ChecksumType, byte[]> digests = new LinkedHashMap<ChecksumType, byte[]>();
+    }
+
+    /**
+     * Computes the checksums of the file in parallel, by chunks. The CRC32 and
+     * CRC32C values of the chunks are combined, so they are identical to the
+     * ones computed sequentially. Message digests cannot be combined: they are
+     * computed as (one level) tree hashes instead, i.e. the digest of the
+     * concatenated digests of the chunks, which only equal the sequential
+     * digests if the file fits in a single chunk. So they can only be compared
+     * with tree hashes computed with the same chunk size.
+     *
+     * @param file
+     *            the file.
+     * @param types
+     *            the checksum types.
+     * @param chunkSize
+     *            the size of the chunks (in bytes).
+     * @param bufferSize
+     *            the size of the buffer to read each chunk.
+     * @param executor
+     *            the executor to digest the chunks.
+     * @return the checksums in hex, by type.
+     * @throws Throwable
+     */
+    public static Map<ChecksumType, String> digestParallel(Path file, Collection<ChecksumType> types,
+            long chunkSize, int bufferSize, ExecutorService executor) throws Throwable {
+        long size;
+        FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            size = fc.size();
+            if (size <= chunkSize) {
+                fc.close();
+                return digest(file, types, bufferSize);
+            }
+            List<Future<ChunkDigest>> futures = new ArrayList<Future<ChunkDigest>>();
+            for (long position = 0; position < size; position += chunkSize) {
+                final long offset = position;
+                final long length = Math.min(chunkSize, size - position);
+                futures.add(executor.submit(() -> digestChunk(fc, offset, length, types, bufferSize)));
+            }
+            MultiDigest root = new MultiDigest(types);
+            long crc32 = 0L;
+            long crc32c = 0L;
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    ChunkDigest cd = futures.get(i).get();
+                    if (i == 0) {
+                        crc32 = cd.crc32;
+                        crc32c = cd.crc32c;
+                    } else {
+                        crc32 = combine(crc32, cd.crc32, cd.length, CRC32_POLY);
+                        crc32c = combine(crc32c, cd.crc32c, cd.length, CRC32C_POLY);
+                    }
+                    for (Map.Entry<ChecksumType, byte[]> e : cd.digests.entrySet()) {
+                        root._digests.get(e.getKey()).update(e.getValue());
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() == null ? e : e.getCause();
+            } finally {
+                for (Future<ChunkDigest> f : futures) {
+                    f.cancel(true);
+                }
+            }
+            Map<ChecksumType, String> values = root.values();
+            if (values.containsKey(ChecksumType.CRC32)) {
+                values.put(ChecksumType.CRC32, Long.toHexString(crc32));
+            }
+            if (values.containsKey(ChecksumType.CRC32C)) {
+                values.put(ChecksumType.CRC32C, Long.toHexString(crc32c));
+            }
+            return values;
+        } finally {
+            if (fc.isOpen()) {
+                fc.close();
+            }
+        }
+    }
+
+    private static ChunkDigest digestChunk(FileChannel fc, long offset, long length, Collection<ChecksumType> types,
+            int bufferSize) throws Exception {
+        MultiDigest md = new MultiDigest(types);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(bufferSize, length));
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int len = fc.read(buffer, position);
+            if (len < 0) {
+                break;
+            }
+            md.update(buffer.array(), 0, len);
+            position += len;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        ChunkDigest cd = new ChunkDigest();
+        cd.length = position - offset;
+        cd.crc32 = md.crc32Value();
+        cd.crc32c = md.crc32cValue();
+        for (Map.Entry<ChecksumType, MessageDigest> e : md._digests.entrySet()) {
+            cd.digests.put(e.getKey(), e.getValue().digest());
+        }
+        return cd;
+    }
+
+    /**
+     * Combines the CRC32 checksums of two consecutive blocks into the CRC32
+     * checksum of the concatenated blocks (as zlib crc32_combine).
+     *
+     * @param crc1
+     *            the CRC32 checksum of the first block.
+     * @param crc2
+     *            the CRC32 checksum of the second block.
+     * @param len2
+     *            the length of the second block.
+     * @return the CRC32 checksum of the concatenated blocks.
+     */
+    public static long combineCRC32(long crc1, long crc2, long len2) {
+        return combine(crc1, crc2, len2, CRC32_POLY);
+    }
+
+    public static long combineCRC32C(long crc1, long crc2, long len2) {
+        return combine(crc1, crc2, len2, CRC32C_POLY);
+    }
+
+    /**
+     * Combines the CRCs of two consecutive blocks into the CRC of the
+     * concatenated blocks, for the reflected polynomial.
+     */
+    static long combine(long crc1, long crc2, long len2, int poly) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        odd[0] = poly;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd); // 2 zero bits
+        gf2MatrixSquare(odd, even); // 4 zero bits
+        int c = (int) crc1;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                c = gf2MatrixTimes(even, c);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                c = gf2MatrixTimes(odd, c);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return (c ^ (int) crc2) & 0xffffffffL;
+    }
+
+    private static int gf2MatrixTimes(int[] mat, int vec) {
+        int sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    private static final Constructor<?> CRC32C_CONSTRUCTOR;
+    static {
+        Constructor<?> c = null;
+        try {
+            c = Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (Throwable e) {
+            // Java 8
+        }
+        CRC32C_CONSTRUCTOR = c;
+    }
+
+    /**
+     * @return a CRC32C checksum, java.util.zip.CRC32C if available.
+     */
+    public static Checksum newCRC32C() {
+        if (CRC32C_CONSTRUCTOR != null) {
+            try {
+                return (Checksum) CRC32C_CONSTRUCTOR.newInstance();
+            } catch (Throwable e) {
+                // fall back to the table driven implementation.
+            }
+        }
+        return new SoftCRC32C();
+    }
+
+    /**
+     * Table driven (slicing-by-8) CRC32C (Castagnoli).
+     */
+    static class SoftCRC32C implements Checksum {
+
+        private static final int[][] TABLES = new int[8][256];
+        static {
+            for (int n = 0; n < 256; n++) {
+                int c = n;
+                for (int k = 0; k < 8; k++) {
+                    c = (c & 1) != 0 ? (c >>> 1) ^ CRC32C_POLY : c >>> 1;
+                }
+                TABLES[0][n] = c;
+            }
+            for (int n = 0; n < 256; n++) {
+                int c = TABLES[0][n];
+                for (int t = 1; t < 8; t++) {
+                    c = TABLES[0][c & 0xff] ^ (c >>> 8);
+                    TABLES[t][n] = c;
+                }
+            }
+        }
+
+        private int _crc = 0xffffffff;
+
+        @Override
+        public void update(int b) {
+            _crc = TABLES[0][(_crc ^ b) & 0xff] ^ (_crc >>> 8);
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = _crc;
+            int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3], t4 = TABLES[4],
+                    t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+            while (len >= 8) {
+                c ^= (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+                        | (b[off + 3] & 0xff) << 24;
+                c = t7[c & 0xff] ^ t6[(c >>> 8) & 0xff] ^ t5[(c >>> 16) & 0xff] ^ t4[c >>> 24]
+                        ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^ t1[b[off + 6] & 0xff]
+                        ^ t0[b[off + 7] & 0xff];
+                off += 8;
+                len -= 8;
+            }
+            while (len-- > 0) {
+                c = t0[(c ^ b[off++]) & 0xff] ^ (c >>> 8);
+            }
+            _crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return (~_crc) & 0xffffffffL;
+        }
+
+        @Override
+        public void reset() {
+            _crc = 0xffffffff;
+        }
+    }
+
+}
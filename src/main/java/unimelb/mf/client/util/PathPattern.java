@@ -1,13 +1,423 @@
 package unimelb.mf.client.util;
 
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
 /**
  * This class follows the pattern syntax of ANT.
  * 
  * See http://ant.apache.org/manual/dirtasks.html#patterns
  * 
+ * A pattern can be compiled once, by {@link #compile(String)}, into a small
+ * array of match operations, which is then matched against the paths without
+ * building or compiling any regular expression. It matches exactly the same
+ * paths as the regular expression generated by {@link #toRegEx(String)}.
+ * 
  */
 public class PathPattern {
 
+    /*
+     * match operations. A non-negative operation matches the literal
+     * character.
+     */
+    private static final int ANY_CHAR = -1; // . (any character except line terminators)
+    private static final int ANY_CHAR_IN_SEGMENT = -2; // ? [^/]{1}
+    private static final int STAR = -3; // * [^/]*
+    private static final int DOUBLE_STAR = -4; // ** .*
+    private static final int DOUBLE_STAR_SLASH = -5; // **/ (.*/)?
+    private static final int SLASH_DOUBLE_STAR = -6; // /** (/.*)?
+
+    /*
+     * characters that have special meanings in the generated regular
+     * expression, apart from '.'. Patterns contain any of them are matched by
+     * the compiled regular expression.
+     */
+    private static final String REGEX_META_CHARS = "\\^$|+()[]{}";
+
+    private final String _pattern;
+    private final int[] _ops;
+    private final boolean[] _nullable;
+    private final Pattern _regex;
+
+    private PathPattern(String pattern) {
+        _pattern = pattern;
+        if (containsAny(pattern, REGEX_META_CHARS)) {
+            _ops = null;
+            _nullable = null;
+            _regex = Pattern.compile(toRegEx(pattern));
+        } else {
+            _ops = parse(pattern);
+            // _nullable[i] is true if _ops[i..] can match empty string.
+            _nullable = new boolean[_ops.length + 1];
+            _nullable[_ops.length] = true;
+            for (int i = _ops.length - 1; i >= 0; i--) {
+                int o = _ops[i];
+                _nullable[i] = _nullable[i + 1] && (o == STAR || o == DOUBLE_STAR || o == DOUBLE_STAR_SLASH
+                        || o == SLASH_DOUBLE_STAR);
+            }
+            _regex = null;
+        }
+    }
+
+    public static PathPattern compile(String pattern) {
+        return new PathPattern(pattern);
+    }
+
+    public String pattern() {
+        return _pattern;
+    }
+
+    public boolean matches(CharSequence path) {
+        if (_ops == null) {
+            return _regex.matcher(path).matches();
+        }
+        return match(path, 0, 0);
+    }
+
+    /**
+     * Check if all the descendants of the directory match the pattern. It is
+     * conservative: it may return false even if all the descendants match,
+     * but it never returns true if any descendant does not match.
+     * 
+     * @param dirPath
+     *            the relative path of the directory. Empty string for the root
+     *            directory.
+     * @return
+     */
+    public boolean matchesAllDescendants(String dirPath) {
+        if (_ops == null) {
+            return false;
+        }
+        return matchAll(dirPrefix(dirPath), 0, 0);
+    }
+
+    /**
+     * Check if any descendant of the directory may match the pattern. It is
+     * conservative: it may return true even if no descendant matches, but it
+     * never returns false if any descendant matches.
+     * 
+     * @param dirPath
+     *            the relative path of the directory. Empty string for the root
+     *            directory.
+     * @return
+     */
+    public boolean mayMatchDescendants(String dirPath) {
+        if (_ops == null) {
+            return true;
+        }
+        return matchAny(dirPrefix(dirPath), 0, 0);
+    }
+
+    private static String dirPrefix(String dirPath) {
+        return (dirPath == null || dirPath.isEmpty()) ? "" : (dirPath + PathUtils.SLASH);
+    }
+
+    /*
+     * Returns true if the prefix followed by any descendant path (non-empty,
+     * not starting with slash) matches _ops[op..].
+     */
+    private boolean matchAll(String prefix, int op, int i) {
+        int len = prefix.length();
+        while (op < _ops.length) {
+            if (i >= len) {
+                return remainingMatchAll(op);
+            }
+            int o = _ops[op];
+            char c = prefix.charAt(i);
+            switch (o) {
+            case ANY_CHAR:
+                if (isLineTerminator(c)) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            case ANY_CHAR_IN_SEGMENT:
+                if (c == PathUtils.SLASH_CHAR) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            case STAR:
+                for (int j = i; j < len; j++) {
+                    if (matchAll(prefix, op + 1, j)) {
+                        return true;
+                    }
+                    if (prefix.charAt(j) == PathUtils.SLASH_CHAR) {
+                        return false;
+                    }
+                }
+                // prefix always ends with slash.
+                return false;
+            case DOUBLE_STAR:
+                if (_nullable[op + 1]) {
+                    return true;
+                }
+                for (int j = i; j <= len; j++) {
+                    if (matchAll(prefix, op + 1, j)) {
+                        return true;
+                    }
+                }
+                return false;
+            case DOUBLE_STAR_SLASH:
+                if (matchAll(prefix, op + 1, i)) {
+                    return true;
+                }
+                for (int j = i; j < len; j++) {
+                    if (prefix.charAt(j) == PathUtils.SLASH_CHAR && matchAll(prefix, op + 1, j + 1)) {
+                        return true;
+                    }
+                }
+                return false;
+            case SLASH_DOUBLE_STAR:
+                if (c == PathUtils.SLASH_CHAR && _nullable[op + 1]) {
+                    return true;
+                }
+                if (matchAll(prefix, op + 1, i)) {
+                    return true;
+                }
+                if (c == PathUtils.SLASH_CHAR) {
+                    for (int j = i + 1; j <= len; j++) {
+                        if (matchAll(prefix, op + 1, j)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            default:
+                if (c != o) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns true if _ops[op..] matches any descendant path (non-empty, not
+     * starting with slash).
+     */
+    private boolean remainingMatchAll(int op) {
+        for (int k = op; k < _ops.length; k++) {
+            int o = _ops[k];
+            if (o == DOUBLE_STAR && _nullable[k + 1]) {
+                return true;
+            }
+            if (o != STAR && o != DOUBLE_STAR && o != DOUBLE_STAR_SLASH && o != SLASH_DOUBLE_STAR) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns true if the prefix followed by some descendant path may match
+     * _ops[op..].
+     */
+    private boolean matchAny(String prefix, int op, int i) {
+        int len = prefix.length();
+        while (op < _ops.length) {
+            if (i >= len) {
+                return true;
+            }
+            int o = _ops[op];
+            char c = prefix.charAt(i);
+            switch (o) {
+            case ANY_CHAR:
+                if (isLineTerminator(c)) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            case ANY_CHAR_IN_SEGMENT:
+                if (c == PathUtils.SLASH_CHAR) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            case STAR:
+                for (int j = i; j < len; j++) {
+                    if (matchAny(prefix, op + 1, j)) {
+                        return true;
+                    }
+                    if (prefix.charAt(j) == PathUtils.SLASH_CHAR) {
+                        return false;
+                    }
+                }
+                return true;
+            case DOUBLE_STAR:
+                return true;
+            case DOUBLE_STAR_SLASH:
+                if (matchAny(prefix, op + 1, i)) {
+                    return true;
+                }
+                for (int j = i; j < len; j++) {
+                    if (prefix.charAt(j) == PathUtils.SLASH_CHAR && matchAny(prefix, op + 1, j + 1)) {
+                        return true;
+                    }
+                }
+                return false;
+            case SLASH_DOUBLE_STAR:
+                return c == PathUtils.SLASH_CHAR || matchAny(prefix, op + 1, i);
+            default:
+                if (c != o) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return _pattern;
+    }
+
+    /*
+     * Follows the same steps as toRegEx(String).
+     */
+    private static int[] parse(String pattern) {
+        String[] parts = pattern.split("\\*\\*", -1);
+        int[] ops = new int[pattern.length()];
+        int n = 0;
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                ops[n++] = DOUBLE_STAR;
+            }
+            String part = parts[i];
+            for (int j = 0; j < part.length(); j++) {
+                char c = part.charAt(j);
+                if (c == '*') {
+                    ops[n++] = STAR;
+                } else if (c == '?') {
+                    ops[n++] = ANY_CHAR_IN_SEGMENT;
+                } else if (c == '.') {
+                    ops[n++] = ANY_CHAR;
+                } else {
+                    ops[n++] = c;
+                }
+            }
+        }
+        // .*/ => (.*/)?
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (ops[i] == DOUBLE_STAR && i + 1 < n && ops[i + 1] == PathUtils.SLASH_CHAR) {
+                ops[m++] = DOUBLE_STAR_SLASH;
+                i++;
+            } else {
+                ops[m++] = ops[i];
+            }
+        }
+        n = m;
+        // /.* => (/.*)?
+        m = 0;
+        for (int i = 0; i < n; i++) {
+            if (ops[i] == PathUtils.SLASH_CHAR && i + 1 < n && ops[i + 1] == DOUBLE_STAR) {
+                ops[m++] = SLASH_DOUBLE_STAR;
+                i++;
+            } else {
+                ops[m++] = ops[i];
+            }
+        }
+        return Arrays.copyOf(ops, m);
+    }
+
+    private boolean match(CharSequence s, int op, int i) {
+        int len = s.length();
+        while (op < _ops.length) {
+            int o = _ops[op];
+            switch (o) {
+            case ANY_CHAR:
+                if (i >= len || isLineTerminator(s.charAt(i))) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            case ANY_CHAR_IN_SEGMENT:
+                if (i >= len || s.charAt(i) == PathUtils.SLASH_CHAR) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            case STAR:
+                for (int j = i;; j++) {
+                    if (match(s, op + 1, j)) {
+                        return true;
+                    }
+                    if (j >= len || s.charAt(j) == PathUtils.SLASH_CHAR) {
+                        return false;
+                    }
+                }
+            case DOUBLE_STAR:
+                for (int j = i;; j++) {
+                    if (match(s, op + 1, j)) {
+                        return true;
+                    }
+                    if (j >= len || isLineTerminator(s.charAt(j))) {
+                        return false;
+                    }
+                }
+            case DOUBLE_STAR_SLASH:
+                if (match(s, op + 1, i)) {
+                    return true;
+                }
+                for (int j = i; j < len && !isLineTerminator(s.charAt(j)); j++) {
+                    if (s.charAt(j) == PathUtils.SLASH_CHAR && match(s, op + 1, j + 1)) {
+                        return true;
+                    }
+                }
+                return false;
+            case SLASH_DOUBLE_STAR:
+                if (match(s, op + 1, i)) {
+                    return true;
+                }
+                if (i >= len || s.charAt(i) != PathUtils.SLASH_CHAR) {
+                    return false;
+                }
+                for (int j = i + 1;; j++) {
+                    if (match(s, op + 1, j)) {
+                        return true;
+                    }
+                    if (j >= len || isLineTerminator(s.charAt(j))) {
+                        return false;
+                    }
+                }
+            default:
+                if (i >= len || s.charAt(i) != o) {
+                    return false;
+                }
+                i++;
+                op++;
+                break;
+            }
+        }
+        return i == len;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean containsAny(String s, String chars) {
+        for (int i = 0; i < s.length(); i++) {
+            if (chars.indexOf(s.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static boolean matches(String path, String pattern) {
         return path.matches(toRegEx(pattern));
     }
@@ -0,0 +1,90 @@
+package unimelb.mf.client.util;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A set of ANT-style path patterns, compiled once, to be matched against many
+ * paths.
+ *
+ * @author wliu5
+ *
+ */
+public class PathPatternSet {
+
+    private final PathPattern[] _patterns;
+
+    public PathPatternSet(Collection<String> patterns) {
+        Map<String, PathPattern> compiled = new LinkedHashMap<String, PathPattern>();
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                if (!compiled.containsKey(pattern)) {
+                    compiled.put(pattern, PathPattern.compile(pattern));
+                }
+            }
+        }
+        _patterns = compiled.values().toArray(new PathPattern[compiled.size()]);
+    }
+
+    public boolean isEmpty() {
+        return _patterns.length == 0;
+    }
+
+    public int size() {
+        return _patterns.length;
+    }
+
+    /**
+     * Check if the path matches any of the patterns.
+     *
+     * @param path
+     *            the relative path.
+     * @return
+     */
+    public boolean matchesAny(CharSequence path) {
+        for (PathPattern pattern : _patterns) {
+            if (pattern.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if all the descendants of the directory match any of the
+     * patterns. It may return false even if they all match, but never returns
+     * true if any of them does not match.
+     *
+     * @param dirPath
+     *            the relative path of the directory.
+     * @return
+     */
+    public boolean matchesAllDescendants(String dirPath) {
+        for (PathPattern pattern : _patterns) {
+            if (pattern.matchesAllDescendants(dirPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if any descendant of the directory may match any of the patterns.
+     * It may return true even if none of them matches, but never returns false
+     * if any of them matches.
+     *
+     * @param dirPath
+     *            the relative path of the directory.
+     * @return
+     */
+    public boolean mayMatchDescendants(String dirPath) {
+        for (PathPattern pattern : _patterns) {
+            if (pattern.mayMatchDescendants(dirPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,39 @@
+package unimelb.mf.client.file;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class DirectoryStateCacheTest {
+
+    @Test
+    public void testInvalidateWhileListing() throws Throwable {
+        Path dir = Files.createTempDirectory("dir-state-test");
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+        DirectoryStateCache cache = new DirectoryStateCache();
+
+        // a file failed to sync while the directory was being listed.
+        long listTime = System.currentTimeMillis();
+        cache.invalidate(dir);
+        cache.put(dir, attrs, listTime, 1, Collections.<Path> emptyList());
+        assertNull(cache.getIfUnchanged(dir, attrs));
+
+        // listed again (after the invalidation).
+        Thread.sleep(5);
+        cache.put(dir, attrs, System.currentTimeMillis(), 1, Collections.<Path> emptyList());
+        assertTrue(cache.getIfUnchanged(dir, attrs) != null);
+
+        // a file failed to sync after the directory was listed.
+        cache.invalidate(dir);
+        assertNull(cache.getIfUnchanged(dir, attrs));
+    }
+
+}
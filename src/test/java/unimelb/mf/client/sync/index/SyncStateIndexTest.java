@@ -0,0 +1,126 @@
+package unimelb.mf.client.sync.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class SyncStateIndexTest {
+
+    private Path _dir;
+
+    private BasicFileAttributes createFile(String name, int size) throws IOException {
+        Path file = _dir.resolve(name);
+        Files.write(file, new byte[size]);
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    @Test
+    public void testReopen() throws Throwable {
+        _dir = Files.createTempDirectory("sync-state-index-test");
+        Path file = _dir.resolve("mf-sync" + SyncStateIndex.FILE_EXTENSION);
+        BasicFileAttributes a = createFile("a", 10);
+        BasicFileAttributes b = createFile("b", 20);
+
+        SyncStateIndex index = SyncStateIndex.open(file, null);
+        // enough entries to grow the table, and to remove some of them.
+        for (int i = 0; i < 5000; i++) {
+            index.put("/ns/f" + i, a, String.valueOf(1000 + i), i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            index.remove("/ns/f" + i);
+        }
+        index.put("/ns/b", b, "42", 0xfedcba98L);
+        index.put("/ns/c", b, null, 0);
+        index.close();
+
+        index = SyncStateIndex.open(file, null);
+        assertEquals(2502, index.size());
+        for (int i = 0; i < 5000; i++) {
+            SyncStateIndex.Entry e = index.get("/ns/f" + i);
+            if (i % 2 == 0) {
+                assertNull(e);
+            } else {
+                assertEquals(String.valueOf(1000 + i), e.assetId());
+                assertEquals(i, e.csum());
+                assertTrue(index.matches("/ns/f" + i, a));
+            }
+        }
+        assertEquals("42", index.get("/ns/b").assetId());
+        assertEquals(0xfedcba98L, index.get("/ns/b").csum());
+        assertTrue(index.matches("/ns/b", b));
+        assertTrue(!index.matches("/ns/b", a));
+        assertNull(index.get("/ns/c").assetId());
+        index.close();
+    }
+
+    @Test
+    public void testLoadRecordsKeyedByPath() throws Throwable {
+        _dir = Files.createTempDirectory("sync-state-index-test");
+        Path file = _dir.resolve("mf-sync" + SyncStateIndex.FILE_EXTENSION);
+        BasicFileAttributes a = createFile("a", 10);
+
+        // the journal written by the earlier versions, with a truncated tail.
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        writePathRecord(journal, "/ns/a", a, "123", 7L);
+        writePathRecord(journal, "/ns/b", a, "124", 8L);
+        writeRemovePathRecord(journal, "/ns/b");
+        journal.write(new byte[] { 0, 0, 0, 20, 1, 2 });
+        Files.write(file, journal.toByteArray());
+
+        SyncStateIndex index = SyncStateIndex.open(file, null);
+        assertEquals(1, index.size());
+        assertEquals("123", index.get("/ns/a").assetId());
+        assertEquals(7L, index.get("/ns/a").csum());
+        assertTrue(index.matches("/ns/a", a));
+        assertNull(index.get("/ns/b"));
+        index.close();
+
+        // rewritten keyed by the hashes.
+        index = SyncStateIndex.open(file, null);
+        assertEquals(1, index.size());
+        assertEquals("123", index.get("/ns/a").assetId());
+        index.close();
+    }
+
+    private static void writePathRecord(ByteArrayOutputStream journal, String assetPath, BasicFileAttributes attrs,
+            String assetId, long csum) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(1);
+        out.writeUTF(assetPath);
+        out.writeLong(attrs.size());
+        out.writeLong(attrs.lastModifiedTime().toMillis());
+        out.writeLong(SyncStateIndex.fileKeyOf(attrs));
+        out.writeUTF(assetId);
+        out.writeLong(csum);
+        writeRecord(journal, payload.toByteArray());
+    }
+
+    private static void writeRemovePathRecord(ByteArrayOutputStream journal, String assetPath) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(2);
+        out.writeUTF(assetPath);
+        writeRecord(journal, payload.toByteArray());
+    }
+
+    private static void writeRecord(ByteArrayOutputStream journal, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(journal);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+
+}
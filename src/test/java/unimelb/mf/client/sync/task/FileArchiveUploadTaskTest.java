@@ -0,0 +1,62 @@
+package unimelb.mf.client.sync.task;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+public class FileArchiveUploadTaskTest {
+
+    private static FileUploadTask uploadTask(Path rootDir, String relativePath, String content, long mtime)
+            throws Throwable {
+        Path file = rootDir.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return new FileUploadTask(null, null, file, rootDir, "/test/ns", false, null).setFileAttributes(
+                Files.size(file), mtime);
+    }
+
+    @Test
+    public void testWriteArchive() throws Throwable {
+        Path rootDir = Files.createTempDirectory("archive-test").toAbsolutePath();
+        List<FileUploadTask> tasks = new ArrayList<FileUploadTask>();
+        tasks.add(uploadTask(rootDir, "a.txt", "a", 1500000000000L));
+        tasks.add(uploadTask(rootDir, "dir1/b.txt", "bb", 1500000002000L));
+        tasks.add(uploadTask(rootDir, "dir1/dir2/c.txt", "", 1500000004000L));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FileArchiveUploadTask(null, null, tasks).writeArchive(tasks, out, null);
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            for (FileUploadTask task : tasks) {
+                ZipEntry entry = zis.getNextEntry();
+                assertEquals(rootDir.relativize(task.file()).toString().replace('\\', '/'), entry.getName());
+                assertEquals(task.fileMtime(), entry.getTime());
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int len;
+                while ((len = zis.read(buffer)) != -1) {
+                    content.write(buffer, 0, len);
+                }
+                assertArrayEquals(Files.readAllBytes(task.file()), content.toByteArray());
+                assertEquals(task.fileSize(), task.workProgressed());
+            }
+            assertNull(zis.getNextEntry());
+        } finally {
+            zis.close();
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package unimelb.mf.client.sync.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.Test;
+
+import arc.xml.XmlDoc;
+import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.task.Task;
+
+public class FileCheckTaskTest {
+
+    private static final Path DIR = Paths.get("/tmp/check-test").toAbsolutePath();
+
+    private static final long MTIME = 1500000000000L;
+
+    /**
+     * Replies the asset.query with the specified pages of results.
+     */
+    private static class PagedQuerySession extends MFSession {
+
+        private final String[] _pages;
+        private final List<XmlDoc.Element> _args = new ArrayList<XmlDoc.Element>();
+
+        PagedQuerySession(String... pages) {
+            super(null);
+            _pages = pages;
+        }
+
+        @Override
+        public XmlDoc.Element execute(String service, String args) throws Throwable {
+            if (!"asset.query".equals(service)) {
+                return new XmlDoc().parse(new StringReader("<result/>"));
+            }
+            _args.add(new XmlDoc().parse(new StringReader("<args>" + args + "</args>")));
+            int page = _args.size() - 1;
+            int remaining = _pages.length - 1 - page;
+            return new XmlDoc().parse(new StringReader(
+                    "<result>" + _pages[page] + "<cursor><remaining>" + remaining + "</remaining></cursor></result>"));
+        }
+    }
+
+    private static String asset(long id, String path, boolean destroyed, long size) {
+        return "<asset id=\"" + id + "\"><path>" + path + "</path><destroyed>" + destroyed + "</destroyed><csize>"
+                + size + "</csize><csum>0</csum><mtime>" + MTIME + "</mtime></asset>";
+    }
+
+    private static FileUploadTask uploadTask(String name, long size) {
+        return new FileUploadTask(null, null, DIR.resolve(name), DIR, "/ns", false, null).setFileAttributes(size,
+                MTIME);
+    }
+
+    @Test
+    public void testBatchWithDestroyedDuplicate() throws Throwable {
+        FileUploadTask a = uploadTask("a.txt", 10);
+        FileUploadTask b = uploadTask("b.txt", 20);
+        FileUploadTask c = uploadTask("c.txt", 30);
+        FileUploadTask d = uploadTask("d.txt", 40);
+        // a.txt has a live asset and a soft-destroyed one, so the results do
+        // not fit in one page of the batch size.
+        PagedQuerySession session = new PagedQuerySession(
+                asset(1, "/ns/a.txt", false, 10) + asset(2, "/ns/a.txt", true, 10) + asset(3, "/ns/b.txt", false, 20)
+                        + asset(4, "/ns/c.txt", false, 99),
+                asset(5, "/ns/d.txt", false, 40));
+        BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(10);
+
+        new FileCheckTask(session, null, Arrays.asList(a, b, c, d), queue, null).execute(session);
+
+        assertEquals(2, session._args.size());
+        assertEquals(1, session._args.get(0).longValue("idx"));
+        assertEquals(5, session._args.get(1).longValue("idx"));
+        // only c.txt (with a different size) is uploaded. d.txt, on the second
+        // page, is not uploaded again.
+        assertEquals(1, queue.size());
+        assertSame(c, queue.poll());
+    }
+
+}
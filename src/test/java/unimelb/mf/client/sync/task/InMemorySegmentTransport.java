@@ -0,0 +1,132 @@
+package unimelb.mf.client.sync.task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import unimelb.mf.client.session.MFSession;
+
+/**
+ * In-memory stand-in of the server side of the segmented uploads, which
+ * returns the CRC32 checksums of the segments received, and can simulate
+ * interrupted and corrupted transfers.
+ */
+class InMemorySegmentTransport implements SegmentTransport {
+
+    private final Map<String, byte[]> _uploads = new HashMap<String, byte[]>();
+    private final Map<String, byte[]> _assets = new HashMap<String, byte[]>();
+    private final List<Long> _putOffsets = new ArrayList<Long>();
+    private final List<String> _aborted = new ArrayList<String>();
+    private int _nbUploads = 0;
+    private int _failAtPut = -1;
+    private long _corruptAtOffset = -1;
+    private boolean _truncateOnCommit = false;
+
+    /**
+     * The specified put (counted from 0, in all the uploads) fails after the
+     * segment is sent, before it is stored.
+     */
+    InMemorySegmentTransport failAtPut(int put) {
+        _failAtPut = put;
+        return this;
+    }
+
+    /**
+     * The next segment sent at the specified offset is corrupted in transit.
+     */
+    InMemorySegmentTransport corruptOnceAt(long offset) {
+        _corruptAtOffset = offset;
+        return this;
+    }
+
+    /**
+     * The last byte of the content is lost when the uploads are committed.
+     */
+    InMemorySegmentTransport truncateOnCommit() {
+        _truncateOnCommit = true;
+        return this;
+    }
+
+    List<Long> putOffsets() {
+        return _putOffsets;
+    }
+
+    List<String> aborted() {
+        return _aborted;
+    }
+
+    int numberOfUploads() {
+        return _nbUploads;
+    }
+
+    byte[] asset(String assetPath) {
+        return _assets.get(assetPath);
+    }
+
+    @Override
+    public synchronized String begin(MFSession session, String assetPath, long length) {
+        String uploadId = String.valueOf(++_nbUploads);
+        _uploads.put(uploadId, new byte[0]);
+        return uploadId;
+    }
+
+    @Override
+    public synchronized long acknowledged(MFSession session, String uploadId) {
+        byte[] content = _uploads.get(uploadId);
+        return content == null ? -1 : content.length;
+    }
+
+    @Override
+    public synchronized long put(MFSession session, String uploadId, long offset, Segment segment) throws Throwable {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        segment.writeTo(out, null);
+        byte[] bytes = out.toByteArray();
+        if (bytes.length != segment.length()) {
+            throw new IOException("Expected " + segment.length() + " bytes, received " + bytes.length);
+        }
+        int put = _putOffsets.size();
+        _putOffsets.add(offset);
+        if (put == _failAtPut) {
+            throw new IOException("Connection reset");
+        }
+        if (offset == _corruptAtOffset) {
+            _corruptAtOffset = -1;
+            bytes[0] ^= 0xff;
+        }
+        byte[] content = _uploads.get(uploadId);
+        if (content == null || offset > content.length) {
+            throw new IOException("Invalid offset: " + offset + " of upload: " + uploadId);
+        }
+        byte[] stored = Arrays.copyOf(content, (int) offset + bytes.length);
+        System.arraycopy(bytes, 0, stored, (int) offset, bytes.length);
+        _uploads.put(uploadId, stored);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    @Override
+    public synchronized String commit(MFSession session, String uploadId, String assetPath) throws Throwable {
+        byte[] content = _uploads.remove(uploadId);
+        if (content == null) {
+            throw new IOException("Upload: " + uploadId + " does not exist.");
+        }
+        if (_truncateOnCommit && content.length > 0) {
+            content = Arrays.copyOf(content, content.length - 1);
+        }
+        _assets.put(assetPath, content);
+        return "asset-" + uploadId;
+    }
+
+    @Override
+    public synchronized void abort(MFSession session, String uploadId) {
+        _uploads.remove(uploadId);
+        _aborted.add(uploadId);
+    }
+
+}
@@ -0,0 +1,175 @@
+package unimelb.mf.client.sync.task;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import arc.mf.client.ServerClient;
+import arc.xml.XmlDoc;
+import unimelb.mf.client.session.MFSession;
+import unimelb.mf.client.sync.index.UploadStateStore;
+import unimelb.mf.client.util.HasAbortableOperation;
+
+public class SegmentedUploadTest {
+
+    private static final long SEGMENT_SIZE = SegmentedUpload.MIN_SEGMENT_SIZE;
+
+    private static final long FILE_SIZE = 3 * SEGMENT_SIZE + 12345;
+
+    private Path _dir;
+
+    private Path createFile() throws IOException {
+        _dir = Files.createTempDirectory("segmented-upload-test").toAbsolutePath();
+        Path file = _dir.resolve("large.bin");
+        byte[] bytes = new byte[(int) FILE_SIZE];
+        new Random(1).nextBytes(bytes);
+        Files.write(file, bytes);
+        return file;
+    }
+
+    private UploadStateStore openStore() throws IOException {
+        return UploadStateStore.open(_dir.resolve("mf-sync" + UploadStateStore.FILE_EXTENSION), null);
+    }
+
+    private static FileUploadTask uploadTask(Path file, boolean csumCheck) {
+        return new FileUploadTask(null, null, file, file.getParent(), "/test/ns", csumCheck, null);
+    }
+
+    private static String upload(SegmentedUpload su, FileUploadTask task) throws Throwable {
+        return su.upload(null, task, Files.readAttributes(task.file(), BasicFileAttributes.class));
+    }
+
+    private static void uploadInterrupted(SegmentedUpload su, FileUploadTask task) throws Throwable {
+        try {
+            upload(su, task);
+            fail("Upload is not interrupted.");
+        } catch (IOException e) {
+            // expected.
+        }
+    }
+
+    /**
+     * Replies the asset.get (of the services executed after the upload is
+     * committed) with the content stored by the transport.
+     */
+    private static class CommittedContentSession extends MFSession {
+
+        private final InMemorySegmentTransport _transport;
+        private final String _assetPath;
+
+        CommittedContentSession(InMemorySegmentTransport transport, String assetPath) {
+            super(null);
+            _transport = transport;
+            _assetPath = assetPath;
+        }
+
+        @Override
+        public XmlDoc.Element execute(String service, String args, List<ServerClient.Input> inputs,
+                ServerClient.Output output, HasAbortableOperation abortable) throws Throwable {
+            byte[] content = _transport.asset(_assetPath);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            return new XmlDoc().parse(new StringReader("<result><reply service=\"asset.get\"><response>"
+                    + "<asset id=\"1\"><content><size>" + content.length + "</size><csum base=\"16\">"
+                    + Long.toHexString(crc.getValue()) + "</csum></content></asset></response></reply></result>"));
+        }
+    }
+
+    private static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file));
+        return crc.getValue();
+    }
+
+    @Test
+    public void testResumeAfterInterruption() throws Throwable {
+        Path file = createFile();
+        InMemorySegmentTransport transport = new InMemorySegmentTransport().failAtPut(2);
+        uploadInterrupted(new SegmentedUpload(transport, openStore(), 1, SEGMENT_SIZE), uploadTask(file, true));
+        assertEquals(2 * SEGMENT_SIZE, openStore().get(file).offset());
+
+        // resumed in the next run (with the state reloaded from the file).
+        UploadStateStore store = openStore();
+        FileUploadTask task = uploadTask(file, true);
+        assertEquals("asset-1", upload(new SegmentedUpload(transport, store, 1, SEGMENT_SIZE), task));
+        assertEquals(Arrays.asList(0L, SEGMENT_SIZE, 2 * SEGMENT_SIZE, 2 * SEGMENT_SIZE, 3 * SEGMENT_SIZE),
+                transport.putOffsets());
+        assertEquals(1, transport.numberOfUploads());
+        assertArrayEquals(Files.readAllBytes(file), transport.asset(task.assetPath()));
+        // the checksum combined from the segments matches the file.
+        assertEquals(crc32(file), task.csum());
+        assertNull(store.get(file));
+    }
+
+    @Test
+    public void testRestartWhenFileChanged() throws Throwable {
+        Path file = createFile();
+        InMemorySegmentTransport transport = new InMemorySegmentTransport().failAtPut(1);
+        uploadInterrupted(new SegmentedUpload(transport, openStore(), 1, SEGMENT_SIZE), uploadTask(file, true));
+
+        Files.write(file, new byte[] { 1, 2, 3 }, StandardOpenOption.APPEND);
+        FileUploadTask task = uploadTask(file, true);
+        assertEquals("asset-2", upload(new SegmentedUpload(transport, openStore(), 1, SEGMENT_SIZE), task));
+        assertEquals(Arrays.asList("1"), transport.aborted());
+        assertEquals(Arrays.asList(0L, SEGMENT_SIZE, 0L, SEGMENT_SIZE, 2 * SEGMENT_SIZE, 3 * SEGMENT_SIZE),
+                transport.putOffsets());
+        assertArrayEquals(Files.readAllBytes(file), transport.asset(task.assetPath()));
+        assertEquals(crc32(file), task.csum());
+    }
+
+    @Test
+    public void testResendSegmentWithMismatchingChecksum() throws Throwable {
+        Path file = createFile();
+        InMemorySegmentTransport transport = new InMemorySegmentTransport().corruptOnceAt(SEGMENT_SIZE);
+        FileUploadTask task = uploadTask(file, true);
+        upload(new SegmentedUpload(transport, openStore(), 1, SEGMENT_SIZE), task);
+        assertEquals(Arrays.asList(0L, SEGMENT_SIZE, SEGMENT_SIZE, 2 * SEGMENT_SIZE, 3 * SEGMENT_SIZE),
+                transport.putOffsets());
+        assertArrayEquals(Files.readAllBytes(file), transport.asset(task.assetPath()));
+        assertEquals(crc32(file), task.csum());
+    }
+
+    @Test
+    public void testRestartWhenChecksumNotTracked() throws Throwable {
+        Path file = createFile();
+        InMemorySegmentTransport transport = new InMemorySegmentTransport().failAtPut(2);
+        uploadInterrupted(new SegmentedUpload(transport, openStore(), 1, SEGMENT_SIZE), uploadTask(file, false));
+
+        // resumed with csumCheck: the checksum of the acknowledged bytes is
+        // unknown.
+        FileUploadTask task = uploadTask(file, true);
+        upload(new SegmentedUpload(transport, openStore(), 1, SEGMENT_SIZE), task);
+        assertEquals(Arrays.asList("1"), transport.aborted());
+        assertEquals(crc32(file), task.csum());
+    }
+
+    @Test
+    public void testFailWhenCommittedSizeDoesNotMatch() throws Throwable {
+        Path file = createFile();
+        InMemorySegmentTransport transport = new InMemorySegmentTransport().truncateOnCommit();
+        // without csumCheck, the size of the committed content is verified.
+        FileUploadTask task = uploadTask(file, false)
+                .setSegmentedUpload(new SegmentedUpload(transport, openStore(), 1, SEGMENT_SIZE));
+        try {
+            task.execute(new CommittedContentSession(transport, task.assetPath()));
+            fail("Upload with mismatching size does not fail.");
+        } catch (Exception e) {
+            assertEquals(true, e.getMessage().startsWith("Sizes do not match"));
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package unimelb.mf.client.sync.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.Test;
+
+import unimelb.mf.client.sync.MFSyncSettings;
+import unimelb.mf.client.task.Task;
+
+public class TaskConsumerTest {
+
+    private static final Path DIR1 = Paths.get("/tmp/dir1").toAbsolutePath();
+    private static final Path DIR2 = Paths.get("/tmp/dir2").toAbsolutePath();
+
+    private static MFSyncSettings.Job archiveJob(Path dir, String ns, int minFiles, int maxFiles) {
+        return new MFSyncSettings.Job(MFSyncSettings.Job.Type.UPLOAD, dir, ns, false, null, null)
+                .setArchive(minFiles, 1024, maxFiles);
+    }
+
+    private static FileUploadTask tinyFile(Path dir, String ns, String name) {
+        return new FileUploadTask(null, null, dir.resolve(name), dir, ns, false, null)
+                .setFileAttributes(10, 1500000000000L).setNewAsset(true);
+    }
+
+    private static TaskConsumer consumer(BlockingQueue<Task> queue, MFSyncSettings.Job... jobs) {
+        return new TaskConsumer(queue, null).setSmallFileBatch(100, 2).setJobs(Arrays.asList(jobs));
+    }
+
+    @Test
+    public void testArchiveTakesOnlyTheTasksOfTheJob() throws Throwable {
+        CompactTaskQueue queue = new CompactTaskQueue(100);
+        TaskConsumer consumer = consumer(queue, archiveJob(DIR1, "/ns1", 2, 3), archiveJob(DIR2, "/ns2", 2, 3));
+        for (int i = 0; i < 4; i++) {
+            queue.put(tinyFile(DIR1, "/ns1", "a" + i));
+            queue.put(tinyFile(DIR2, "/ns2", "b" + i));
+        }
+
+        Task task = consumer.nextTask();
+        assertTrue(task instanceof FileArchiveUploadTask);
+        FileArchiveUploadTask archive = (FileArchiveUploadTask) task;
+        assertEquals(3, archive.size());
+        for (FileUploadTask t : archive.tasks()) {
+            assertEquals(DIR1, t.rootDirectory());
+        }
+        // the tasks of the other job stay in the queue.
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void testBatchFallbackWithHeldTask() throws Throwable {
+        BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(100);
+        TaskConsumer consumer = consumer(queue, archiveJob(DIR1, "/ns1", 5, 10));
+        FileUploadTask a0 = tinyFile(DIR1, "/ns1", "a0");
+        FileUploadTask a1 = tinyFile(DIR1, "/ns1", "a1");
+        FileUploadTask a2 = tinyFile(DIR1, "/ns1", "a2");
+        // not a small file, so that it is not batched.
+        FileUploadTask b0 = tinyFile(DIR2, "/ns2", "b0").setFileAttributes(1000, 1500000000000L);
+        FileUploadTask a3 = tinyFile(DIR1, "/ns1", "a3");
+        queue.put(a0);
+        queue.put(a1);
+        queue.put(a2);
+        queue.put(b0);
+        queue.put(a3);
+
+        // fewer than the minimum number of files for an archive before the
+        // foreign task: uploaded in batches instead.
+        Task task = consumer.nextTask();
+        assertTrue(task instanceof FileBatchUploadTask);
+        assertEquals(Arrays.asList(a0, a1), ((FileBatchUploadTask) task).tasks());
+        assertSame(a2, consumer.nextTask());
+        // the foreign task is held, and it stops there.
+        assertEquals(1, queue.size());
+        assertSame(b0, consumer.nextTask());
+        assertSame(a3, queue.peek());
+    }
+
+    @Test
+    public void testArchiveOnlyNewAssets() throws Throwable {
+        CompactTaskQueue queue = new CompactTaskQueue(100);
+        TaskConsumer consumer = consumer(queue, archiveJob(DIR1, "/ns1", 2, 10));
+        queue.put(tinyFile(DIR1, "/ns1", "a0"));
+        queue.put(tinyFile(DIR1, "/ns1", "a1"));
+        // the asset exists: to update.
+        queue.put(tinyFile(DIR1, "/ns1", "u0").setNewAsset(false));
+        queue.put(tinyFile(DIR1, "/ns1", "a2"));
+
+        Task task = consumer.nextTask();
+        assertTrue(task instanceof FileArchiveUploadTask);
+        assertEquals(2, ((FileArchiveUploadTask) task).size());
+        for (FileUploadTask t : ((FileArchiveUploadTask) task).tasks()) {
+            assertTrue(t.isNewAsset());
+        }
+        // the update is not archived, but batched.
+        task = consumer.nextTask();
+        assertTrue(task instanceof FileBatchUploadTask);
+        assertEquals(DIR1.resolve("u0"), ((FileBatchUploadTask) task).tasks().get(0).file());
+    }
+
+}